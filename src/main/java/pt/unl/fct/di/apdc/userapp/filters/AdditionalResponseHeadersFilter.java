@@ -17,7 +17,9 @@ public class AdditionalResponseHeadersFilter implements ContainerResponseFilter
 	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
 		responseContext.getHeaders().add("Access-Control-Allow-Methods", "HEAD,GET,PUT,POST,DELETE,OPTIONS");
 		responseContext.getHeaders().add("Access-Control-Allow-Origin", "*");
-		responseContext.getHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Requested-With");   
+		responseContext.getHeaders().add("Access-Control-Allow-Headers", "Content-Type, X-Requested-With, If-None-Match, Range, If-Range, If-Modified-Since, "
+				+ "X-Upload-Content-Type, X-Upload-Content-Length");
+		responseContext.getHeaders().add("Access-Control-Expose-Headers", "ETag, X-Next-Cursor, Content-Range, Accept-Ranges, Last-Modified");
 	}
 
 }
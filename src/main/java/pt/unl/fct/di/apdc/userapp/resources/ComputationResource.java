@@ -1,6 +1,9 @@
 package pt.unl.fct.di.apdc.userapp.resources;
 
-import java.util.HashMap;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -11,6 +14,7 @@ import org.glassfish.jersey.media.multipart.FormDataParam;
 
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.appengine.repackaged.com.google.gson.JsonObject;
+import com.google.cloud.datastore.BaseEntity;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
@@ -20,8 +24,8 @@ import com.google.cloud.datastore.PathElement;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.Transaction;
-import com.google.cloud.datastore.Value;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.CookieParam;
@@ -31,21 +35,31 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Cookie;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
 import pt.unl.fct.di.apdc.userapp.util.BlockAccountRequest;
+import pt.unl.fct.di.apdc.userapp.util.BulkUserOperations;
+import pt.unl.fct.di.apdc.userapp.util.BulkUserRequest;
 import pt.unl.fct.di.apdc.userapp.util.ChangeAttributes;
 import pt.unl.fct.di.apdc.userapp.util.ChangePassword;
 import pt.unl.fct.di.apdc.userapp.util.ChangeRole;
 import pt.unl.fct.di.apdc.userapp.util.ChangeState;
 import pt.unl.fct.di.apdc.userapp.util.ChangeVisibility;
+import pt.unl.fct.di.apdc.userapp.util.FieldProjector;
 import pt.unl.fct.di.apdc.userapp.util.ForceLogout;
 import pt.unl.fct.di.apdc.userapp.util.JWTToken;
 import pt.unl.fct.di.apdc.userapp.util.RemoveAccount;
 import pt.unl.fct.di.apdc.userapp.util.RolePermissions;
 import pt.unl.fct.di.apdc.userapp.util.Roles;
+import pt.unl.fct.di.apdc.userapp.util.UserBatchRequest;
+import pt.unl.fct.di.apdc.userapp.util.UserListing;
+import pt.unl.fct.di.apdc.userapp.util.UserSummaries;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStore;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
 
 @Path("/utils")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -58,6 +72,9 @@ public class ComputationResource {
     } // nothing to be done here @GET
 
     private static final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+    private static final int USERS_PAGE_MAX = Integer.getInteger("users.page.max", 200);
+    private static final int USERS_BATCH_MAX = Integer.getInteger("users.batch.max", 300);
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
 
     private String extractJWT(Cookie cookie, String authHeader) {
         if (cookie != null && cookie.getValue() != null)
@@ -125,14 +142,57 @@ public class ComputationResource {
             }
         }
 
-        Map<String, Object> filteredData = entityToMap(user, requesterRole);
-        return Response.ok(g.toJson(filteredData)).build();
+        try {
+            return Response.ok(UserListing.FIELDS.forRole(requesterRole).toJson("username", user.getKey().getName(), user))
+                    .build();
+        } catch (IOException e) {
+            return Response.serverError().entity("{\"message\":\"Failed to read user.\"}").build();
+        }
+    }
+
+    @POST
+    @Path("/users/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response batchUsers(UserBatchRequest request,
+            @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token)) {
+            return Response.status(Response.Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Invalid or expired session.\"}").build();
+        }
+
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null) {
+            return Response.status(Response.Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Failed to decode token.\"}").build();
+        }
+
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!Roles.isValidRole(requesterRole)) {
+            return Response.status(Response.Status.FORBIDDEN)
+                    .entity("{\"message\":\"Invalid role.\"}").build();
+        }
+
+        if (request == null || !request.valid()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("{\"message\":\"Missing usernames.\"}").build();
+        }
+        if (request.usernames.size() > USERS_BATCH_MAX) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("{\"message\":\"At most " + USERS_BATCH_MAX + " usernames per request.\"}").build();
+        }
+
+        return Response.ok(g.toJson(UserSummaries.resolve(datastore, requesterRole, request.usernames))).build();
     }
 
     @GET
     @Path("/list")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response listUsers(@CookieParam("session::apdc") Cookie cookie,
+    public Response listUsers(@QueryParam("cursor") String cursor, @QueryParam("limit") Integer limit,
+            @CookieParam("session::apdc") Cookie cookie,
             @HeaderParam("Authorization") String authHeader) {
 
         String token = extractJWT(cookie, authHeader);
@@ -163,56 +223,35 @@ public class ComputationResource {
                     .build();
         }
 
-        Query<Entity> query = Query.newEntityQueryBuilder().setKind("User").build();
-        QueryResults<Entity> results = datastore.run(query);
-        Map<String, Map<String, Object>> allUsers = new HashMap<>();
-
-        while (results.hasNext()) {
-            Entity user = results.next();
-
-            String userRole = user.contains("user_role") ? user.getString("user_role") : "";
-            String userState = user.contains("user_account_state") ? user.getString("user_account_state") : "";
-            String userProfile = user.contains("user_profile") ? user.getString("user_profile") : "";
-
-            if (!RolePermissions.canView(role, userRole)) {
-                continue;
-            }
-
-            if (Roles.is(role, Roles.VU, Roles.RU)) {
-                if (!userState.equalsIgnoreCase("ATIVADO") || !userProfile.equalsIgnoreCase("PUBLICO")) {
-                    continue;
-                }
-            }
-
-            Map<String, Object> userData = entityToMap(user, role);
-            allUsers.put(user.getKey().getName(), userData);
+        // Sem limit nem cursor devolve todos, como antes; com algum deles é paginado (cursor em X-Next-Cursor)
+        UserListing.Page page;
+        try {
+            boolean paged = limit != null || cursor != null;
+            int size = !paged ? 0 : limit == null || limit <= 0 ? USERS_PAGE_MAX : Math.min(limit, USERS_PAGE_MAX);
+            page = UserListing.fetch(datastore, role, cursor, size);
+        } catch (UserListing.InvalidCursorException e) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"" + e.getMessage() + "\"}")
+                    .build();
         }
 
-        return Response.ok(g.toJson(allUsers)).build();
-    }
-
-    private Map<String, Object> entityToMap(Entity entity, String requesterRole) {
-        Map<String, Object> map = new HashMap<>();
-        map.put("username", entity.getKey().getName());
-
-        for (String name : entity.getNames()) {
-            // Nunca expor password
-            if (name.equals("user_pwd"))
-                continue;
-
-            // Se for RU ou VU, limitar os campos visíveis
-            if (Roles.is(requesterRole, Roles.RU, Roles.VU)) {
-                if (!name.equals("user_email") && !name.equals("user_name")) {
-                    continue;
-                }
+        FieldProjector.View view = UserListing.FIELDS.forRole(role);
+        StreamingOutput body = out -> {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            // Como o Gson por omissão: propriedades nulas não aparecem
+            writer.setSerializeNulls(false);
+            writer.beginObject();
+            for (BaseEntity<Key> user : page.users) {
+                writer.name(user.getKey().getName());
+                view.write(writer, "username", user.getKey().getName(), user);
             }
-
-            Value<?> value = entity.getValue(name);
-            Object fieldValue = (value != null) ? value.get() : "NOT DEFINED";
-            map.put(name, fieldValue);
-        }
-
-        return map;
+            writer.endObject();
+            writer.flush();
+        };
+        Response.ResponseBuilder rb = Response.ok(body);
+        if (page.nextCursor != null)
+            rb.header(NEXT_CURSOR_HEADER, page.nextCursor);
+        return rb.build();
     }
 
     @POST
@@ -269,28 +308,19 @@ public class ComputationResource {
                     .build();
         }
 
-        String currentTargetRole = targetUser.getString("user_role");
-
-        if (!RolePermissions.hasHigherPriority(requesterRole, currentTargetRole) ||
-                !RolePermissions.hasHigherPriority(requesterRole, newRole)) {
+        String refusal = roleChangeRefusal(requesterRole, targetUser.getString("user_role"), newRole);
+        if (refusal != null) {
             return Response.status(Status.FORBIDDEN)
-                    .entity("{\"message\":\"Cannot change role of equal or higher privileged users.\"}")
+                    .entity("{\"message\":\"" + refusal + "\"}")
                     .build();
         }
 
-        if (Roles.is(requesterRole, Roles.SGVBO)) {
-            Set<String> allowed = Set.of(Roles.RU, Roles.VU, Roles.ADLU);
-            if (!allowed.contains(currentTargetRole) || !allowed.contains(newRole)) {
-                return Response.status(Status.FORBIDDEN)
-                        .entity("{\"message\":\"SGVBO can only change roles among RU, VU, ADLU.\"}")
-                        .build();
-            }
-        }
-
+        // Em maiúsculas, como no registo: os roles guardados ficam todos na mesma forma
         Entity updatedUser = Entity.newBuilder(targetUser)
-                .set("user_role", newRole)
+                .set("user_role", newRole.toUpperCase())
                 .build();
         datastore.put(updatedUser);
+        UserSummaries.invalidate(userTarget);
 
         return Response.ok("{\"message\":\"Role updated successfully.\"}").build();
     }
@@ -336,8 +366,7 @@ public class ComputationResource {
                     .entity("{\"message\":\"Permission denied.\"}").build();
         }
 
-        if (!newState.equals("ATIVADO") && !newState.equals("INATIVO") &&
-                !newState.equals("SUSPENSO") && !newState.equals("P-REMOVER")) {
+        if (!isValidState(newState)) {
             return Response.status(Status.BAD_REQUEST)
                     .entity("{\"message\":\"Invalid state.\"}").build();
         }
@@ -349,32 +378,19 @@ public class ComputationResource {
                     .entity("{\"message\":\"User not found.\"}").build();
         }
 
-        String userRole = user.getString("user_role").toUpperCase();
-
-        if (Roles.is(role, Roles.SGVBO)) {
-            if (!Roles.is(userRole, Roles.RU, Roles.VU, Roles.ADLU)) {
-                return Response.status(Status.FORBIDDEN)
-                        .entity("{\"message\":\"SGVBO can only change state of RU, VU, ADLU users.\"}").build();
-            }
+        String refusal = stateChangeRefusal(role, user.getString("user_role"));
+        if (refusal != null) {
+            return Response.status(Status.FORBIDDEN)
+                    .entity("{\"message\":\"" + refusal + "\"}").build();
         }
 
-        if (newState.equals("ATIVADO")) {
-            String[] requiredFields = {
-                    "user_email", "user_name", "user_pwd", "user_phone1", "user_nif", "user_cc",
-                    "user_cc_issue_date", "user_cc_issue_place", "user_cc_validity", "user_birth_date",
-                    "user_nationality", "user_residence_country", "user_address", "user_postal_code"
-            };
-
-            for (String field : requiredFields) {
-                if (!user.contains(field) || user.getString(field).isBlank()) {
-                    LOG.warning("Activating user '" + userTarget + "' with missing or blank field: " + field);
-                }
-            }
-        }
+        if (newState.equals("ATIVADO"))
+            warnMissingFields(user);
         Entity updated = Entity.newBuilder(user)
                 .set("user_account_state", newState)
                 .build();
         datastore.put(updated);
+        UserSummaries.invalidate(userTarget);
 
         LOG.info("User " + userTarget + " state changed to " + newState);
         return Response.ok("{\"message\":\"State changed successfully.\"}").build();
@@ -427,20 +443,18 @@ public class ComputationResource {
                     .entity("{\"message\":\"Target user not found.\"}").build();
         }
 
-        String targetRole = targetUser.getString("user_role").toUpperCase();
-
         if (!RolePermissions.canPerform(role, "DELETE_USER")) {
             return Response.status(Response.Status.FORBIDDEN)
                     .entity("{\"message\":\"You are not allowed to remove accounts.\"}").build();
         }
-        if (Roles.is(role, Roles.SGVBO)) {
-            if (!Roles.is(targetRole, Roles.RU, Roles.VU, Roles.ADLU)) {
-                return Response.status(Response.Status.FORBIDDEN)
-                        .entity("{\"message\":\"SGVBO can only remove RU, VU, ADLU accounts.\"}").build();
-            }
+        String refusal = removalRefusal(role, targetUser.getString("user_role"));
+        if (refusal != null) {
+            return Response.status(Response.Status.FORBIDDEN)
+                    .entity("{\"message\":\"" + refusal + "\"}").build();
         }
 
         datastore.delete(userKey);
+        UserSummaries.invalidate(userTarget);
         LOG.info("User " + userTarget + " removed by " + username);
         return Response.ok("{\"message\":\"User " + userTarget + " successfully removed.\"}").build();
     }
@@ -531,26 +545,11 @@ public class ComputationResource {
         boolean uploadedNewPhoto = false;
         if (profilePictureStream != null && fileDetail != null) {
             try {
-                String bucketName = "alien-iterator-460014-a0.appspot.com";
                 String fileName = "profile_pictures/" + userTarget + "_" + java.util.UUID.randomUUID() + "_"
                         + fileDetail.getFileName();
-                com.google.cloud.storage.Storage storage = com.google.cloud.storage.StorageOptions.getDefaultInstance()
-                        .getService();
-                com.google.cloud.storage.BlobInfo blobInfo = com.google.cloud.storage.BlobInfo
-                        .newBuilder(bucketName, fileName)
-                        .setContentType(fileDetail.getType())
-                        .setAcl(java.util.Arrays.asList(
-                                com.google.cloud.storage.Acl.of(com.google.cloud.storage.Acl.User.ofAllUsers(),
-                                        com.google.cloud.storage.Acl.Role.READER)))
-                        .build();
-                try (java.nio.channels.WritableByteChannel channel = storage.writer(blobInfo)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = profilePictureStream.read(buffer)) != -1) {
-                        channel.write(java.nio.ByteBuffer.wrap(buffer, 0, bytesRead));
-                    }
-                }
-                photoUrl = String.format("https://storage.googleapis.com/%s/%s", bucketName, fileName);
+                BlobStore store = BlobStores.get();
+                store.upload(fileName, profilePictureStream, fileDetail.getType(), true);
+                photoUrl = store.publicUrl(fileName);
                 uploadedNewPhoto = true;
             } catch (Exception e) {
                 LOG.warning("Failed to upload profile picture: " + e.getMessage());
@@ -569,16 +568,15 @@ public class ComputationResource {
             }
             txn.put(builder.build());
             txn.commit();
+            UserSummaries.invalidate(userTarget);
             LOG.info("Attributes for " + userTarget + " updated by " + username);
 
             // Delete previous image if new one was uploaded and previous exists
             if (uploadedNewPhoto && previousPhotoUrl != null && !previousPhotoUrl.isEmpty()) {
                 try {
-                    String prevPath = previousPhotoUrl
-                            .replace("https://storage.googleapis.com/alien-iterator-460014-a0.appspot.com/", "");
-                    com.google.cloud.storage.Storage storage = com.google.cloud.storage.StorageOptions
-                            .getDefaultInstance().getService();
-                    boolean deleted = storage.delete("alien-iterator-460014-a0.appspot.com", prevPath);
+                    // Fotos fora do bucket (ex.: URLs externos) não são nossas para apagar
+                    String prevPath = BlobStores.get().nameOf(previousPhotoUrl);
+                    boolean deleted = prevPath != null && BlobStores.get().delete(prevPath);
                     if (!deleted) {
                         LOG.warning("Failed to delete previous profile picture: " + previousPhotoUrl);
                     }
@@ -717,6 +715,7 @@ public class ComputationResource {
 
         Entity updated = Entity.newBuilder(user).set("user_account_state", newState).build();
         datastore.put(updated);
+        UserSummaries.invalidate(userTarget);
 
         return Response.ok("{\"message\":\"Account deletion requested successfully.\"}").build();
     }
@@ -758,25 +757,13 @@ public class ComputationResource {
                     .build();
         }
 
-        if (!targetUser.contains("last_jti") || !targetUser.contains("token_expiration")) {
+        if (!hasSession(targetUser)) {
             return Response.status(Status.BAD_REQUEST)
                     .entity("{\"message\":\"No active session found for target user.\"}")
                     .build();
         }
 
-        String jti = targetUser.getString("last_jti");
-        long expiration = targetUser.getLong("token_expiration");
-
-        Key revokedKey = datastore.newKeyFactory()
-                .addAncestor(PathElement.of("User", request.targetUsername))
-                .setKind("RevokedToken")
-                .newKey(jti);
-
-        Entity revokedToken = Entity.newBuilder(revokedKey)
-                .set("expiration", expiration)
-                .build();
-
-        datastore.put(revokedToken);
+        datastore.put(revokedSession(targetUser));
 
         LOG.info("User " + request.targetUsername + " was forcibly logged out by " + requesterUsername);
 
@@ -844,6 +831,7 @@ public class ComputationResource {
                 .set("user_visibility", newVisibility)
                 .build();
         datastore.put(updatedUser);
+        UserSummaries.invalidate(effectiveTarget);
 
         LOG.info("Visibility changed for user: " + effectiveTarget + " to " + newVisibility);
 
@@ -890,9 +878,7 @@ public class ComputationResource {
                     .entity("{\"message\":\"User not found.\"}").build();
         }
 
-        String targetRole = targetUser.getString("user_role");
-
-        if (Roles.is(targetRole, Roles.SYSADMIN) || requester.equals(request.targetUsername)) {
+        if (!canBlock(requester, targetUser)) {
             return Response.status(Response.Status.FORBIDDEN)
                     .entity("{\"message\":\"You cannot block this account.\"}").build();
         }
@@ -901,6 +887,7 @@ public class ComputationResource {
                 .set("user_account_state", "BLOQUEADO")
                 .build();
         datastore.put(updatedUser);
+        UserSummaries.invalidate(request.targetUsername);
 
         LOG.info("User " + request.targetUsername + " blocked by " + requester);
 
@@ -909,4 +896,310 @@ public class ComputationResource {
         return Response.ok(response.toString()).build();
     }
 
-}
\ No newline at end of file
+    // Regras partilhadas pelas operações individuais e pelas /bulk
+
+    private static String roleChangeRefusal(String requesterRole, String currentRole, String newRole) {
+        if (!RolePermissions.hasHigherPriority(requesterRole, currentRole) ||
+                !RolePermissions.hasHigherPriority(requesterRole, newRole))
+            return "Cannot change role of equal or higher privileged users.";
+        if (Roles.is(requesterRole, Roles.SGVBO)) {
+            Set<String> allowed = Set.of(Roles.RU, Roles.VU, Roles.ADLU);
+            if (!allowed.contains(currentRole) || !allowed.contains(newRole))
+                return "SGVBO can only change roles among RU, VU, ADLU.";
+        }
+        return null;
+    }
+
+    private static boolean isValidState(String state) {
+        return state != null && (state.equals("ATIVADO") || state.equals("INATIVO") ||
+                state.equals("SUSPENSO") || state.equals("P-REMOVER"));
+    }
+
+    private static String stateChangeRefusal(String requesterRole, String targetRole) {
+        if (Roles.is(requesterRole, Roles.SGVBO) && !Roles.is(targetRole, Roles.RU, Roles.VU, Roles.ADLU))
+            return "SGVBO can only change state of RU, VU, ADLU users.";
+        return null;
+    }
+
+    private static void warnMissingFields(Entity user) {
+        String[] requiredFields = {
+                "user_email", "user_name", "user_pwd", "user_phone1", "user_nif", "user_cc",
+                "user_cc_issue_date", "user_cc_issue_place", "user_cc_validity", "user_birth_date",
+                "user_nationality", "user_residence_country", "user_address", "user_postal_code"
+        };
+
+        for (String field : requiredFields) {
+            if (!user.contains(field) || user.getString(field).isBlank()) {
+                LOG.warning("Activating user '" + user.getKey().getName() + "' with missing or blank field: " + field);
+            }
+        }
+    }
+
+    private static String removalRefusal(String requesterRole, String targetRole) {
+        if (Roles.is(requesterRole, Roles.SGVBO) && !Roles.is(targetRole, Roles.RU, Roles.VU, Roles.ADLU))
+            return "SGVBO can only remove RU, VU, ADLU accounts.";
+        return null;
+    }
+
+    private static boolean canBlock(String requester, Entity target) {
+        return !Roles.is(target.getString("user_role"), Roles.SYSADMIN) && !requester.equals(target.getKey().getName());
+    }
+
+    private static boolean hasSession(Entity user) {
+        return user.contains("last_jti") && user.contains("token_expiration");
+    }
+
+    private static Entity revokedSession(Entity user) {
+        Key revokedKey = datastore.newKeyFactory()
+                .addAncestor(PathElement.of("User", user.getKey().getName()))
+                .setKind("RevokedToken")
+                .newKey(user.getString("last_jti"));
+        return Entity.newBuilder(revokedKey)
+                .set("expiration", user.getLong("token_expiration"))
+                .build();
+    }
+
+    // Sessão e pedido comuns a todas as /bulk: devolve a resposta de erro, ou null se pode continuar
+    private Response checkBulk(String token, DecodedJWT jwt, BulkUserRequest request) {
+        Key logoutKey = datastore.newKeyFactory()
+                .addAncestor(PathElement.of("User", jwt.getSubject()))
+                .setKind("RevokedToken")
+                .newKey(token);
+        if (datastore.get(logoutKey) != null) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"Token revoked.\"}").build();
+        }
+        if (request == null || !request.valid()) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"Missing target usernames.\"}").build();
+        }
+        if (request.hasBlankTarget()) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"Target usernames must not be blank.\"}").build();
+        }
+        if (request.targetUsernames.size() > BulkUserOperations.MAX_TARGETS) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"At most " + BulkUserOperations.MAX_TARGETS
+                            + " target usernames per request.\"}").build();
+        }
+        return null;
+    }
+
+    private Response bulk(BulkUserRequest request, String requester, BulkUserOperations.Operation op, String done) {
+        BulkUserOperations.Report report = BulkUserOperations.run(datastore, request.targetUsernames, op, done);
+        LOG.info("Bulk operation by " + requester + ": " + report.succeeded + " succeeded, " + report.failed
+                + " failed");
+        return Response.ok(g.toJson(report)).build();
+    }
+
+    @POST
+    @Path("/bulk/changerole")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkChangeRole(BulkUserRequest request,
+            @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token)) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Invalid or expired session.\"}").build();
+        }
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Failed to decode token.\"}").build();
+        }
+        Response invalid = checkBulk(token, jwt, request);
+        if (invalid != null)
+            return invalid;
+
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "CHANGE_ROLE")) {
+            return Response.status(Status.FORBIDDEN)
+                    .entity("{\"message\":\"Permission denied: role not allowed to change roles.\"}").build();
+        }
+        if (!Roles.isValidRole(request.newRole)) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"Invalid new role.\"}").build();
+        }
+
+        String newRole = request.newRole.toUpperCase();
+        return bulk(request, jwt.getSubject(), new BulkUserOperations.Operation() {
+            public String check(Entity target) {
+                return roleChangeRefusal(requesterRole, target.getString("user_role"), newRole);
+            }
+
+            public void apply(Transaction txn, Entity target) {
+                txn.put(Entity.newBuilder(target).set("user_role", newRole).build());
+            }
+        }, "Role updated successfully.");
+    }
+
+    @POST
+    @Path("/bulk/changestate")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkChangeAccountState(BulkUserRequest request,
+            @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token)) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Invalid or expired session.\"}").build();
+        }
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Failed to decode token.\"}").build();
+        }
+        Response invalid = checkBulk(token, jwt, request);
+        if (invalid != null)
+            return invalid;
+
+        String role = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(role, "CHANGE_STATE")) {
+            return Response.status(Status.FORBIDDEN)
+                    .entity("{\"message\":\"Permission denied.\"}").build();
+        }
+        String newState = request.account_state;
+        if (!isValidState(newState)) {
+            return Response.status(Status.BAD_REQUEST)
+                    .entity("{\"message\":\"Invalid state.\"}").build();
+        }
+
+        return bulk(request, jwt.getSubject(), new BulkUserOperations.Operation() {
+            public String check(Entity target) {
+                return stateChangeRefusal(role, target.getString("user_role"));
+            }
+
+            public void apply(Transaction txn, Entity target) {
+                if (newState.equals("ATIVADO"))
+                    warnMissingFields(target);
+                txn.put(Entity.newBuilder(target).set("user_account_state", newState).build());
+            }
+        }, "State changed successfully.");
+    }
+
+    @POST
+    @Path("/bulk/removeaccount")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkRemoveAccount(BulkUserRequest request,
+            @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token)) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Invalid or expired session.\"}").build();
+        }
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Failed to decode token.\"}").build();
+        }
+        Response invalid = checkBulk(token, jwt, request);
+        if (invalid != null)
+            return invalid;
+
+        String role = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(role, "DELETE_USER")) {
+            return Response.status(Status.FORBIDDEN)
+                    .entity("{\"message\":\"You are not allowed to remove accounts.\"}").build();
+        }
+
+        return bulk(request, jwt.getSubject(), new BulkUserOperations.Operation() {
+            public String check(Entity target) {
+                return removalRefusal(role, target.getString("user_role"));
+            }
+
+            public void apply(Transaction txn, Entity target) {
+                txn.delete(target.getKey());
+            }
+        }, "User successfully removed.");
+    }
+
+    @POST
+    @Path("/bulk/forceLogout")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkForceLogout(BulkUserRequest request,
+            @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token)) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Invalid or expired session.\"}").build();
+        }
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Failed to decode token.\"}").build();
+        }
+        Response invalid = checkBulk(token, jwt, request);
+        if (invalid != null)
+            return invalid;
+
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "FORCE_LOGOUT")) {
+            return Response.status(Status.FORBIDDEN)
+                    .entity("{\"message\":\"Role " + requesterRole + " is not authorized to force logout users.\"}")
+                    .build();
+        }
+
+        // Os RevokedToken de todos os alvos vão nas mesmas transações em lote
+        return bulk(request, jwt.getSubject(), new BulkUserOperations.Operation() {
+            public String check(Entity target) {
+                return hasSession(target) ? null : "No active session found for target user.";
+            }
+
+            public void apply(Transaction txn, Entity target) {
+                txn.put(revokedSession(target));
+            }
+        }, "User has been forcibly logged out.");
+    }
+
+    @POST
+    @Path("/bulk/block")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response bulkBlockAccount(BulkUserRequest request,
+            @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token)) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Invalid or expired session.\"}").build();
+        }
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null) {
+            return Response.status(Status.UNAUTHORIZED)
+                    .entity("{\"message\":\"Failed to decode token.\"}").build();
+        }
+        Response invalid = checkBulk(token, jwt, request);
+        if (invalid != null)
+            return invalid;
+
+        String role = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(role, "BLOCK_ACCOUNT")) {
+            return Response.status(Status.FORBIDDEN)
+                    .entity("{\"message\":\"Role " + role + " is not authorized to block accounts.\"}").build();
+        }
+
+        String requester = jwt.getSubject();
+        return bulk(request, requester, new BulkUserOperations.Operation() {
+            public String check(Entity target) {
+                return canBlock(requester, target) ? null : "You cannot block this account.";
+            }
+
+            public void apply(Transaction txn, Entity target) {
+                txn.put(Entity.newBuilder(target).set("user_account_state", "BLOQUEADO").build());
+            }
+        }, "User was blocked successfully.");
+    }
+
+}
@@ -1,11 +1,14 @@
 package pt.unl.fct.di.apdc.userapp.resources;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Type;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -18,6 +21,7 @@ import org.glassfish.jersey.media.multipart.FormDataParam;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.google.cloud.Timestamp;
 import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
@@ -25,9 +29,7 @@ import com.google.cloud.datastore.PathElement;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
 import com.google.cloud.datastore.StructuredQuery;
-import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.datastore.Transaction;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
@@ -44,20 +46,31 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import pt.unl.fct.di.apdc.userapp.util.EntityVersions;
 import pt.unl.fct.di.apdc.userapp.util.ExecutionSheetData;
 import pt.unl.fct.di.apdc.userapp.util.JWTToken;
 import pt.unl.fct.di.apdc.userapp.util.Roles;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetFeatureStore;
 import pt.unl.fct.di.apdc.userapp.util.execution.AddInfoToActivityRequest;
 import pt.unl.fct.di.apdc.userapp.util.execution.AssignOperationRequest;
 import pt.unl.fct.di.apdc.userapp.util.execution.AssignOperationRequest.PolygonOperationAssignment;
 import pt.unl.fct.di.apdc.userapp.util.execution.CreateExecutionSheetRequest;
 import pt.unl.fct.di.apdc.userapp.util.execution.EditOperationRequest;
+import pt.unl.fct.di.apdc.userapp.util.execution.ExecutionSheetModel;
 import pt.unl.fct.di.apdc.userapp.util.execution.StartActivityRequest;
 import pt.unl.fct.di.apdc.userapp.util.execution.StopActivityRequest;
+import pt.unl.fct.di.apdc.userapp.util.execution.SyncEventsRequest;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStore;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
+import pt.unl.fct.di.apdc.userapp.util.storage.LargeProperties;
 
 @Path("/execution")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -66,6 +79,11 @@ public class ExecutionSheetResource {
     private static final Logger LOG = Logger.getLogger(ExecutionSheetResource.class.getName());
     private static final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
     private final Gson g = new GsonBuilder().serializeNulls().create();
+    private static final CacheControl REVALIDATE = revalidate();
+    // Propriedades das atividades que podem ir para o Cloud Storage (ver LargeProperties)
+    private static final String[] ACTIVITY_LARGE_PROPERTIES = { "gpx_track", "photo_urls" };
+    // Entidades por transação (o limite é 500 escritas, uma delas a versão)
+    private static final int WRITE_BATCH = 400;
 
     private String extractJWT(Cookie cookie, String authHeader) {
         if (cookie != null && cookie.getValue() != null)
@@ -83,6 +101,16 @@ public class ExecutionSheetResource {
         return Response.status(Response.Status.FORBIDDEN).entity("{\"message\":\"" + msg + "\"}").build();
     }
 
+    // Versão agregada da folha e dos seus Exec_Poly-Op / ExecutionActivity (ETag do getExecution)
+    private Key executionVersionKey(String executionId) {
+        return EntityVersions.keyFor(datastore.newKeyFactory().setKind("ExecutionSheet").newKey(executionId));
+    }
+
+    // Escritas na folha de execução com o incremento da versão na mesma transação
+    private void writeExecution(String executionId, Entity... entities) {
+        EntityVersions.write(datastore, txn -> txn.put(entities), executionVersionKey(executionId));
+    }
+
     @POST
     @Path("/create")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -132,9 +160,8 @@ public class ExecutionSheetResource {
         String observations = worksheet.contains("observations") ? worksheet.getString("observations") : "";
 
         String operationsJson = worksheet.contains("operations") ? worksheet.getString("operations") : "[]";
-        String polygonsJson = worksheet.contains("features") ? worksheet.getString("features") : "[]";
-
-        JsonArray features = JsonParser.parseString(polygonsJson).getAsJsonArray();
+        // Só as properties interessam: as geometrias nem são descodificadas
+        JsonArray properties = WorkSheetFeatureStore.properties(datastore, worksheet);
         JsonArray opsArray = JsonParser.parseString(operationsJson).getAsJsonArray();
 
         Map<String, Integer> operationCodeToId = new HashMap<>();
@@ -150,9 +177,10 @@ public class ExecutionSheetResource {
         // Collect polygon_operation IDs
         List<Entity> polyOpsEntities = new ArrayList<>();
         List<String> polyOpIds = new ArrayList<>();
-        for (JsonElement f : features) {
-            JsonObject feature = f.getAsJsonObject();
-            JsonObject props = feature.getAsJsonObject("properties");
+        for (JsonElement p : properties) {
+            if (p == null || !p.isJsonObject())
+                continue;
+            JsonObject props = p.getAsJsonObject();
             if (!props.has("polygon_id"))
                 continue;
             String polygonId = props.get("polygon_id").getAsString();
@@ -176,8 +204,10 @@ public class ExecutionSheetResource {
                 polyOpIds.add(compositeKey);
             }
         }
-        if (!polyOpsEntities.isEmpty()) {
-            datastore.put(polyOpsEntities.toArray(Entity[]::new));
+        // Em lotes, para cada transação ficar abaixo do limite de escritas
+        for (int from = 0; from < polyOpsEntities.size(); from += WRITE_BATCH) {
+            List<Entity> batch = polyOpsEntities.subList(from, Math.min(from + WRITE_BATCH, polyOpsEntities.size()));
+            writeExecution(worksheetId, batch.toArray(Entity[]::new));
         }
 
         // Create ExecutionSheet entity (metadata + polygon_operation_ids)
@@ -190,7 +220,7 @@ public class ExecutionSheetResource {
                 .set("observations", observations)
                 .set("operations", operationsJson)
                 .set("polygon_operation_ids", g.toJson(polyOpIds));
-        datastore.put(sheetBuilder.build());
+        writeExecution(worksheetId, sheetBuilder.build());
 
         return Response.ok("{\"message\":\"Execution sheet and polygon-operations created.\"}").build();
     }
@@ -283,7 +313,7 @@ public class ExecutionSheetResource {
                     .set("operator_username", operatorUsername)
                     .set("status", "atribuido")
                     .build();
-            datastore.put(updatedPolyOp);
+            writeExecution(executionId, updatedPolyOp);
             assignedCount++;
             debugOutput.add("✅ Assigned " + operatorUsername + " to " + operationCode + " in polygon " + polygonId);
         }
@@ -357,7 +387,6 @@ public class ExecutionSheetResource {
                 .set("start_time", now)
                 .set("status", "em_execucao")
                 .build();
-        datastore.put(activityEntity);
 
         // Update Exec_Poly-Op: add activity UUID to list
         List<String> activities = new ArrayList<>();
@@ -394,7 +423,7 @@ public class ExecutionSheetResource {
         if (polyOpEntity.contains("observations"))
             updatedBuilder.set("observations", polyOpEntity.getString("observations"));
 
-        datastore.put(updatedBuilder.build());
+        writeExecution(input.execution_id, activityEntity, updatedBuilder.build());
 
         JsonObject response = new JsonObject();
         response.addProperty("message",
@@ -482,7 +511,6 @@ public class ExecutionSheetResource {
                 .set("end_time", now)
                 .set("status", "executado")
                 .build();
-        datastore.put(updatedActivity);
 
         // Update status in Exec_Poly-Op
         Entity.Builder updatedBuilder = Entity.newBuilder(polyOpEntity)
@@ -506,7 +534,7 @@ public class ExecutionSheetResource {
         if (polyOpEntity.contains("observations"))
             updatedBuilder.set("observations", polyOpEntity.getString("observations"));
 
-        datastore.put(updatedBuilder.build());
+        writeExecution(input.execution_id, updatedActivity, updatedBuilder.build());
 
         JsonObject response = new JsonObject();
         response.addProperty("message",
@@ -573,31 +601,19 @@ public class ExecutionSheetResource {
         // Handle photo uploads to GCS
         java.util.List<String> uploadedPhotoUrls = new java.util.ArrayList<>();
         if (photoStreams != null && photoDetails != null && photoStreams.size() == photoDetails.size()) {
-            String bucketName = "alien-iterator-460014-a0.appspot.com";
-            Storage storage = StorageOptions.getDefaultInstance().getService();
+            BlobStore store = BlobStores.get();
             for (int i = 0; i < photoStreams.size(); i++) {
                 InputStream stream = photoStreams.get(i);
                 FormDataContentDisposition detail = photoDetails.get(i);
                 String fileName = "activity_photos/" + input.activity_id + "_" + java.util.UUID.randomUUID() + "_"
                         + detail.getFileName();
-                BlobInfo blobInfo = BlobInfo.newBuilder(bucketName, fileName)
-                        .setContentType(detail.getType())
-                        .setAcl(java.util.Arrays.asList(
-                                com.google.cloud.storage.Acl.of(com.google.cloud.storage.Acl.User.ofAllUsers(),
-                                        com.google.cloud.storage.Acl.Role.READER)))
-                        .build();
-                try (java.nio.channels.WritableByteChannel channel = storage.writer(blobInfo)) {
-                    byte[] buffer = new byte[8192];
-                    int bytesRead;
-                    while ((bytesRead = stream.read(buffer)) != -1) {
-                        channel.write(java.nio.ByteBuffer.wrap(buffer, 0, bytesRead));
-                    }
+                try {
+                    store.upload(fileName, stream, detail.getType(), true);
                 } catch (Exception e) {
                     LOG.warning("Failed to upload activity photo: " + e.getMessage());
                     continue;
                 }
-                String url = String.format("https://storage.googleapis.com/%s/%s", bucketName, fileName);
-                uploadedPhotoUrls.add(url);
+                uploadedPhotoUrls.add(store.publicUrl(fileName));
             }
         }
 
@@ -617,11 +633,23 @@ public class ExecutionSheetResource {
         Entity.Builder updatedActivityBuilder = Entity.newBuilder(activityEntity);
         if (input.observations != null)
             updatedActivityBuilder.set("observations", input.observations);
-        if (!allPhotoUrls.isEmpty())
-            updatedActivityBuilder.set("photo_urls", g.toJson(allPhotoUrls));
-        if (input.tracks != null && !input.tracks.isEmpty())
-            updatedActivityBuilder.set("gpx_track", g.toJson(input.tracks.get(0)));
-        datastore.put(updatedActivityBuilder.build());
+        Entity updatedActivity = null;
+        try {
+            // Tracks e listas de fotos grandes vão para o Cloud Storage
+            if (!allPhotoUrls.isEmpty())
+                LargeProperties.set(updatedActivityBuilder, activityKey, "photo_urls", g.toJson(allPhotoUrls));
+            if (input.tracks != null && !input.tracks.isEmpty())
+                LargeProperties.set(updatedActivityBuilder, activityKey, "gpx_track", g.toJson(input.tracks.get(0)));
+            updatedActivity = updatedActivityBuilder.build();
+            writeExecution(input.execution_id, updatedActivity);
+        } catch (IOException | DatastoreException e) {
+            LOG.warning("Failed to store activity data: " + e.getMessage());
+            // A atividade ficou como estava: os objetos acabados de carregar não são referidos
+            if (updatedActivity != null)
+                LargeProperties.cleanup(updatedActivity, activityEntity, ACTIVITY_LARGE_PROPERTIES);
+            return Response.serverError().entity("{\"error\":\"Failed to store activity data.\"}").build();
+        }
+        LargeProperties.cleanup(activityEntity, updatedActivity, ACTIVITY_LARGE_PROPERTIES);
 
         JsonObject response = new JsonObject();
         response.addProperty("message", "✅ Added info to activity " + input.activity_id);
@@ -629,12 +657,330 @@ public class ExecutionSheetResource {
         return Response.ok(g.toJson(response)).build();
     }
 
+    private static final int SYNC_MAX_EVENTS = 500;
+    // Eventos aplicados por transação (cada evento escreve no máximo 3 entidades)
+    private static final int SYNC_EVENTS_PER_TXN = 100;
+
+    @POST
+    @Path("/sync")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response syncFieldEvents(@CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader,
+            SyncEventsRequest input) {
+
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid session");
+
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token");
+
+        String role = jwt.getClaim("role").asString();
+        String user = jwt.getSubject();
+
+        if (!Roles.PO.equalsIgnoreCase(role))
+            return forbidden("Only PO can sync field events");
+
+        if (input == null || input.events == null || input.events.isEmpty())
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("{\"error\":\"Missing events\"}").build();
+        if (input.events.size() > SYNC_MAX_EVENTS)
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity("{\"error\":\"At most " + SYNC_MAX_EVENTS + " events per request\"}").build();
+
+        int n = input.events.size();
+        JsonObject[] outcomes = new JsonObject[n];
+
+        // Agrupar por folha de execução (entity group), mantendo a ordem original
+        Map<String, List<Integer>> byExecution = new LinkedHashMap<>();
+        Set<String> seenIds = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            SyncEventsRequest.FieldEvent ev = input.events.get(i);
+            String problem = validateSyncEvent(ev);
+            if (problem != null) {
+                outcomes[i] = syncOutcome(ev == null ? null : ev.event_id, "rejected", problem, null);
+                continue;
+            }
+            if (!seenIds.add(ev.execution_id + "/" + ev.event_id)) {
+                outcomes[i] = syncOutcome(ev.event_id, "duplicate", "Repeated in the same batch", null);
+                continue;
+            }
+            byExecution.computeIfAbsent(ev.execution_id, k -> new ArrayList<>()).add(i);
+        }
+
+        for (Map.Entry<String, List<Integer>> group : byExecution.entrySet())
+            applySyncGroup(user, group.getKey(), group.getValue(), input.events, outcomes);
+
+        int applied = 0, duplicates = 0, rejected = 0, failed = 0;
+        JsonArray results = new JsonArray();
+        for (JsonObject outcome : outcomes) {
+            switch (outcome.get("status").getAsString()) {
+                case "applied" -> applied++;
+                case "duplicate" -> duplicates++;
+                case "failed" -> failed++;
+                default -> rejected++;
+            }
+            results.add(outcome);
+        }
+
+        JsonObject response = new JsonObject();
+        response.addProperty("applied", applied);
+        response.addProperty("duplicates", duplicates);
+        response.addProperty("rejected", rejected);
+        response.addProperty("failed", failed);
+        response.add("results", results);
+        return Response.ok(g.toJson(response)).build();
+    }
+
+    private void applySyncGroup(String user, String executionId, List<Integer> indices,
+            List<SyncEventsRequest.FieldEvent> events, JsonObject[] outcomes) {
+        PathElement execSheetAncestor = PathElement.of("ExecutionSheet", executionId);
+        Key execKey = datastore.newKeyFactory().setKind("ExecutionSheet").newKey(executionId);
+
+        if (datastore.get(execKey) == null) {
+            for (int i : indices)
+                outcomes[i] = syncOutcome(events.get(i).event_id, "rejected", "Execution sheet not found", null);
+            return;
+        }
+
+        for (int from = 0; from < indices.size(); from += SYNC_EVENTS_PER_TXN) {
+            List<Integer> chunk = indices.subList(from, Math.min(from + SYNC_EVENTS_PER_TXN, indices.size()));
+            applySyncChunk(user, execSheetAncestor, chunk, events, outcomes);
+        }
+    }
+
+    private void applySyncChunk(String user, PathElement execSheetAncestor, List<Integer> chunk,
+            List<SyncEventsRequest.FieldEvent> events, JsonObject[] outcomes) {
+        Map<Key, Entity> working = new HashMap<>();
+        Map<Key, Entity> before = new HashMap<>();
+        // Versões de atividades criadas neste lote e substituídas por um evento seguinte (ex.: dois ADD_INFO)
+        List<Entity> superseded = new ArrayList<>();
+        Transaction txn = datastore.newTransaction();
+        try {
+            // Pré-carregar numa só leitura todas as entidades que os eventos referem, incluindo o índice de
+            // deduplicação (uma entidade SyncEvent por event_id): lido na transação, um lote repetido em
+            // paralelo falha no commit em vez de ser aplicado duas vezes
+            Set<Key> keys = new LinkedHashSet<>();
+            for (int i : chunk) {
+                SyncEventsRequest.FieldEvent ev = events.get(i);
+                keys.add(syncEventKey(execSheetAncestor, ev.event_id));
+                keys.add(polyOpKey(execSheetAncestor, ev));
+                if (ev.activity_id != null)
+                    keys.add(activityKey(execSheetAncestor, ev.activity_id));
+            }
+            for (Key k : keys)
+                working.put(k, null);
+            txn.get(keys.toArray(Key[]::new)).forEachRemaining(e -> working.put(e.getKey(), e));
+            before.putAll(working);
+
+            Set<Key> dirty = new LinkedHashSet<>();
+            for (int i : chunk) {
+                SyncEventsRequest.FieldEvent ev = events.get(i);
+                Key markerKey = syncEventKey(execSheetAncestor, ev.event_id);
+                Entity previous = working.get(markerKey);
+                if (previous != null) {
+                    String activityId = previous.contains("activity_id") ? previous.getString("activity_id") : null;
+                    outcomes[i] = syncOutcome(ev.event_id, "duplicate", "Already applied", activityId);
+                    continue;
+                }
+                Key activityKey = ev.activity_id != null ? activityKey(execSheetAncestor, ev.activity_id) : null;
+                Entity prior = activityKey != null ? working.get(activityKey) : null;
+                outcomes[i] = applySyncEvent(user, execSheetAncestor, ev, working, dirty);
+                if (prior != null && prior != before.get(activityKey) && working.get(activityKey) != prior)
+                    superseded.add(prior);
+                if ("applied".equals(outcomes[i].get("status").getAsString())) {
+                    Entity.Builder marker = Entity.newBuilder(markerKey)
+                            .set("type", ev.type)
+                            .set("operator_username", user)
+                            .set("applied_at", System.currentTimeMillis());
+                    if (outcomes[i].has("activity_id"))
+                        marker.set("activity_id", outcomes[i].get("activity_id").getAsString());
+                    working.put(markerKey, marker.build());
+                    dirty.add(markerKey);
+                }
+            }
+
+            if (!dirty.isEmpty()) {
+                txn.put(dirty.stream().map(working::get).toArray(Entity[]::new));
+                EntityVersions.bump(txn, executionVersionKey(execSheetAncestor.getName()));
+            }
+            txn.commit();
+            // Objetos que deixaram de ser referidos: os da versão anterior e os das versões intermédias
+            for (Key k : dirty) {
+                if ("ExecutionActivity".equals(k.getKind()))
+                    LargeProperties.cleanup(before.get(k), working.get(k), ACTIVITY_LARGE_PROPERTIES);
+            }
+            for (Entity e : superseded)
+                LargeProperties.cleanup(e, working.get(e.getKey()), ACTIVITY_LARGE_PROPERTIES);
+        } catch (Exception e) {
+            LOG.warning("[SYNC] Failed to apply events for " + execSheetAncestor.getName() + ": " + e.getMessage());
+            for (int i : chunk)
+                outcomes[i] = syncOutcome(events.get(i).event_id, "failed", "Not applied, retry later", null);
+            // Nada ficou escrito: os objetos carregados por este lote não são referidos por ninguém
+            for (Entity v : superseded)
+                LargeProperties.cleanup(v, before.get(v.getKey()), ACTIVITY_LARGE_PROPERTIES);
+            for (Map.Entry<Key, Entity> w : working.entrySet()) {
+                if ("ExecutionActivity".equals(w.getKey().getKind()) && w.getValue() != before.get(w.getKey()))
+                    LargeProperties.cleanup(w.getValue(), before.get(w.getKey()), ACTIVITY_LARGE_PROPERTIES);
+            }
+        } finally {
+            if (txn.isActive())
+                txn.rollback();
+        }
+    }
+
+    private JsonObject applySyncEvent(String user, PathElement execSheetAncestor, SyncEventsRequest.FieldEvent ev,
+            Map<Key, Entity> working, Set<Key> dirty) throws IOException {
+        String when = ev.recorded_at != null ? ev.recorded_at : LocalDateTime.now().toString();
+
+        Key polyOpKey = polyOpKey(execSheetAncestor, ev);
+        Entity polyOp = working.get(polyOpKey);
+        if (polyOp == null)
+            return syncOutcome(ev.event_id, "rejected", "Exec_Poly-Op entity not found", null);
+        if (!user.equals(polyOp.contains("operator_username") ? polyOp.getString("operator_username") : null))
+            return syncOutcome(ev.event_id, "rejected", "Operation " + ev.operation_code + " not assigned to you.",
+                    null);
+
+        switch (ev.type) {
+            case SyncEventsRequest.START_ACTIVITY -> {
+                String activityId = ev.activity_id != null ? ev.activity_id : UUID.randomUUID().toString();
+                Key activityKey = activityKey(execSheetAncestor, activityId);
+                if (working.get(activityKey) != null)
+                    return syncOutcome(ev.event_id, "rejected", "Activity already exists", activityId);
+
+                working.put(activityKey, Entity.newBuilder(activityKey)
+                        .set("execution_id", execSheetAncestor.getName())
+                        .set("polygon_id", ev.polygon_id)
+                        .set("operation_code", ev.operation_code)
+                        .set("operator_username", user)
+                        .set("start_time", when)
+                        .set("status", "em_execucao")
+                        .build());
+                dirty.add(activityKey);
+
+                List<String> activities = new ArrayList<>();
+                if (polyOp.contains("activities")) {
+                    try {
+                        List<String> existing = g.fromJson(polyOp.getString("activities"),
+                                new TypeToken<List<String>>() {
+                                }.getType());
+                        if (existing != null)
+                            activities = existing;
+                    } catch (Exception ex) {
+                        LOG.warning("⚠️ Failed to parse existing activities list: " + ex.getMessage());
+                    }
+                }
+                activities.add(activityId);
+                working.put(polyOpKey, Entity.newBuilder(polyOp)
+                        .set("status", "em_execucao")
+                        .set("starting_date", when)
+                        .set("last_activity_date", when)
+                        .set("activities", g.toJson(activities))
+                        .build());
+                dirty.add(polyOpKey);
+                return syncOutcome(ev.event_id, "applied", "Started activity", activityId);
+            }
+            case SyncEventsRequest.STOP_ACTIVITY -> {
+                Key activityKey = activityKey(execSheetAncestor, ev.activity_id);
+                Entity activity = working.get(activityKey);
+                String problem = checkSyncActivity(user, activity, "em_execucao", "Activity is not running.");
+                if (problem != null)
+                    return syncOutcome(ev.event_id, "rejected", problem, ev.activity_id);
+
+                String day = when.length() >= 10 ? when.substring(0, 10) : LocalDate.now().toString();
+                working.put(activityKey, Entity.newBuilder(activity)
+                        .set("end_time", when)
+                        .set("status", "executado")
+                        .build());
+                working.put(polyOpKey, Entity.newBuilder(polyOp)
+                        .set("finishing_date", day)
+                        .set("last_activity_date", day)
+                        .build());
+                dirty.add(activityKey);
+                dirty.add(polyOpKey);
+                return syncOutcome(ev.event_id, "applied", "Stopped activity", ev.activity_id);
+            }
+            case SyncEventsRequest.ADD_INFO -> {
+                Key activityKey = activityKey(execSheetAncestor, ev.activity_id);
+                Entity activity = working.get(activityKey);
+                String problem = checkSyncActivity(user, activity, "executado", "Activity is not completed.");
+                if (problem != null)
+                    return syncOutcome(ev.event_id, "rejected", problem, ev.activity_id);
+
+                Entity.Builder updated = Entity.newBuilder(activity);
+                if (ev.observations != null)
+                    updated.set("observations", ev.observations);
+                // Tal como no /addInfo, a lista enviada substitui a guardada
+                if (ev.photo_urls != null && !ev.photo_urls.isEmpty())
+                    LargeProperties.set(updated, activityKey, "photo_urls", g.toJson(ev.photo_urls));
+                if (ev.tracks != null && !ev.tracks.isEmpty())
+                    LargeProperties.set(updated, activityKey, "gpx_track", g.toJson(ev.tracks.get(0)));
+                working.put(activityKey, updated.build());
+                dirty.add(activityKey);
+                return syncOutcome(ev.event_id, "applied", "Added info to activity", ev.activity_id);
+            }
+            default -> {
+                return syncOutcome(ev.event_id, "rejected", "Unknown event type " + ev.type, null);
+            }
+        }
+    }
+
+    private String validateSyncEvent(SyncEventsRequest.FieldEvent ev) {
+        if (ev == null || ev.event_id == null || ev.event_id.isEmpty())
+            return "Missing event_id";
+        if (ev.type == null || !Set.of(SyncEventsRequest.START_ACTIVITY, SyncEventsRequest.STOP_ACTIVITY,
+                SyncEventsRequest.ADD_INFO).contains(ev.type))
+            return "Unknown event type " + ev.type;
+        if (ev.execution_id == null || ev.polygon_id == null || ev.operation_code == null)
+            return "Missing execution_id, polygon_id or operation_code";
+        if (!SyncEventsRequest.START_ACTIVITY.equals(ev.type) && ev.activity_id == null)
+            return "Missing activity_id";
+        return null;
+    }
+
+    private String checkSyncActivity(String user, Entity activity, String expectedStatus, String statusMessage) {
+        if (activity == null)
+            return "Activity entity not found";
+        if (!user.equals(activity.getString("operator_username")))
+            return "Activity not assigned to you.";
+        if (!expectedStatus.equals(activity.getString("status")))
+            return statusMessage;
+        return null;
+    }
+
+    private Key polyOpKey(PathElement execSheetAncestor, SyncEventsRequest.FieldEvent ev) {
+        String compositeKey = execSheetAncestor.getName() + ":" + ev.polygon_id + ":" + ev.operation_code;
+        return datastore.newKeyFactory().setKind("Exec_Poly-Op").addAncestor(execSheetAncestor)
+                .newKey(compositeKey);
+    }
+
+    private Key activityKey(PathElement execSheetAncestor, String activityId) {
+        return datastore.newKeyFactory().setKind("ExecutionActivity").addAncestor(execSheetAncestor)
+                .newKey(activityId);
+    }
+
+    private Key syncEventKey(PathElement execSheetAncestor, String eventId) {
+        return datastore.newKeyFactory().setKind("SyncEvent").addAncestor(execSheetAncestor).newKey(eventId);
+    }
+
+    private JsonObject syncOutcome(String eventId, String status, String message, String activityId) {
+        JsonObject outcome = new JsonObject();
+        outcome.addProperty("event_id", eventId);
+        outcome.addProperty("status", status);
+        outcome.addProperty("message", message);
+        if (activityId != null)
+            outcome.addProperty("activity_id", activityId);
+        return outcome;
+    }
+
     @GET
     @Path("/getExecution/{executionId}")
     @Produces(MediaType.APPLICATION_JSON)
     public Response getExecution(
             @CookieParam("session::apdc") Cookie cookie,
             @HeaderParam("Authorization") String authHeader,
+            @Context Request request,
             @PathParam("executionId") String executionId) {
 
         String token = extractJWT(cookie, authHeader);
@@ -655,6 +1001,13 @@ public class ExecutionSheetResource {
         }
 
         try {
+            // A versão é lida antes dos dados: se o cliente já tem esta versão não é preciso o fan-out
+            EntityTag etag = EntityVersions.etag("exec-" + executionId,
+                    EntityVersions.current(datastore, executionVersionKey(executionId)));
+            Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+            if (notModified != null)
+                return notModified.cacheControl(REVALIDATE).build();
+
             Key execKey = datastore.newKeyFactory().setKind("ExecutionSheet").newKey(executionId);
             Entity execEntity = datastore.get(execKey);
             if (execEntity == null) {
@@ -728,10 +1081,14 @@ public class ExecutionSheetResource {
                                 filters.subList(1, filters.size()).toArray(new StructuredQuery.Filter[0])))
                         .build();
 
-                QueryResults<Entity> activityResults = datastore.run(activityQuery);
+                List<Entity> activityEntities = new ArrayList<>();
+                datastore.run(activityQuery).forEachRemaining(activityEntities::add);
+                // Tracks e fotos que estão no Cloud Storage são lidos em paralelo
+                Map<Key, String> gpxTracks = LargeProperties.getAll(activityEntities, "gpx_track");
+                Map<Key, String> photoUrls = LargeProperties.getAll(activityEntities, "photo_urls");
                 JsonArray activities = new JsonArray();
-                while (activityResults.hasNext()) {
-                    Entity a = activityResults.next();
+                for (Entity a : activityEntities) {
+                    String gpxTrack = gpxTracks.get(a.getKey());
                     JsonObject act = new JsonObject();
 
                     act.addProperty("activity_id", a.getKey().getName());
@@ -741,13 +1098,12 @@ public class ExecutionSheetResource {
                     act.addProperty("start_time", a.contains("start_time") ? a.getString("start_time") : "");
                     act.addProperty("end_time", a.contains("end_time") ? a.getString("end_time") : "");
                     act.addProperty("observations", a.contains("observations") ? a.getString("observations") : "");
-                    act.addProperty("gpx_track", a.contains("gpx_track") ? a.getString("gpx_track") : "");
-                    act.addProperty("photo_urls",
-                            a.contains("photo_urls") ? a.getString("photo_urls") : "[]");
+                    act.addProperty("gpx_track", gpxTrack != null ? gpxTrack : "");
+                    act.addProperty("photo_urls", photoUrls.getOrDefault(a.getKey(), "[]"));
 
-                    if (a.contains("gpx_track")) {
+                    if (gpxTrack != null) {
                         try {
-                            ExecutionSheetData.Track[] tracks = g.fromJson(a.getString("gpx_track"),
+                            ExecutionSheetData.Track[] tracks = g.fromJson(gpxTrack,
                                     ExecutionSheetData.Track[].class);
                             act.add("tracks", g.toJsonTree(tracks));
                         } catch (Exception err) {
@@ -765,7 +1121,7 @@ public class ExecutionSheetResource {
             }
 
             result.add("polygon_operations", polygonOperations);
-            return Response.ok(g.toJson(result)).build();
+            return Response.ok(g.toJson(result)).tag(etag).cacheControl(REVALIDATE).build();
 
         } catch (Exception ex) {
             LOG.severe("Error in getExecution: " + ex.getMessage());
@@ -806,11 +1162,18 @@ public class ExecutionSheetResource {
                         StructuredQuery.PropertyFilter.eq("polygon_id", polygonId)))
                 .build();
 
-        QueryResults<Entity> results = datastore.run(query);
+        List<Entity> entities = new ArrayList<>();
+        datastore.run(query).forEachRemaining(entities::add);
+        Map<Key, String> gpxTracks;
+        try {
+            gpxTracks = LargeProperties.getAll(entities, "gpx_track");
+        } catch (IOException ex) {
+            LOG.warning("Failed to load activity tracks: " + ex.getMessage());
+            return Response.serverError().entity("{\"error\":\"Failed to load activity data.\"}").build();
+        }
         JsonArray activities = new JsonArray();
 
-        while (results.hasNext()) {
-            Entity e = results.next();
+        for (Entity e : entities) {
             JsonObject obj = new JsonObject();
             obj.addProperty("activity_id", e.getKey().getName());
             obj.addProperty("operation_code", opCode);
@@ -820,10 +1183,10 @@ public class ExecutionSheetResource {
             obj.addProperty("finishing_date", e.contains("end_time") ? e.getString("end_time") : null);
             obj.addProperty("observations", e.contains("observations") ? e.getString("observations") : null);
 
-            if (e.contains("gpx_track")) {
+            if (gpxTracks.containsKey(e.getKey())) {
                 try {
                     obj.add("tracks", g.toJsonTree(
-                            g.fromJson(e.getString("gpx_track"), ExecutionSheetData.Track[].class)));
+                            g.fromJson(gpxTracks.get(e.getKey()), ExecutionSheetData.Track[].class)));
                 } catch (Exception ignore) {
                 }
             }
@@ -865,40 +1228,19 @@ public class ExecutionSheetResource {
             return Response.status(Response.Status.NOT_FOUND)
                     .entity("{\"error\":\"Execution sheet not found\"}").build();
 
-        if (!execSheet.contains("operations") || !execSheet.getString("operations").contains(opCode))
-            return Response.status(Response.Status.NOT_FOUND)
-                    .entity("{\"error\":\"Operation code not found in execution sheet\"}").build();
-
-        JsonArray operationsArray = JsonParser.parseString(execSheet.getString("operations")).getAsJsonArray();
-        ExecutionSheetData.Operation operation = null;
-        double totalArea = 0.0;
-        double executedArea = 0.0;
-        String finishDate = null;
-        String observations = null;
-        String startDate = null;
-
-        for (JsonElement opElem : operationsArray) {
-            JsonObject opObj = opElem.getAsJsonObject();
-            if (opObj.has("operation_code") && opObj.get("operation_code").getAsString().equals(opCode)) {
-                operation = g.fromJson(opObj, ExecutionSheetData.Operation.class);
-                if (opObj.has("area_ha_executed"))
-                    executedArea = opObj.get("area_ha_executed").getAsDouble();
-                if (opObj.has("area_perc") && opObj.get("area_perc").getAsDouble() > 0)
-                    totalArea = executedArea * 100 / opObj.get("area_perc").getAsDouble();
-                if (opObj.has("finishing_date"))
-                    finishDate = opObj.get("finishing_date").getAsString();
-                if (opObj.has("observations"))
-                    observations = opObj.get("observations").getAsString();
-                if (opObj.has("starting_date"))
-                    startDate = opObj.get("starting_date").getAsString();
-                break;
-            }
-        }
-
+        ExecutionSheetData.SheetOperation operation = ExecutionSheetModel.of(execSheet).operation(opCode);
         if (operation == null)
             return Response.status(Response.Status.NOT_FOUND)
                     .entity("{\"error\":\"Operation code not found in execution sheet operations\"}").build();
 
+        double executedArea = operation.area_ha_executed != null ? operation.area_ha_executed : 0.0;
+        double totalArea = operation.area_perc != null && operation.area_perc > 0
+                ? executedArea * 100 / operation.area_perc
+                : 0.0;
+        String finishDate = operation.finishing_date;
+        String observations = operation.observations;
+        String startDate = operation.starting_date;
+
         // fallback para start_date se não estiver no JSON
         if (startDate == null)
             startDate = execSheet.contains("starting_date") ? execSheet.getString("starting_date") : null;
@@ -912,12 +1254,19 @@ public class ExecutionSheetResource {
                         StructuredQuery.PropertyFilter.eq("operation_code", opCode)))
                 .build();
 
-        QueryResults<Entity> results = datastore.run(query);
+        List<Entity> entities = new ArrayList<>();
+        datastore.run(query).forEachRemaining(entities::add);
+        Map<Key, String> gpxTracks;
+        try {
+            gpxTracks = LargeProperties.getAll(entities, "gpx_track");
+        } catch (IOException ex) {
+            LOG.warning("Failed to load activity tracks: " + ex.getMessage());
+            return Response.serverError().entity("{\"error\":\"Failed to load activity data.\"}").build();
+        }
         List<JsonObject> activities = new ArrayList<>();
         int total = 0, completed = 0;
 
-        while (results.hasNext()) {
-            Entity e = results.next();
+        for (Entity e : entities) {
             total++;
             if (e.contains("status") && "executado".equalsIgnoreCase(e.getString("status")))
                 completed++;
@@ -931,10 +1280,10 @@ public class ExecutionSheetResource {
             act.addProperty("finishing_date", e.contains("end_time") ? e.getString("end_time") : null);
             act.addProperty("observations", e.contains("observations") ? e.getString("observations") : null);
 
-            if (e.contains("gpx_track")) {
+            if (gpxTracks.containsKey(e.getKey())) {
                 try {
                     act.add("tracks", g.toJsonTree(
-                            g.fromJson(e.getString("gpx_track"), ExecutionSheetData.Track[].class)));
+                            g.fromJson(gpxTracks.get(e.getKey()), ExecutionSheetData.Track[].class)));
                 } catch (Exception ignore) {
                 }
             }
@@ -1010,36 +1359,32 @@ public class ExecutionSheetResource {
 
             // OPERATIONS
             JsonArray opsArray = new JsonArray();
-            JsonArray rawOps = JsonParser.parseString(execSheet.getString("operations")).getAsJsonArray();
 
-            for (JsonElement elem : rawOps) {
-                JsonObject rawOp = elem.getAsJsonObject();
-
-                if (!rawOp.has("operation_code") || !rawOp.has("area_ha")) {
-                    LOG.warning("[EXPORT] Skipping operation (missing code or area): " + rawOp);
+            for (ExecutionSheetData.SheetOperation rawOp : ExecutionSheetModel.of(execSheet).operations()) {
+                if (rawOp.area_ha == null) {
+                    LOG.warning("[EXPORT] Skipping operation (missing area): " + rawOp.operation_code);
                     continue;
                 }
 
                 JsonObject op = new JsonObject();
-                op.addProperty("operation_code", rawOp.get("operation_code").getAsString());
+                op.addProperty("operation_code", rawOp.operation_code);
 
                 // Reaproveita area_ha como area_ha_executed (simboliza área feita até agora)
-                op.addProperty("area_ha_executed", rawOp.get("area_ha").getAsDouble());
+                op.addProperty("area_ha_executed", rawOp.area_ha);
 
                 // Default area_perc (ex: 100%) — podes adaptar conforme o modelo
-                double area = rawOp.get("area_ha").getAsDouble();
                 double perc = 100.0;
                 op.addProperty("area_perc", perc);
 
                 // Usa data estimada ou coloca uma por defeito
-                if (rawOp.has("expected_finish_date"))
-                    op.addProperty("finishing_date", rawOp.get("expected_finish_date").getAsString());
+                if (rawOp.expected_finish_date != null)
+                    op.addProperty("finishing_date", rawOp.expected_finish_date);
 
                 // Usa estimativa de arranque default (podes depois parametrizar isto)
                 op.addProperty("starting_date", "2025-06-01");
 
-                if (rawOp.has("observations"))
-                    op.addProperty("observations", rawOp.get("observations").getAsString());
+                if (rawOp.observations != null)
+                    op.addProperty("observations", rawOp.observations);
 
                 opsArray.add(op);
             }
@@ -1090,20 +1435,18 @@ public class ExecutionSheetResource {
                                     StructuredQuery.PropertyFilter.eq("operation_code", opCode)))
                             .build();
 
-                    QueryResults<Entity> activities = datastore.run(actQuery);
-                    while (activities.hasNext()) {
-                        Entity act = activities.next();
-                        if (act.contains("gpx_track")) {
-                            try {
-                                JsonArray actTracks = g.toJsonTree(
-                                        g.fromJson(act.getString("gpx_track"),
-                                                ExecutionSheetData.Track[].class))
-                                        .getAsJsonArray();
-                                for (JsonElement t : actTracks)
-                                    tracks.add(t);
-                            } catch (Exception ex) {
-                                LOG.warning("Failed to parse gpx_track: " + ex.getMessage());
-                            }
+                    List<Entity> activities = new ArrayList<>();
+                    datastore.run(actQuery).forEachRemaining(activities::add);
+                    for (String gpxTrack : LargeProperties.getAll(activities, "gpx_track").values()) {
+                        try {
+                            JsonArray actTracks = g.toJsonTree(
+                                    g.fromJson(gpxTrack,
+                                            ExecutionSheetData.Track[].class))
+                                    .getAsJsonArray();
+                            for (JsonElement t : actTracks)
+                                tracks.add(t);
+                        } catch (Exception ex) {
+                            LOG.warning("Failed to parse gpx_track: " + ex.getMessage());
                         }
                     }
 
@@ -1168,22 +1511,10 @@ public class ExecutionSheetResource {
                     .entity("{\"error\":\"Execution sheet not found\"}").build();
         }
 
-        Type listType = new TypeToken<List<ExecutionSheetData.PolygonOperations>>() {
-        }.getType();
-        List<ExecutionSheetData.PolygonOperations> sheetData = g.fromJson(execSheet.getString("polygons_operations"),
-                listType);
-
-        ExecutionSheetData.PolygonOperation result = null;
-        for (ExecutionSheetData.PolygonOperations polyOps : sheetData) {
-            for (ExecutionSheetData.PolygonOperation op : polyOps.operations) {
-                if (op.operation_code.equalsIgnoreCase(operationCode)) {
-                    result = op;
-                    break;
-                }
-            }
-            if (result != null)
-                break;
-        }
+        ExecutionSheetData.PolygonOperation result = ExecutionSheetModel.of(execSheet)
+                .polygonOperation(polygonId, operationCode);
+        if (result == null)
+            result = loadPolygonOperation(worksheetId, polygonId, operationCode);
 
         if (result == null) {
             return Response.status(Response.Status.NOT_FOUND)
@@ -1224,6 +1555,57 @@ public class ExecutionSheetResource {
         return Response.ok(g.toJson(response)).build();
     }
 
+    // Lê a operação do polígono a partir da Exec_Poly-Op e das suas atividades (um get + um multi-get)
+    private ExecutionSheetData.PolygonOperation loadPolygonOperation(String executionId, String polygonId,
+            String operationCode) {
+        PathElement execSheetAncestor = PathElement.of("ExecutionSheet", executionId);
+        Key polyOpKey = datastore.newKeyFactory().setKind("Exec_Poly-Op").addAncestor(execSheetAncestor)
+                .newKey(executionId + ":" + polygonId + ":" + operationCode);
+        Entity e = datastore.get(polyOpKey);
+        if (e == null)
+            return null;
+
+        ExecutionSheetData.PolygonOperation op = new ExecutionSheetData.PolygonOperation();
+        op.operation_code = e.getString("operation_code");
+        op.operation_id = e.contains("operation_id") ? (int) e.getLong("operation_id") : 0;
+        op.status = e.contains("status") ? e.getString("status") : null;
+        op.operator_username = e.contains("operator_username") ? e.getString("operator_username") : null;
+        op.starting_date = e.contains("starting_date") ? e.getString("starting_date") : null;
+        op.finishing_date = e.contains("finishing_date") ? e.getString("finishing_date") : null;
+        op.last_activity_date = e.contains("last_activity_date") ? e.getString("last_activity_date") : null;
+        op.observations = e.contains("observations") ? e.getString("observations") : null;
+
+        List<String> activityIds = new ArrayList<>();
+        if (e.contains("activities")) {
+            try {
+                List<String> ids = g.fromJson(e.getString("activities"), new TypeToken<List<String>>() {
+                }.getType());
+                if (ids != null)
+                    activityIds = ids;
+            } catch (Exception ex) {
+                LOG.warning("⚠️ Failed to parse existing activities list: " + ex.getMessage());
+            }
+        }
+        op.activities = new ArrayList<>();
+        if (!activityIds.isEmpty()) {
+            List<Key> activityKeys = new ArrayList<>();
+            for (String id : activityIds)
+                activityKeys.add(datastore.newKeyFactory().setKind("ExecutionActivity")
+                        .addAncestor(execSheetAncestor).newKey(id));
+            datastore.get(activityKeys).forEachRemaining(a -> {
+                ExecutionSheetData.Activity activity = new ExecutionSheetData.Activity();
+                activity.activity_id = a.getKey().getName();
+                activity.operator_username = a.contains("operator_username") ? a.getString("operator_username")
+                        : null;
+                activity.start_time = a.contains("start_time") ? a.getString("start_time") : null;
+                activity.end_time = a.contains("end_time") ? a.getString("end_time") : null;
+                activity.observations = a.contains("observations") ? a.getString("observations") : null;
+                op.activities.add(activity);
+            });
+        }
+        return op;
+    }
+
     @POST
     @Path("/editOperation")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -1250,41 +1632,48 @@ public class ExecutionSheetResource {
         }
 
         Key execKey = datastore.newKeyFactory().setKind("ExecutionSheet").newKey(input.execution_id);
-        Entity execSheet = datastore.get(execKey);
-        if (execSheet == null)
-            return Response.status(Response.Status.NOT_FOUND)
-                    .entity("{\"error\":\"Execution sheet not found\"}").build();
+        Transaction txn = datastore.newTransaction();
+        try {
+            Entity execSheet = txn.get(execKey);
+            if (execSheet == null)
+                return Response.status(Response.Status.NOT_FOUND)
+                        .entity("{\"error\":\"Execution sheet not found\"}").build();
 
-        // Atualizar a operação dentro do array
-        JsonArray operationsArray = JsonParser.parseString(execSheet.getString("operations")).getAsJsonArray();
-        boolean found = false;
-
-        for (JsonElement elem : operationsArray) {
-            JsonObject op = elem.getAsJsonObject();
-            if (op.get("operation_code").getAsString().equals(input.operation.operation_code)) {
-                if (input.operation.expected_duration_hours != null)
-                    op.addProperty("expected_duration_hours", input.operation.expected_duration_hours);
-                if (input.operation.expected_start_date != null)
-                    op.addProperty("expected_start_date", input.operation.expected_start_date);
-                if (input.operation.expected_finish_date != null)
-                    op.addProperty("expected_finish_date", input.operation.expected_finish_date);
-                if (input.operation.observations != null)
-                    op.addProperty("observations", input.operation.observations);
-                found = true;
-                break;
+            // Atualizar a operação dentro do modelo (cópia, o modelo em cache é partilhado)
+            ExecutionSheetModel model = ExecutionSheetModel.of(execSheet);
+            if (!model.hasOperation(input.operation.operation_code)) {
+                return Response.status(Response.Status.NOT_FOUND)
+                        .entity("{\"error\":\"Operation code not found in execution sheet.\"}").build();
             }
-        }
 
-        if (!found) {
-            return Response.status(Response.Status.NOT_FOUND)
-                    .entity("{\"error\":\"Operation code not found in execution sheet.\"}").build();
-        }
+            List<ExecutionSheetData.SheetOperation> operations = new ArrayList<>();
+            for (ExecutionSheetData.SheetOperation existing : model.operations()) {
+                ExecutionSheetData.SheetOperation op = existing.copy();
+                if (op.operation_code.equals(input.operation.operation_code)) {
+                    if (input.operation.expected_duration_hours != null)
+                        op.expected_duration_hours = input.operation.expected_duration_hours;
+                    if (input.operation.expected_start_date != null)
+                        op.expected_start_date = input.operation.expected_start_date;
+                    if (input.operation.expected_finish_date != null)
+                        op.expected_finish_date = input.operation.expected_finish_date;
+                    if (input.operation.observations != null)
+                        op.observations = input.operation.observations;
+                }
+                operations.add(op);
+            }
 
-        Entity updated = Entity.newBuilder(execSheet)
-                .set("operations", operationsArray.toString()) // substitui array modificado
-                .build();
+            Entity updated = Entity.newBuilder(execSheet)
+                    .set("operations", ExecutionSheetModel.encodeOperations(operations)) // substitui array modificado
+                    .build();
 
-        datastore.put(updated);
+            txn.put(updated);
+            EntityVersions.bump(txn, EntityVersions.keyFor(execSheet.getKey()));
+            txn.commit();
+            ExecutionSheetModel.invalidate(input.execution_id);
+        } finally {
+            if (txn.isActive())
+                txn.rollback();
+        }
 
         JsonObject response = new JsonObject();
         response.addProperty("message", "Operation updated successfully.");
@@ -1447,21 +1836,7 @@ public class ExecutionSheetResource {
                     .entity("{\"error\":\"Execution sheet not found\"}").build();
         }
 
-        if (!execSheet.contains("operations") || !execSheet.getString("operations").contains(operationCode)) {
-            return Response.status(Response.Status.NOT_FOUND)
-                    .entity("{\"error\":\"Operation code not found in execution sheet\"}").build();
-        }
-
-        JsonArray operationsArray = JsonParser.parseString(execSheet.getString("operations")).getAsJsonArray();
-        JsonObject operation = null;
-        for (JsonElement opElem : operationsArray) {
-            JsonObject opObj = opElem.getAsJsonObject();
-            if (opObj.has("operation_code") && opObj.get("operation_code").getAsString().equals(operationCode)) {
-                operation = opObj;
-                break;
-            }
-        }
-
+        ExecutionSheetData.SheetOperation operation = ExecutionSheetModel.of(execSheet).operation(operationCode);
         if (operation == null) {
             return Response.status(Response.Status.NOT_FOUND)
                     .entity("{\"error\":\"Operation code not found in execution sheet operations\"}").build();
@@ -1470,13 +1845,9 @@ public class ExecutionSheetResource {
         JsonObject result = new JsonObject();
         result.addProperty("execution_id", executionId);
         result.addProperty("operation_code", operationCode);
-        result.addProperty("expected_duration_hours",
-                operation.has("expected_duration_hours") ? operation.get("expected_duration_hours").getAsString()
-                        : null);
-        result.addProperty("expected_finish_date",
-                operation.has("expected_finish_date") ? operation.get("expected_finish_date").getAsString() : null);
-        result.addProperty("observations",
-                operation.has("observations") ? operation.get("observations").getAsString() : null);
+        result.addProperty("expected_duration_hours", operation.expected_duration_hours);
+        result.addProperty("expected_finish_date", operation.expected_finish_date);
+        result.addProperty("observations", operation.observations);
 
         return Response.ok(result.toString()).build();
     }
@@ -1550,10 +1921,17 @@ public class ExecutionSheetResource {
                             StructuredQuery.PropertyFilter.eq("operator_username", operatorUsername)))
                     .build();
 
-            QueryResults<Entity> activityResults = datastore.run(activityQuery);
+            List<Entity> activityEntities = new ArrayList<>();
+            datastore.run(activityQuery).forEachRemaining(activityEntities::add);
+            Map<Key, String> gpxTracks;
+            try {
+                gpxTracks = LargeProperties.getAll(activityEntities, "gpx_track");
+            } catch (IOException ex) {
+                LOG.warning("Failed to load activity tracks: " + ex.getMessage());
+                return Response.serverError().entity("{\"error\":\"Failed to load activity data.\"}").build();
+            }
 
-            while (activityResults.hasNext()) {
-                Entity activity = activityResults.next();
+            for (Entity activity : activityEntities) {
                 JsonObject act = new JsonObject();
                 act.addProperty("activity_id", activity.getKey().getName());
                 act.addProperty("status", activity.getString("status"));
@@ -1564,10 +1942,10 @@ public class ExecutionSheetResource {
                 if (activity.contains("observations"))
                     act.addProperty("observations", activity.getString("observations"));
 
-                if (activity.contains("gpx_track")) {
+                if (gpxTracks.containsKey(activity.getKey())) {
                     try {
                         act.add("tracks", g.toJsonTree(
-                                g.fromJson(activity.getString("gpx_track"), ExecutionSheetData.Track[].class)));
+                                g.fromJson(gpxTracks.get(activity.getKey()), ExecutionSheetData.Track[].class)));
                     } catch (Exception ignore) {
                     }
                 }
@@ -1585,4 +1963,12 @@ public class ExecutionSheetResource {
         return Response.ok(g.toJson(resultArray)).build();
     }
 
+    // "private, no-cache": o cliente guarda a resposta mas revalida-a sempre com a ETag
+    private static CacheControl revalidate() {
+        CacheControl cc = new CacheControl();
+        cc.setPrivate(true);
+        cc.setNoCache(true);
+        cc.setNoTransform(false);
+        return cc;
+    }
 }
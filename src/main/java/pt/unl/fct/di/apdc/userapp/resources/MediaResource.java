@@ -1,49 +1,148 @@
 package pt.unl.fct.di.apdc.userapp.resources;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import com.google.cloud.storage.Blob;
-import com.google.cloud.storage.BlobId;
-import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
+import com.google.gson.JsonObject;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
+import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
 import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
 import jakarta.ws.rs.core.Response.Status;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStore;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
+import pt.unl.fct.di.apdc.userapp.util.storage.ObjectInfo;
+import pt.unl.fct.di.apdc.userapp.util.storage.ResumableUploads;
 
 @Path("/media")
 public class MediaResource {
 
+	// Objetos pedidos com ?generation=<etag atual> nunca mudam nesse URL
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	private static final String REVALIDATE = "public, max-age=0, must-revalidate";
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+	// Um buffer por thread do servidor, reutilizado entre pedidos
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
 	@GET
 	@Path("/download/{bucket}/{object}")
-	public Response downloadFile(@PathParam("bucket") String bucket, @PathParam("object") String object) {
+	public Response downloadFile(@PathParam("bucket") String bucket, @PathParam("object") String object,
+			@QueryParam("generation") String generation,
+			@HeaderParam("Range") String range,
+			@HeaderParam("If-Range") String ifRange,
+			@Context Request request) {
+
+		BlobStore store;
+		ObjectInfo info;
+		try {
+			store = BlobStores.get(bucket);
+			info = store.stat(object);
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		if (info == null)
+			return Response.status(Status.NOT_FOUND).build();
+
+		EntityTag etag = new EntityTag(info.etag);
+		Date lastModified = new Date(info.updated / 1000 * 1000);
+		String cacheControl = info.etag.equals(generation) ? IMMUTABLE : REVALIDATE;
+
+		// If-None-Match / If-Modified-Since: 304 sem corpo
+		Response.ResponseBuilder unchanged = request.evaluatePreconditions(lastModified, etag);
+		if (unchanged != null)
+			return unchanged.header("Cache-Control", cacheControl).header("Accept-Ranges", "bytes").build();
 
-		Storage storage = StorageOptions.getDefaultInstance().getService();
-		Blob blob = storage.get(BlobId.of(bucket, object));
+		long size = info.size;
+		long start = 0, length = size;
+		boolean partial = false;
+		// Se o objeto mudou desde o If-Range, vai o objeto todo
+		if (range != null && rangeStillValid(ifRange, info, lastModified)) {
+			Matcher m = RANGE.matcher(range.trim());
+			// Vários intervalos não são suportados: responde com o objeto todo
+			if (m.matches() && !(m.group(1).isEmpty() && m.group(2).isEmpty())) {
+				try {
+					if (m.group(1).isEmpty()) {
+						long suffix = Long.parseLong(m.group(2));
+						start = Math.max(0, size - suffix);
+					} else {
+						start = Long.parseLong(m.group(1));
+					}
+					long end = m.group(1).isEmpty() || m.group(2).isEmpty() ? size - 1
+							: Math.min(Long.parseLong(m.group(2)), size - 1);
+					if (start >= size || end < start)
+						return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+								.header("Content-Range", "bytes */" + size).build();
+					length = end - start + 1;
+					partial = true;
+				} catch (NumberFormatException e) {
+					return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+							.header("Content-Range", "bytes */" + size).build();
+				}
+			}
+		}
+
+		// Aberto antes de se enviarem os cabeçalhos, da mesma geração que o stat: o Content-Length tem de bater certo
+		InputStream opened;
+		try {
+			opened = store.open(info, start, length);
+			if (opened == null)
+				return Response.status(store.stat(object) == null ? Status.NOT_FOUND : Status.PRECONDITION_FAILED)
+						.build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
 
+		long count = length;
 		StreamingOutput stream = new StreamingOutput() {
 
 			@Override
 			public void write(OutputStream output) throws IOException {
-
-				// Download object to the output stream. See Google's documentation.
-				blob.downloadTo(output);
+				try (InputStream in = opened) {
+					byte[] buffer = BUFFER.get();
+					long remaining = count;
+					int n;
+					while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+						output.write(buffer, 0, n);
+						remaining -= n;
+					}
+				}
 				output.flush();
 			}
 		};
 
-		return Response.ok(stream)
-				.header("Content-Type", blob.getContentType())
-				.build();
+		Response.ResponseBuilder rb = (partial ? Response.status(Status.PARTIAL_CONTENT) : Response.ok())
+				.entity(stream)
+				.header("Content-Type", info.contentType)
+				.header("Content-Length", length)
+				.header("Accept-Ranges", "bytes")
+				.header("Cache-Control", cacheControl)
+				.tag(etag)
+				.lastModified(lastModified);
+		if (partial)
+			rb.header("Content-Range", "bytes " + start + "-" + (start + length - 1) + "/" + size);
+		return rb.build();
 	}
 
 	@POST
@@ -52,22 +151,163 @@ public class MediaResource {
 			@HeaderParam("Content-Type") String contentType,
 			@Context HttpServletRequest request) {
 
-		// Upload to Google Cloud Storage (see Google's documentation)
-		Storage storage = StorageOptions.getDefaultInstance().getService();
-		BlobId blobId = BlobId.of(bucket, object);
-		BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType(contentType).build();
 		// The following is deprecated since it is better to upload directly to GCS from
 		// the client
-		try (var inputStream = request.getInputStream();
-			 var writer = storage.writer(blobInfo)) {
-			byte[] buffer = new byte[8192];
-			int bytesRead;
-			while ((bytesRead = inputStream.read(buffer)) != -1) {
-				writer.write(java.nio.ByteBuffer.wrap(buffer, 0, bytesRead));
-			}
+		try (var inputStream = request.getInputStream()) {
+			BlobStores.get(bucket).upload(object, inputStream, contentType, false);
 			return Response.ok().build();
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	// Uploads retomáveis (ver ResumableUploads): criar sessão, PUT de blocos com offset, estado, completar
+
+	@POST
+	@Path("/uploads/{bucket}/{object}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response createUpload(@PathParam("bucket") String bucket, @PathParam("object") String object,
+			@HeaderParam("X-Upload-Content-Type") String contentType,
+			@HeaderParam("X-Upload-Content-Length") Long total) {
+		try {
+			ResumableUploads.Session session = ResumableUploads.create(BlobStores.get(bucket), object, contentType,
+					total);
+			JsonObject out = new JsonObject();
+			out.addProperty("upload_id", session.upload_id);
+			out.addProperty("committed", 0);
+			out.addProperty("max_chunk_bytes", ResumableUploads.MAX_CHUNK_BYTES);
+			return Response.status(Status.CREATED).entity(out.toString()).build();
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	@PUT
+	@Path("/uploads/{bucket}/{object}/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response uploadChunk(@PathParam("bucket") String bucket, @PathParam("object") String object,
+			@PathParam("id") String uploadId, @QueryParam("offset") Long offset,
+			@HeaderParam("Content-Length") Long length,
+			@Context HttpServletRequest request) {
+		if (offset == null || offset < 0)
+			return Response.status(Status.BAD_REQUEST).entity("{\"error\":\"Missing offset.\"}").build();
+		if (length != null && length > ResumableUploads.MAX_CHUNK_BYTES)
+			return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+					.entity("{\"error\":\"Chunks are limited to " + ResumableUploads.MAX_CHUNK_BYTES + " bytes.\"}")
+					.build();
+		try (var inputStream = request.getInputStream()) {
+			BlobStore store = BlobStores.get(bucket);
+			ResumableUploads.Session session = ResumableUploads.get(store, object, uploadId);
+			if (session == null)
+				return Response.status(Status.NOT_FOUND).entity("{\"error\":\"Upload session not found.\"}").build();
+			return committed(ResumableUploads.append(store, session, offset, inputStream));
+		} catch (ResumableUploads.OffsetMismatchException e) {
+			return offsetMismatch(e);
+		} catch (ResumableUploads.ChunkTooLargeException e) {
+			return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+					.entity("{\"error\":\"" + e.getMessage() + "\"}").build();
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	@GET
+	@Path("/uploads/{bucket}/{object}/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response uploadStatus(@PathParam("bucket") String bucket, @PathParam("object") String object,
+			@PathParam("id") String uploadId) {
+		try {
+			ResumableUploads.Session session = ResumableUploads.get(BlobStores.get(bucket), object, uploadId);
+			if (session == null)
+				return Response.status(Status.NOT_FOUND).entity("{\"error\":\"Upload session not found.\"}").build();
+			return committed(session.committed);
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	@POST
+	@Path("/uploads/{bucket}/{object}/{id}/complete")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response completeUpload(@PathParam("bucket") String bucket, @PathParam("object") String object,
+			@PathParam("id") String uploadId) {
+		try {
+			BlobStore store = BlobStores.get(bucket);
+			ResumableUploads.Session session = ResumableUploads.get(store, object, uploadId);
+			if (session == null)
+				return Response.status(Status.NOT_FOUND).entity("{\"error\":\"Upload session not found.\"}").build();
+			ResumableUploads.complete(store, session);
+			JsonObject out = new JsonObject();
+			out.addProperty("message", "Upload completed.");
+			out.addProperty("size", session.committed);
+			out.addProperty("url", store.publicUrl(object));
+			return Response.ok(out.toString()).build();
+		} catch (ResumableUploads.OffsetMismatchException e) {
+			return offsetMismatch(e);
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
 		} catch (IOException e) {
 			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
 		}
 	}
+
+	@DELETE
+	@Path("/uploads/{bucket}/{object}/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response abortUpload(@PathParam("bucket") String bucket, @PathParam("object") String object,
+			@PathParam("id") String uploadId) {
+		try {
+			BlobStore store = BlobStores.get(bucket);
+			if (ResumableUploads.get(store, object, uploadId) == null)
+				return Response.status(Status.NOT_FOUND).entity("{\"error\":\"Upload session not found.\"}").build();
+			ResumableUploads.abort(store, uploadId);
+			return Response.ok("{\"message\":\"Upload cancelled.\"}").build();
+		} catch (IllegalArgumentException e) {
+			return Response.status(Status.BAD_REQUEST).build();
+		} catch (IOException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+	}
+
+	/**
+	 * If-Range: com uma ETag forte, vale se for a atual; com uma data HTTP, se for exatamente a data de modificação
+	 * (ao segundo). Uma ETag fraca ou um valor inválido nunca valem: vai o objeto todo.
+	 */
+	private static boolean rangeStillValid(String ifRange, ObjectInfo info, Date lastModified) {
+		if (ifRange == null)
+			return true;
+		String value = ifRange.trim();
+		if (value.startsWith("W/"))
+			return false;
+		if (value.startsWith("\""))
+			return value.equals("\"" + info.etag + "\"");
+		try {
+			long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+			return date == lastModified.getTime() / 1000;
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	private static Response committed(long committed) {
+		JsonObject out = new JsonObject();
+		out.addProperty("committed", committed);
+		return Response.ok(out.toString()).build();
+	}
+
+	// 409 com o offset a partir do qual o cliente deve continuar
+	private static Response offsetMismatch(ResumableUploads.OffsetMismatchException e) {
+		JsonObject out = new JsonObject();
+		out.addProperty("error", e.getMessage());
+		out.addProperty("committed", e.committed);
+		return Response.status(Status.CONFLICT).entity(out.toString()).build();
+	}
 }
@@ -16,9 +16,6 @@ import com.google.cloud.datastore.DatastoreOptions;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.Transaction;
-import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageOptions;
 import com.google.gson.Gson;
 
 import jakarta.ws.rs.Consumes;
@@ -29,6 +26,8 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import pt.unl.fct.di.apdc.userapp.util.AccountData;
 import pt.unl.fct.di.apdc.userapp.util.Roles;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStore;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
 
 @Path("/register")
 public class RegisterResource {
@@ -69,24 +68,11 @@ public class RegisterResource {
             String photoUrl;
             if (profilePictureStream != null && fileDetail != null) {
                 try {
-                    String bucketName = "alien-iterator-460014-a0.appspot.com";
                     String fileName = "profile_pictures/" + data.username + "_" + UUID.randomUUID() + "_"
                             + fileDetail.getFileName();
-                    Storage storage = StorageOptions.getDefaultInstance().getService();
-                    BlobInfo blobInfo = BlobInfo.newBuilder(bucketName, fileName)
-                            .setContentType(fileDetail.getType())
-                            .setAcl(java.util.Arrays.asList(
-                                    com.google.cloud.storage.Acl.of(com.google.cloud.storage.Acl.User.ofAllUsers(),
-                                            com.google.cloud.storage.Acl.Role.READER)))
-                            .build();
-                    try (java.nio.channels.WritableByteChannel channel = storage.writer(blobInfo)) {
-                        byte[] buffer = new byte[8192];
-                        int bytesRead;
-                        while ((bytesRead = profilePictureStream.read(buffer)) != -1) {
-                            channel.write(java.nio.ByteBuffer.wrap(buffer, 0, bytesRead));
-                        }
-                    }
-                    photoUrl = String.format("https://storage.googleapis.com/%s/%s", bucketName, fileName);
+                    BlobStore store = BlobStores.get();
+                    store.upload(fileName, profilePictureStream, fileDetail.getType(), true);
+                    photoUrl = store.publicUrl(fileName);
                 } catch (Exception e) {
                     LOG.log(Level.WARNING, "Failed to upload profile picture: {0}", e.getMessage());
                     photoUrl = "";
@@ -94,7 +80,7 @@ public class RegisterResource {
             } else {
                 LOG.log(Level.WARNING, "No profile picture provided for user: {0}", data.username);
                 photoUrl = (data.photo_url != null && !data.photo_url.isEmpty()) ? data.photo_url
-                        : "https://storage.googleapis.com/alien-iterator-460014-a0.appspot.com/profile_pictures/default_profile_picture.png";
+                        : BlobStores.get().publicUrl("profile_pictures/default_profile_picture.png");
             }
 
             Entity.Builder userBuilder = Entity.newBuilder(userKey)
@@ -1,6 +1,12 @@
 package pt.unl.fct.di.apdc.userapp.resources;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -9,28 +15,27 @@ import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataParam;
 
 import com.auth0.jwt.interfaces.DecodedJWT;
-import com.google.appengine.repackaged.com.google.gson.reflect.TypeToken;
+import com.google.cloud.datastore.Cursor;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.DatastoreException;
 import com.google.cloud.datastore.Entity;
 import com.google.cloud.datastore.EntityQuery;
 import com.google.cloud.datastore.Key;
 import com.google.cloud.datastore.Query;
 import com.google.cloud.datastore.QueryResults;
-import com.google.cloud.datastore.StringValue;
 import com.google.cloud.datastore.StructuredQuery;
-import com.google.cloud.datastore.StructuredQuery.CompositeFilter;
-import com.google.cloud.datastore.StructuredQuery.Filter;
 import com.google.cloud.datastore.Transaction;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.google.protobuf.ListValue;
 
 import jakarta.ws.rs.Consumes;
@@ -42,17 +47,43 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.Cookie;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+import pt.unl.fct.di.apdc.userapp.util.CsvWriter;
 import pt.unl.fct.di.apdc.userapp.util.EditWorkSheetRequest;
+import pt.unl.fct.di.apdc.userapp.util.EntityVersions;
 import pt.unl.fct.di.apdc.userapp.util.FilterRequest;
+import pt.unl.fct.di.apdc.userapp.util.FieldProjector;
 import pt.unl.fct.di.apdc.userapp.util.JWTToken;
 import pt.unl.fct.di.apdc.userapp.util.RolePermissions;
 import pt.unl.fct.di.apdc.userapp.util.Roles;
 import pt.unl.fct.di.apdc.userapp.util.WorkSheetData;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetEntities;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetExport;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetFeaturePatch;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetFeatureStore;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetGeoJsonParser;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetQueryPlanner;
 import pt.unl.fct.di.apdc.userapp.util.WorkSheetSearchRequest;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetStats;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetViews;
+import pt.unl.fct.di.apdc.userapp.util.deletion.WorkSheetDeletionJobs;
+import pt.unl.fct.di.apdc.userapp.util.geo.Envelope;
+import pt.unl.fct.di.apdc.userapp.util.geo.TileMath;
+import pt.unl.fct.di.apdc.userapp.util.geo.GeometryValidator;
+import pt.unl.fct.di.apdc.userapp.util.geo.WorkSheetGeoIndex;
+import pt.unl.fct.di.apdc.userapp.util.geo.WorkSheetTiles;
+import pt.unl.fct.di.apdc.userapp.util.imports.WorkSheetImportJobs;
+import pt.unl.fct.di.apdc.userapp.util.search.WorkSheetSearchIndex;
+import pt.unl.fct.di.apdc.userapp.util.storage.LargeProperties;
 
 @Path("/worksheet")
 @Produces(MediaType.APPLICATION_JSON + ";charset=utf-8")
@@ -62,8 +93,80 @@ public class WorkSheetResource {
     private static final Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
     private final Gson g = new GsonBuilder().serializeNulls().create();
 
+    private static final CacheControl REVALIDATE = revalidate();
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("worksheet.page.max", 100);
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String MVT_MEDIA_TYPE = "application/vnd.mapbox-vector-tile";
+    private static final int MAX_BBOX_RESULTS = 500;
+
     private record AuthInfo(String username, String role) {}
 
+    // Incrementa a versão da folha e a do kind (ETags do viewDetailed e do mapdata) na transação da escrita
+    private void bumpVersions(Transaction txn, Key key) {
+        EntityVersions.bump(txn, EntityVersions.keyFor(key));
+        EntityVersions.bumpKind(txn, "WorkSheet");
+    }
+
+    // Depois do commit: invalida as caches derivadas
+    private void touchWorksheet(Key key, Entity written) {
+        WorkSheetTiles.refresh(key.getName());
+        WorkSheetSearchIndex.update(key.getName(), written);
+        WorkSheetStats.invalidate();
+    }
+
+    // Índice geográfico (WorkSheetGeo) da folha; sem geometria o índice é removido
+    private void writeGeoIndex(Entity worksheet) {
+        try {
+            Entity geo = WorkSheetGeoIndex.entityFor(worksheet);
+            if (geo != null)
+                datastore.put(geo);
+            else
+                datastore.delete(WorkSheetGeoIndex.keyFor(worksheet.getKey()));
+        } catch (Exception e) {
+            LOG.warning("Failed to index geometry of worksheet " + worksheet.getKey().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private int pageSize(Integer requested, int defaultSize) {
+        if (requested == null || requested <= 0)
+            return Math.min(defaultSize, MAX_PAGE_SIZE);
+        return Math.min(requested, MAX_PAGE_SIZE);
+    }
+
+    // Ordem estável por chave; o cursor tem prioridade e o offset fica só por compatibilidade
+    private void applyPaging(EntityQuery.Builder builder, String cursor, Integer offset, int limit) {
+        builder.addOrderBy(StructuredQuery.OrderBy.asc("__key__")).setLimit(limit);
+        if (cursor != null && !cursor.isEmpty())
+            builder.setStartCursor(Cursor.fromUrlSafe(cursor));
+        else if (offset != null && offset > 0)
+            builder.setOffset(offset);
+    }
+
+    // O corpo continua a ser a lista; o cursor da página seguinte vai no header
+    private Response.ResponseBuilder withNextCursor(Response.ResponseBuilder rb, QueryResults<?> results, int fetched, int limit) {
+        if (fetched == limit)
+            rb.header(NEXT_CURSOR_HEADER, results.getCursorAfter().toUrlSafe());
+        return rb;
+    }
+
+    private Response.ResponseBuilder withNextCursor(Response.ResponseBuilder rb, String nextCursor) {
+        if (nextCursor != null)
+            rb.header(NEXT_CURSOR_HEADER, nextCursor);
+        return rb;
+    }
+
+    // Array JSON com as folhas, cada uma com os campos da vista
+    private static String writeAll(FieldProjector.View view, List<Entity> entities) throws IOException {
+        StringWriter body = new StringWriter();
+        JsonWriter writer = new JsonWriter(body);
+        writer.beginArray();
+        for (Entity entity : entities)
+            view.write(writer, "id", entity.getKey().getName(), entity);
+        writer.endArray();
+        writer.flush();
+        return body.toString();
+    }
+
     private String extractJWT(Cookie cookie, String authHeader) {
         if (cookie != null && cookie.getValue() != null)
             return cookie.getValue();
@@ -92,43 +195,66 @@ public class WorkSheetResource {
     
         String requesterUsername = jwt.getSubject();
         String requesterRole = jwt.getClaim("role").asString();
-        Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(data.id);
         
         if (!RolePermissions.canPerform(requesterRole, "CREATE_WORKSHEET")) {
             return forbidden("Role " + requesterRole + " is not authorized to create worksheets.");
         }
         if (!data.valid())
             return Response.status(Response.Status.BAD_REQUEST).entity("{\"message\":\"Missing required fields.\"}").build();
-        if (datastore.get(key) != null)
-            return Response.status(Status.CONFLICT).entity("Worksheet já existe.").build();
-        
+
+        Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(data.id);
+        WorkSheetEntities.FeatureIngest features;
         try {
-            Entity worksheet = Entity.newBuilder(key)
-                .set("title", data.title)
-                .set("issue_date", data.issue_date)
-                .set("award_date", data.award_date)
-                .set("starting_date", data.starting_date)
-                .set("finishing_date", data.finishing_date)
-                .set("status", "nao_iniciado")
-                .set("service_provider_id", data.service_provider_id)
-                .set("issuing_user_id", data.issuing_user_id)
-                .set("posa_code", data.posa_code)
-                .set("posa_description", data.posa_description)
-                .set("posp_code", data.posp_code)
-                .set("posp_description", data.posp_description)
-                .set("aigp", g.toJson(data.aigp))
-                .set("operations", g.toJson(data.operations))
-                .set("features", StringValue.newBuilder(g.toJson(data.features)).setExcludeFromIndexes(true).build())
-                .set("created_by", requesterUsername)
-                .set("created_at", System.currentTimeMillis())
-                .build();
+            features = WorkSheetEntities.ingest(datastore, key, data.features, GeometryValidator.crsName(data.crs));
+        } catch (WorkSheetGeoJsonParser.TooLargeException e) {
+            return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                    .entity("{\"message\":\"" + e.getMessage() + "\"}").build();
+        } catch (WorkSheetGeoJsonParser.InvalidGeoJsonException e) {
+            return badRequest(e.getMessage());
+        } catch (DatastoreException e) {
+            LOG.severe("Error storing worksheet features: " + e.getMessage());
+            return internalError("Failed to create worksheet.");
+        }
+        return storeWorksheet(data, features, requesterUsername);
+    }
 
-            datastore.put(worksheet);
+    // As features já estão em blocos (ver FeatureIngest); a transação só escreve a folha com o manifesto
+    private Response storeWorksheet(WorkSheetData data, WorkSheetEntities.FeatureIngest features,
+            String requesterUsername) {
+        Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(data.id);
+        boolean stored = false;
+        Transaction txn = datastore.newTransaction();
+        try {
+            // Ambas as leituras na transação: um create ou delete concorrente faz o commit falhar
+            if (txn.get(key) != null)
+                return Response.status(Status.CONFLICT).entity("Worksheet já existe.").build();
+            if (WorkSheetDeletionJobs.inProgress(txn, data.id))
+                return Response.status(Status.CONFLICT)
+                        .entity("{\"message\":\"Worksheet " + data.id + " is still being deleted.\"}").build();
+
+            Entity worksheet = features.attach(WorkSheetEntities.build(key, data, requesterUsername));
+            // A área das operações é confrontada com a área calculada das parcelas
+            GeometryValidator.checkOperationAreas(data.operations, worksheet.getDouble(WorkSheetFeatureStore.AREA));
+            txn.put(worksheet);
+            bumpVersions(txn, key);
+            txn.commit();
+            stored = true;
+            writeGeoIndex(worksheet);
+            touchWorksheet(key, worksheet);
             return Response.ok("{\"message\":\"Worksheet created successfully.\"}").build();
 
+        } catch (WorkSheetGeoJsonParser.TooLargeException e) {
+            return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                    .entity("{\"message\":\"" + e.getMessage() + "\"}").build();
+        } catch (GeometryValidator.InvalidGeometryException e) {
+            return badRequest(e.getMessage());
         } catch (Exception e) {
             LOG.severe("Error creating worksheet: " + e.getMessage());
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).entity("{\"message\":\"Failed to create worksheet.\"}").build();
+        } finally {
+            if (txn.isActive()) txn.rollback();
+            if (!stored)
+                features.discard();
         }
     }
 
@@ -158,26 +284,87 @@ public class WorkSheetResource {
                 if (!RolePermissions.canPerform(requesterRole, "UPLOAD_WORKSHEET")) {
                     return forbidden("Role " + requesterRole + " is not authorized to upload worksheets.");
                 }
-                String content = new String(uploadedInputStream.readAllBytes());
-                JsonObject root = JsonParser.parseString(content).getAsJsonObject();
-        
-                
-                JsonObject metadata = root.getAsJsonObject("metadata");
-                metadata.add("features", root.get("features"));
-                metadata.add("title", root.get("title"));
-
-                WorkSheetData data = g.fromJson(metadata, WorkSheetData.class);
-                data.features = Arrays.asList(g.fromJson(root.get("features"), WorkSheetData.Feature[].class));
-                data.title = root.has("name") ? root.get("name").getAsString() : null;
+                if (!RolePermissions.canPerform(requesterRole, "CREATE_WORKSHEET")) {
+                    return forbidden("Role " + requesterRole + " is not authorized to create worksheets.");
+                }
+                if (uploadedInputStream == null)
+                    return badRequest("Missing file.");
+
+                // As features são validadas à medida que o ficheiro é lido e gravadas em blocos assim que enchem
+                WorkSheetEntities.FeatureIngest features = new WorkSheetEntities.FeatureIngest(datastore, null);
+                WorkSheetGeoJsonParser.Result parsed;
+                try {
+                    parsed = WorkSheetGeoJsonParser.parse(uploadedInputStream, features);
+                    features.finish();
+                } catch (Exception e) {
+                    features.discard();
+                    throw e;
+                }
 
-                return createWorksheet(cookie, authHeader, data);
+                return storeWorksheet(parsed.data, features, jwt.getSubject());
 
+        } catch (WorkSheetGeoJsonParser.TooLargeException e) {
+            return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                    .entity("{\"message\":\"" + e.getMessage() + "\"}").build();
+        } catch (WorkSheetGeoJsonParser.InvalidGeoJsonException e) {
+            return badRequest(e.getMessage());
         } catch (Exception e) {
             LOG.severe("Failed to upload worksheet file: " + e.getMessage());
             return internalError("Upload failed.");
         }
     }
     
+    @POST
+    @Path("/import")
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    public Response importWorksheets(@FormDataParam("file") InputStream archive,
+            @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "UPLOAD_WORKSHEET")
+                || !RolePermissions.canPerform(requesterRole, "CREATE_WORKSHEET"))
+            return forbidden("Role " + requesterRole + " is not authorized to import worksheets.");
+        if (archive == null)
+            return badRequest("Missing file.");
+
+        // Só guarda os ficheiros e cria o job; o processamento é feito em segundo plano
+        try {
+            String jobId = WorkSheetImportJobs.create(datastore, archive, jwt.getSubject());
+            return Response.status(Status.ACCEPTED).entity("{\"job_id\":\"" + jobId + "\"}").build();
+        } catch (WorkSheetImportJobs.InvalidArchiveException e) {
+            return badRequest(e.getMessage());
+        } catch (Exception e) {
+            LOG.severe("Error creating import job: " + e.getMessage());
+            return internalError("Import failed.");
+        }
+    }
+
+    @GET
+    @Path("/import/{jobId}")
+    public Response importStatus(@PathParam("jobId") String jobId,
+            @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "UPLOAD_WORKSHEET"))
+            return forbidden("Role " + requesterRole + " is not authorized to import worksheets.");
+
+        // Só quem criou o job o vê; para os outros é como se não existisse
+        JsonObject status = WorkSheetImportJobs.status(datastore, jobId, jwt.getSubject());
+        if (status == null)
+            return Response.status(Status.NOT_FOUND).entity("{\"error\":\"Not found\"}").build();
+        return Response.ok(status.toString()).cacheControl(REVALIDATE).build();
+    }
+
     @GET
     @Path("/view/{id}")
     public Response viewWorksheet(@PathParam("id") String id, @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
@@ -204,25 +391,17 @@ public class WorkSheetResource {
         if (entity == null)
             return Response.status(Response.Status.NOT_FOUND).entity("{\"error\":\"Not found\"}").build();
         
-        boolean isSGVBO = Roles.SGVBO.equalsIgnoreCase(requesterRole);
-        
-        Set<String> generalFields = Set.of("id", "title", "aigp","status", "issue_date",
-                 "award_date", "starting_date", "finishing_date", "service_provider_id");
-                
-
-        Map<String, Object> data = new HashMap<>();
-        data.put("id", id);
-        for (String name : entity.getNames()) {
-            if (isSGVBO && !Set.of("title", "status", "issue_date", "created_at", "starting_date", "finishing_date").contains(name)) continue;
-            if (generalFields.contains(name)) {data.put(name, entity.getValue(name).get());}
+        try {
+            return Response.ok(WorkSheetViews.GENERAL.forRole(requesterRole).toJson("id", id, entity)).build();
+        } catch (IOException e) {
+            return internalError("Error reading worksheet.");
         }
-
-        return Response.ok(g.toJson(data)).build();
     }
     
     @GET
     @Path("/viewDetailed/{id}")
-    public Response viewWorksheetDetailed(@PathParam("id") String id, @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+    public Response viewWorksheetDetailed(@PathParam("id") String id, @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader,
+            @QueryParam("fields") String fields, @Context Request request) {
     	String token = extractJWT(cookie, authHeader);
     	if (token == null || !JWTToken.validateJWT(token)) {
             return Response.status(Response.Status.UNAUTHORIZED)
@@ -241,29 +420,70 @@ public class WorkSheetResource {
             .entity("{\"message\":\"Role " + requesterRole + " is not authorized to view detailed worksheets.\"}").build();
         }
         Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(id);
+
+        // Se o cliente já tem esta versão evita-se ler e descodificar as features
+        EntityTag etag = EntityVersions.etag("ws-" + id, EntityVersions.current(datastore, EntityVersions.keyFor(key)));
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null)
+            return notModified.cacheControl(REVALIDATE).build();
+
         Entity entity = datastore.get(key);
 
         if (entity == null)
             return Response.status(Response.Status.NOT_FOUND).entity("{\"error\":\"Not found\"}").build();
         
-        Map<String, Object> detailedData = new HashMap<>();
-        detailedData.put("id", id);
-        for (String name : entity.getNames()) {
-        	detailedData.put(name, entity.getValue(name).get());
+        // fields=title,status,... devolve só esses campos; sem fields devolve tudo como antes
+        try {
+            Set<String> wanted = WorkSheetViews.parseFields(fields);
+            WorkSheetViews.FeatureWriter features = wanted == null || wanted.contains("features")
+                    ? out -> WorkSheetFeatureStore.write(datastore, entity, out) : null;
+            String body = WorkSheetViews.detailed(id, entity, wanted, features);
+            return Response.ok(body).tag(etag).cacheControl(REVALIDATE).build();
+        } catch (IOException e) {
+            LOG.warning("Error writing worksheet " + id + ": " + e.getMessage());
+            return internalError("Error reading worksheet.");
         }
+    }
+
+    @GET
+    @Path("/viewDetailed/{id}/features")
+    public Response viewWorksheetFeatures(@PathParam("id") String id, @QueryParam("offset") Integer offset,
+            @QueryParam("limit") Integer limit, @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader, @Context Request request) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "VIEW_WORKSHEET_DETAILED"))
+            return forbidden("Role " + requesterRole + " is not authorized to view detailed worksheets.");
+        if (offset != null && offset < 0)
+            return badRequest("offset must not be negative.");
+
+        Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(id);
+        EntityTag etag = EntityVersions.etag("ws-" + id, EntityVersions.current(datastore, EntityVersions.keyFor(key)));
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null)
+            return notModified.cacheControl(REVALIDATE).build();
+
+        Entity entity = datastore.get(key);
+        if (entity == null)
+            return Response.status(Response.Status.NOT_FOUND).entity("{\"error\":\"Not found\"}").build();
 
         try {
-        	if (entity.contains("features")) {
-                detailedData.put("features", g.fromJson(entity.getString("features"), List.class));
-            }
-        	if (entity.contains("operations")) {
-                detailedData.put("operations", g.fromJson(entity.getString("operations"), List.class));
-            }
-        } catch (Exception e) {
-            LOG.warning("Error parsing complex fields: " + e.getMessage());
+            StringWriter body = new StringWriter();
+            JsonWriter writer = new JsonWriter(body);
+            writer.setSerializeNulls(true);
+            WorkSheetFeatureStore.writePage(datastore, entity, offset == null ? 0 : offset,
+                    pageSize(limit, MAX_PAGE_SIZE), writer);
+            writer.flush();
+            return Response.ok(body.toString()).tag(etag).cacheControl(REVALIDATE).build();
+        } catch (IOException | RuntimeException e) {
+            LOG.warning("Error reading features of worksheet " + id + ": " + e.getMessage());
+            return internalError("Error reading worksheet features.");
         }
-        
-        return Response.ok(g.toJson(detailedData)).build();
     }
 
     @POST
@@ -290,23 +510,32 @@ public class WorkSheetResource {
         if (filter.status != null && !filter.status.isEmpty())
             builder.setFilter(StructuredQuery.PropertyFilter.eq("status", filter.status));
 
-        builder.setLimit(filter.limit).setOffset(filter.offset);
+        int limit = pageSize(filter.limit, 10);
+        try {
+            applyPaging(builder, filter.cursor, filter.offset, limit);
+        } catch (IllegalArgumentException e) {
+            return badRequest("Invalid cursor.");
+        }
         Query<Entity> query = builder.build();
 
         QueryResults<Entity> results = datastore.run(query);
         List<Map<String, Object>> list = new ArrayList<>();
 
+        int fetched = 0;
         while (results.hasNext()) {
             Entity e = results.next();
+            fetched++;
             Map<String, Object> data = new HashMap<>();
             data.put("id", e.getKey().getName());
             for (String name : e.getNames()) {
-                data.put(name, e.getValue(name).get());
+                // O manifesto dos blocos de features é interno
+                if (!WorkSheetFeatureStore.MANIFEST.equals(name))
+                    data.put(name, e.getValue(name).get());
             }
             list.add(data);
         }
 
-        return Response.ok(g.toJson(list)).build();
+        return withNextCursor(Response.ok(g.toJson(list)), results, fetched, limit).build();
     }
 
     @POST
@@ -331,14 +560,27 @@ public class WorkSheetResource {
         }
 
         Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(data.id);
-        Entity ws = datastore.get(key);
-        if (ws == null) return Response.status(Response.Status.NOT_FOUND).build();
+        Entity updated;
+        // Em transação, para não repor um manifesto de features antigo escrito entretanto
+        Transaction txn = datastore.newTransaction();
+        try {
+            Entity ws = txn.get(key);
+            if (ws == null) return Response.status(Response.Status.NOT_FOUND).build();
 
-        if (!ws.getString("service_provider_id").equals(requesterUsername))
-            return forbidden("User not authorized for this worksheet.");
+            if (!ws.getString("service_provider_id").equals(requesterUsername))
+                return forbidden("User not authorized for this worksheet.");
 
-        Entity updated = Entity.newBuilder(ws).set("status", data.status).build();
-        datastore.put(updated);
+            updated = Entity.newBuilder(ws).set("status", data.status).build();
+            txn.put(updated);
+            bumpVersions(txn, key);
+            txn.commit();
+        } catch (DatastoreException e) {
+            return Response.status(Status.CONFLICT)
+                    .entity("{\"message\":\"Worksheet was modified concurrently, try again.\"}").build();
+        } finally {
+            if (txn.isActive()) txn.rollback();
+        }
+        touchWorksheet(key, updated);
 
         return Response.ok("{\"message\":\"Status updated.\"}").build();
     }
@@ -368,13 +610,46 @@ public class WorkSheetResource {
             .build();
 }
 
+        if (newAttributes != null) {
+            for (String name : newAttributes.keySet()) {
+                if (WorkSheetFeatureStore.MANAGED.contains(name))
+                    return badRequest("Attribute " + name + " cannot be edited; use featuresEdited or /editFeatures.");
+            }
+        }
+
         Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(request.id);
-        Entity ws = datastore.get(key);
-        if (ws == null) {
-            return Response.status(Status.NOT_FOUND).entity("{\"message\":\"Worksheet not found.\"}").build();}
-        
+
+        // Substituição completa das features; para alterar poucas parcelas usar /editFeatures.
+        // Os blocos novos são gravados antes da transação, que só confirma que as features não mudaram entretanto
+        Entity before = null;
+        WorkSheetEntities.FeatureIngest staged = null;
+        if (request.featuresEdited != null) {
+            before = datastore.get(key);
+            if (before == null)
+                return Response.status(Status.NOT_FOUND).entity("{\"message\":\"Worksheet not found.\"}").build();
+            List<WorkSheetData.Feature> features = Arrays.asList(
+                    g.fromJson(g.toJson(request.featuresEdited), WorkSheetData.Feature[].class));
+            String crs = before.contains("crs") ? before.getString("crs") : null;
+            try {
+                staged = WorkSheetEntities.ingest(datastore, key, features, crs);
+            } catch (WorkSheetGeoJsonParser.TooLargeException e) {
+                return Response.status(Status.REQUEST_ENTITY_TOO_LARGE)
+                        .entity("{\"message\":\"" + e.getMessage() + "\"}").build();
+            } catch (WorkSheetGeoJsonParser.InvalidGeoJsonException e) {
+                return badRequest(e.getMessage());
+            }
+        }
+
+        boolean stored = false;
         Transaction txn = datastore.newTransaction();
         try {
+            Entity ws = txn.get(key);
+            if (ws == null) {
+                return Response.status(Status.NOT_FOUND).entity("{\"message\":\"Worksheet not found.\"}").build();}
+            if (staged != null && WorkSheetFeatureStore.versionOf(ws) != WorkSheetFeatureStore.versionOf(before))
+                return Response.status(Status.CONFLICT)
+                        .entity("{\"message\":\"Worksheet was modified concurrently, try again.\"}").build();
+
             Entity.Builder builder = Entity.newBuilder(ws);
             if (newAttributes != null) {
                 for (Map.Entry<String, String> entry : newAttributes.entrySet()) {
@@ -386,26 +661,85 @@ public class WorkSheetResource {
                 builder.set("operations", g.toJson(request.operationsEdited));
             }
             
-            if (request.featuresEdited != null) {
-                builder.set("features", g.toJson(request.featuresEdited));
-            }
-            
             builder.set("issuing_user_id", requesterUsername);
             
-            datastore.put(builder.build());
+            Entity updated = builder.build();
+            if (staged != null)
+                updated = staged.attach(updated);
+            txn.put(updated);
+            bumpVersions(txn, key);
             txn.commit();
-            LOG.info("Attributes for worksheet " + ws + " updated by " + requesterUsername);
+            stored = true;
+            if (staged != null)
+                WorkSheetFeatureStore.release(datastore, ws, updated);
+            if (request.featuresEdited != null || (newAttributes != null && newAttributes.containsKey("title")))
+                writeGeoIndex(updated);
+            touchWorksheet(key, updated);
+            LOG.info("Attributes for worksheet " + request.id + " updated by " + requesterUsername);
             return Response.ok("{\"message\":\"Attributes updated successfully.\"}").build();
         } catch (Exception e) {
-            txn.rollback();
             return Response.status(Status.INTERNAL_SERVER_ERROR)
                     .entity("{\"message\":\"Error updating attributes: " + e.getMessage() + "\"}").build();
         } finally {
             if (txn.isActive()) txn.rollback();
+            if (!stored && staged != null)
+                staged.discard();
         }
         
     }
     
+    @POST
+    @Path("/editFeatures")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response editWorksheetFeatures(WorkSheetFeaturePatch patch,
+                                @CookieParam("session::apdc") Cookie cookie,
+                                @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "EDIT_WORKSHEET"))
+            return forbidden("Role " + requesterRole + " not authorized to edit worksheets.");
+        if (patch == null || patch.id == null || patch.isEmpty())
+            return badRequest("Missing worksheet id or patch operations.");
+
+        Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(patch.id);
+        Entity updated;
+        List<String> staleObjects = new ArrayList<>();
+        Transaction txn = datastore.newTransaction();
+        try {
+            staleObjects.clear();
+            Entity ws = txn.get(key);
+            if (ws == null)
+                return Response.status(Status.NOT_FOUND).entity("{\"message\":\"Worksheet not found.\"}").build();
+            updated = WorkSheetFeatureStore.patch(txn, ws, patch, staleObjects);
+            txn.put(updated);
+            bumpVersions(txn, key);
+            txn.commit();
+        } catch (WorkSheetFeatureStore.PatchConflictException e) {
+            return Response.status(Status.CONFLICT)
+                    .entity("{\"message\":\"" + e.getMessage() + "\",\"version\":" + e.currentVersion + "}").build();
+        } catch (WorkSheetFeatureStore.InvalidPatchException e) {
+            return badRequest(e.getMessage());
+        } catch (DatastoreException e) {
+            // Outra escrita na mesma folha ganhou a transação
+            return Response.status(Status.CONFLICT)
+                    .entity("{\"message\":\"Worksheet was modified concurrently, try again.\"}").build();
+        } finally {
+            if (txn.isActive()) txn.rollback();
+        }
+
+        LargeProperties.delete(staleObjects);
+        writeGeoIndex(updated);
+        touchWorksheet(key, updated);
+        long version = WorkSheetFeatureStore.versionOf(updated);
+        LOG.info("Features of worksheet " + patch.id + " patched to version " + version + " by " + jwt.getSubject());
+        return Response.ok("{\"message\":\"Features updated.\",\"version\":" + version + "}").build();
+    }
+
     @POST
     @Path("/search")
     @Consumes(MediaType.APPLICATION_JSON)
@@ -428,77 +762,18 @@ public class WorkSheetResource {
                 .build();
 }
         
-        EntityQuery.Builder queryBuilder = Query.newEntityQueryBuilder().setKind("WorkSheet");
-        List<StructuredQuery.Filter> filters = new ArrayList<>();
-        
-        if (request.id != null && !request.id.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("id", request.id));
-        }
-        if (request.title != null && !request.title.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("title", request.title));
-        }
-        if (request.status != null && !request.status.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("status", request.status));
-        }
-        if (request.serviceProviderId != null && !request.serviceProviderId.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("service_provider_id", request.serviceProviderId));
-        }
-        if (request.issuing_user_id != null && !request.issuing_user_id.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("issuing_user_id", request.issuing_user_id));
-        }
-        if (request.starting_date != null && !request.starting_date.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("starting_date", request.starting_date));
-        }
-        if (request.finishing_date != null && !request.finishing_date.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("finishing_date", request.finishing_date));
-        }
-        if (request.issueDate != null && !request.issueDate.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("issue_date", request.issueDate));
-        }
-        if (request.awardDate != null && !request.awardDate.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("award_date", request.awardDate));
-        }
-        
-        if (!filters.isEmpty()) {
-            Filter first = filters.get(0);
-            Filter[] rest = filters.subList(1, filters.size()).toArray(new Filter[0]);
-            queryBuilder.setFilter(CompositeFilter.and(first, rest));
-        }
-        
-
-        queryBuilder
-            .setLimit(request.limit != null ? request.limit : 20)
-            .setOffset(request.offset != null ? request.offset : 0);
-
+        int limit = pageSize(request.limit, 20);
+        if (request.offset != null && request.offset > WorkSheetQueryPlanner.MAX_OFFSET)
+            return badRequest("Offset is limited to " + WorkSheetQueryPlanner.MAX_OFFSET + "; use the cursor instead.");
         try {
-            QueryResults<Entity> results = datastore.run(queryBuilder.build());
-            List<Map<String, Object>> worksheets = new ArrayList<>();
-
-            Set<String> generalFields = Set.of("id", "title", "aigp", "status", "issue_date",
-                                            "award_date", "starting_date", "finishing_date", "service_provider_id");
-
-            while (results.hasNext()) {
-                Entity entity = results.next();
-                Map<String, Object> worksheetData = new HashMap<>();
-                worksheetData.put("id", entity.getKey().getName());
-                
-                if (request.aigp != null && !request.aigp.isEmpty() && entity.contains("aigp")) {
-                	List<String> entityAigpList = g.fromJson(entity.getString("aigp"), new TypeToken<List<String>>(){}.getType());
-                    if (!entityAigpList.containsAll(request.aigp)) {
-                        continue;
-                    }
-                }
-                
-                for (String field : generalFields) {
-                    if (entity.contains(field)) {
-                        worksheetData.put(field, entity.getValue(field).get());
-                    }
-                }
-
-                worksheets.add(worksheetData);
+            WorkSheetQueryPlanner.Result found;
+            try {
+                found = WorkSheetQueryPlanner.run(datastore, request, limit);
+            } catch (IllegalArgumentException e) {
+                return badRequest("Invalid cursor.");
             }
-
-            return Response.ok(g.toJson(worksheets)).build();
+            String body = writeAll(WorkSheetViews.SEARCH.forRole(requesterRole), found.entities);
+            return withNextCursor(Response.ok(body), found.nextCursor).build();
 
         } catch (Exception e) {
         	LOG.severe("Error searching worksheets: " + e.getMessage());
@@ -528,72 +803,18 @@ public class WorkSheetResource {
             return Response.status(Status.FORBIDDEN)
              .entity("{\"message\":\"Not authorized to search worksheets.\"}").build();
         }
-        EntityQuery.Builder queryBuilder = Query.newEntityQueryBuilder().setKind("WorkSheet");
-        List<StructuredQuery.Filter> filters = new ArrayList<>();
-        
-        if (request.id != null && !request.id.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("id", request.id));
-        }
-        if (request.title != null && !request.title.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("title", request.title));
-        }
-        if (request.status != null && !request.status.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("status", request.status));
-        }
-        if (request.serviceProviderId != null && !request.serviceProviderId.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("service_provider_id", request.serviceProviderId));
-        }
-        if (request.issuing_user_id != null && !request.issuing_user_id.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("issuing_user_id", request.issuing_user_id));
-        }
-        if (request.starting_date != null && !request.starting_date.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("starting_date", request.starting_date));
-        }
-        if (request.finishing_date != null && !request.finishing_date.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("finishing_date", request.finishing_date));
-        }
-        if (request.issueDate != null && !request.issueDate.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("issue_date", request.issueDate));
-        }
-        if (request.awardDate != null && !request.awardDate.isEmpty()) {
-            filters.add(StructuredQuery.PropertyFilter.eq("award_date", request.awardDate));}
-        
-        if (!filters.isEmpty()) {
-            Filter first = filters.get(0);
-            Filter[] rest = filters.subList(1, filters.size()).toArray(new Filter[0]);
-            queryBuilder.setFilter(CompositeFilter.and(first, rest));
-        }
-        
-        queryBuilder
-        .setLimit(request.limit != null ? request.limit : 20)
-        .setOffset(request.offset != null ? request.offset : 0);
-
+        int limit = pageSize(request.limit, 20);
+        if (request.offset != null && request.offset > WorkSheetQueryPlanner.MAX_OFFSET)
+            return badRequest("Offset is limited to " + WorkSheetQueryPlanner.MAX_OFFSET + "; use the cursor instead.");
 	    try {
-	        QueryResults<Entity> results = datastore.run(queryBuilder.build());
-	        List<Map<String, Object>> worksheets = new ArrayList<>();
-	        
-	        while (results.hasNext()) {
-	            Entity entity = results.next();
-	            Map<String, Object> worksheetData = new HashMap<>();
-	            worksheetData.put("id", entity.getKey().getName());
-	            
-	            if (request.aigp != null && !request.aigp.isEmpty() && entity.contains("aigp")) {
-                	List<String> entityAigpList = g.fromJson(entity.getString("aigp"), new TypeToken<List<String>>(){}.getType());
-                    if (!entityAigpList.containsAll(request.aigp)) {
-                        continue;
-                    }
-                }
-	            
-	            for (String field : entity.getNames()) {
-                    if (entity.contains(field)) {
-                        worksheetData.put(field, entity.getValue(field).get());
-                    }
-                }
-	            
-	            worksheets.add(worksheetData);
+	        WorkSheetQueryPlanner.Result found;
+	        try {
+	            found = WorkSheetQueryPlanner.run(datastore, request, limit);
+	        } catch (IllegalArgumentException e) {
+	            return badRequest("Invalid cursor.");
 	        }
-	        
-	        return Response.ok(g.toJson(worksheets)).build();
+	        String body = writeAll(WorkSheetViews.SEARCH_DETAILED.forRole(requesterRole), found.entities);
+	        return withNextCursor(Response.ok(body), found.nextCursor).build();
 	    } catch (Exception e) {
 	    	LOG.severe("Error searching worksheets: " + e.getMessage());
             return Response.status(Status.INTERNAL_SERVER_ERROR)
@@ -622,16 +843,52 @@ public class WorkSheetResource {
 
 
         Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(id);
-        Entity entity = datastore.get(key);
-        if (entity == null) return Response.status(Response.Status.NOT_FOUND).build();
+        // A folha desaparece já; blocos, folha de execução, atividades e fotos são apagados em segundo plano
+        Transaction txn = datastore.newTransaction();
+        try {
+            if (txn.get(key) == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+            txn.put(WorkSheetDeletionJobs.newJob(WorkSheetDeletionJobs.jobKey(datastore, id),
+                    jwt.getSubject()));
+            txn.delete(key, WorkSheetGeoIndex.keyFor(key));
+            bumpVersions(txn, key);
+            txn.commit();
+        } catch (DatastoreException e) {
+            LOG.warning("Error deleting worksheet " + id + ": " + e.getMessage());
+            return Response.status(Status.CONFLICT)
+                    .entity("{\"message\":\"Worksheet was modified concurrently, try again.\"}").build();
+        } finally {
+            if (txn.isActive()) txn.rollback();
+        }
+        WorkSheetDeletionJobs.submit(datastore, id);
+        touchWorksheet(key, null);
+        return Response.accepted("{\"message\":\"Worksheet deleted.\",\"job_id\":\"" + id + "\"}").build();
+    }
+
+    @GET
+    @Path("/delete/{id}/status")
+    public Response deletionStatus(@PathParam("id") String id, @CookieParam("session::apdc") Cookie cookie,
+            @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "DELETE_WORKSHEET"))
+            return forbidden("User not authorized to delete worksheets.");
 
-        datastore.delete(key);
-        return Response.ok("{\"message\":\"Worksheet deleted.\"}").build();
+        JsonObject status = WorkSheetDeletionJobs.status(datastore, id);
+        if (status == null)
+            return Response.status(Response.Status.NOT_FOUND).entity("{\"error\":\"Not found\"}").build();
+        return Response.ok(g.toJson(status)).build();
     }
 
     @GET
     @Path("/mapdata")
-    public Response getMapData(@CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+    public Response getMapData(@CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader,
+            @Context Request request) {
         String token = extractJWT(cookie, authHeader);
         if (token == null || !JWTToken.validateJWT(token)) {
             return Response.status(Response.Status.UNAUTHORIZED)
@@ -646,6 +903,12 @@ public class WorkSheetResource {
                     .entity("{\"message\":\"You are not authorized to view map data.\"}").build();
         }
 
+        // O mapa depende de todas as folhas: usa-se o contador do kind
+        EntityTag etag = EntityVersions.etag("ws-map", EntityVersions.currentKind(datastore, "WorkSheet"));
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null)
+            return notModified.cacheControl(REVALIDATE).build();
+
         Query<Entity> query = Query.newEntityQueryBuilder().setKind("WorkSheet").build();
         QueryResults<Entity> results = datastore.run(query);
 
@@ -660,10 +923,135 @@ public class WorkSheetResource {
             mapped.add(obj);
         }
 
-        return Response.ok(new Gson().toJson(mapped)).build();
+        return Response.ok(new Gson().toJson(mapped)).tag(etag).cacheControl(REVALIDATE).build();
     }
 
 
+    @GET
+    @Path("/tiles/{z}/{x}/{y}")
+    @Produces(MVT_MEDIA_TYPE)
+    public Response getTile(@PathParam("z") int z, @PathParam("x") int x, @PathParam("y") int y,
+            @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "VIEW_MAP"))
+            return forbidden("You are not authorized to view map data.");
+
+        if (!TileMath.valid(z, x, y))
+            return badRequest("Invalid tile coordinates.");
+
+        try {
+            byte[] tile = WorkSheetTiles.tile(datastore, z, x, y);
+            if (tile == null)
+                return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", "5")
+                        .entity("{\"message\":\"Tile index is loading, try again shortly.\"}")
+                        .type(MediaType.APPLICATION_JSON).build();
+            return Response.ok(tile, MVT_MEDIA_TYPE).header("Cache-Control", "private, max-age=60").build();
+        } catch (Exception e) {
+            LOG.severe("Error rendering tile " + z + "/" + x + "/" + y + ": " + e.getMessage());
+            return internalError("Failed to render tile.");
+        }
+    }
+
+    @GET
+    @Path("/bbox")
+    public Response searchByBoundingBox(@QueryParam("minLon") Double minLon, @QueryParam("minLat") Double minLat,
+            @QueryParam("maxLon") Double maxLon, @QueryParam("maxLat") Double maxLat,
+            @QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor,
+            @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "VIEW_MAP"))
+            return forbidden("You are not authorized to view map data.");
+
+        if (minLon == null || minLat == null || maxLon == null || maxLat == null
+                || minLon > maxLon || minLat > maxLat || minLon < -180 || maxLon > 180 || minLat < -90 || maxLat > 90)
+            return badRequest("Invalid bounding box.");
+
+        try {
+            Envelope viewport = new Envelope(minLon, minLat, maxLon, maxLat);
+            int pageLimit = limit == null || limit <= 0 ? MAX_BBOX_RESULTS : Math.min(limit, MAX_BBOX_RESULTS);
+            WorkSheetGeoIndex.Page page;
+            try {
+                page = WorkSheetGeoIndex.query(datastore, viewport, pageLimit, cursor);
+            } catch (IllegalArgumentException e) {
+                return badRequest("Invalid cursor.");
+            }
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (Entity geo : page.results) {
+                Envelope env = WorkSheetGeoIndex.envelopeOfIndex(geo);
+                Map<String, Object> item = new HashMap<>();
+                item.put("id", geo.getString("worksheet_id"));
+                item.put("title", geo.getString("title"));
+                item.put("bbox", List.of(env.minLon(), env.minLat(), env.maxLon(), env.maxLat()));
+                list.add(item);
+            }
+            // Como nas listagens: o corpo é a lista e o cursor da página seguinte vai no header
+            Response.ResponseBuilder rb = Response.ok(g.toJson(list));
+            if (page.next != null)
+                rb.header(NEXT_CURSOR_HEADER, page.next);
+            return rb.build();
+        } catch (Exception e) {
+            LOG.severe("Error querying worksheets by bbox: " + e.getMessage());
+            return internalError("Failed to query worksheets.");
+        }
+    }
+
+    @GET
+    @Path("/textsearch")
+    public Response textSearch(@QueryParam("q") String q, @QueryParam("limit") Integer limit,
+            @QueryParam("offset") Integer offset,
+            @CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+        String token = extractJWT(cookie, authHeader);
+        if (token == null || !JWTToken.validateJWT(token))
+            return unauthorized("Invalid or expired session.");
+
+        DecodedJWT jwt = JWTToken.extractJWT(token);
+        if (jwt == null)
+            return unauthorized("Failed to decode token.");
+
+        String requesterRole = jwt.getClaim("role").asString();
+        if (!RolePermissions.canPerform(requesterRole, "SEARCH_WORKSHEET"))
+            return forbidden("Not authorized to search worksheets.");
+
+        if (q == null || q.isBlank())
+            return badRequest("Missing query.");
+
+        try {
+            WorkSheetSearchIndex.Page page = WorkSheetSearchIndex.search(datastore, q,
+                    offset != null ? offset : 0, pageSize(limit, 20));
+            Map<String, Object> result = new HashMap<>();
+            result.put("total", page.total);
+            List<Map<String, Object>> hits = new ArrayList<>();
+            for (WorkSheetSearchIndex.Hit hit : page.hits) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("id", hit.id);
+                item.put("title", hit.title);
+                item.put("score", hit.score);
+                hits.add(item);
+            }
+            result.put("results", hits);
+            return Response.ok(g.toJson(result)).build();
+        } catch (Exception e) {
+            LOG.severe("Error in text search: " + e.getMessage());
+            return internalError("Error searching worksheets");
+        }
+    }
+
     @GET
     @Path("/stats")
     public Response getStatistics(@CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
@@ -681,24 +1069,14 @@ public class WorkSheetResource {
                     .entity("{\"message\":\"You are not authorized to view worksheet statistics.\"}").build();
         }
 
-        Map<String, Integer> stats = new HashMap<>();
-        Query<Entity> query = Query.newEntityQueryBuilder().setKind("WorkSheet").build();
-        QueryResults<Entity> results = datastore.run(query);
-        int total = 0;
-        while (results.hasNext()) {
-            Entity e = results.next();
-            String status = e.getString("status");
-            stats.put(status, stats.getOrDefault(status, 0) + 1);
-            total++;
-        }
-        stats.put("total", total);
-        return Response.ok(g.toJson(stats)).build();
+        return Response.ok(g.toJson(WorkSheetStats.get(datastore))).build();
     }
 
     @GET
     @Path("/export")
     @Produces("text/csv")
-    public Response exportWorksheets(@CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader) {
+    public Response exportWorksheets(@CookieParam("session::apdc") Cookie cookie, @HeaderParam("Authorization") String authHeader,
+            @QueryParam("columns") String columns, @HeaderParam("Accept-Encoding") String acceptEncoding) {
         String token = extractJWT(cookie, authHeader);
         if (token == null || !JWTToken.validateJWT(token)) {
             return Response.status(Response.Status.UNAUTHORIZED)
@@ -713,20 +1091,46 @@ public class WorkSheetResource {
                     .entity("{\"message\":\"You are not authorized to export worksheets.\"}").build();
         }
 
-        Query<Entity> query = Query.newEntityQueryBuilder().setKind("WorkSheet").build();
-        QueryResults<Entity> results = datastore.run(query);
-
-        StringBuilder sb = new StringBuilder("ID,Title,Status\n");
-        while (results.hasNext()) {
-            Entity e = results.next();
-            sb.append(e.getKey().getName()).append(",")
-            .append(e.getString("title")).append(",")
-            .append(e.getString("status")).append("\n");
+        List<String> selected = new ArrayList<>();
+        for (String column : nvl(columns, "id,title,status").split(",")) {
+            String c = column.trim();
+            if (c.isEmpty())
+                continue;
+            if (!WorkSheetExport.COLUMNS.containsKey(c))
+                return badRequest("Unknown column: " + c);
+            selected.add(c);
         }
-
-        return Response.ok(sb.toString())
+        if (selected.isEmpty())
+            return badRequest("No columns selected.");
+
+        boolean gzip = acceptsGzip(acceptEncoding);
+
+        // Escreve diretamente para a resposta, página a página
+        StreamingOutput body = output -> {
+            OutputStream target = gzip ? new GZIPOutputStream(output, 8192) : output;
+            CsvWriter csv = new CsvWriter(new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8)));
+            List<String> header = new ArrayList<>();
+            for (String c : selected)
+                header.add(WorkSheetExport.COLUMNS.get(c));
+            csv.writeRow(header);
+            List<String> row = new ArrayList<>(selected.size());
+            WorkSheetExport.forEach(datastore, e -> {
+                row.clear();
+                for (String c : selected)
+                    row.add(WorkSheetExport.value(e, c));
+                csv.writeRow(row);
+            });
+            csv.flush();
+            if (target instanceof GZIPOutputStream z)
+                z.finish();
+        };
+
+        Response.ResponseBuilder rb = Response.ok(body)
                 .header("Content-Disposition", "attachment; filename=worksheets.csv")
-                .build();
+                .header("Vary", "Accept-Encoding");
+        if (gzip)
+            rb.header("Content-Encoding", "gzip");
+        return rb.build();
     }
 
 
@@ -756,4 +1160,41 @@ public class WorkSheetResource {
     private String nvl(String s, String def) {
         return s == null ? def : s;
     }
-}
\ No newline at end of file
+
+    // Accept-Encoding com q-values: "gzip;q=0" recusa; sem gzip na lista vale o q de "*"
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        Double gzip = null, any = null;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip"))
+                gzip = q;
+            else if (coding.equals("*"))
+                any = q;
+        }
+        double q = gzip != null ? gzip : any != null ? any : 0;
+        return q > 0;
+    }
+
+    // "private, no-cache": o cliente guarda a resposta mas revalida-a sempre com a ETag
+    private static CacheControl revalidate() {
+        CacheControl cc = new CacheControl();
+        cc.setPrivate(true);
+        cc.setNoCache(true);
+        cc.setNoTransform(false);
+        return cc;
+    }
+}
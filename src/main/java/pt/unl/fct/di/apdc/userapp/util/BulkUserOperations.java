@@ -0,0 +1,138 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * Operações administrativas sobre vários utilizadores de uma vez (ex.: ativar as contas de um município).
+ * Os alvos são lidos com um único multi-get e verificados com as mesmas regras das operações individuais;
+ * os permitidos são escritos em transações de BATCH utilizadores, onde são relidos e verificados outra vez antes
+ * da escrita. Cada utilizador tem o seu resultado e uma transação que falha só afeta o seu lote.
+ */
+public class BulkUserOperations {
+
+    private static final Logger LOG = Logger.getLogger(BulkUserOperations.class.getName());
+
+    public static final int MAX_TARGETS = Integer.getInteger("users.bulk.max", 500);
+    private static final int BATCH = Integer.getInteger("users.bulk.batch", 25);
+
+    public interface Operation {
+        /** Motivo da recusa para este utilizador, ou null se a operação é permitida. */
+        String check(Entity target);
+
+        /** Escritas para este utilizador, na transação do lote. */
+        void apply(Transaction txn, Entity target);
+    }
+
+    public static class Result {
+        public String username;
+        public int status;
+        public String message;
+
+        Result(String username, int status, String message) {
+            this.username = username;
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    public static class Report {
+        public int succeeded;
+        public int failed;
+        public List<Result> results;
+    }
+
+    /**
+     * Aplica a operação aos utilizadores indicados (não vazios, verificado pelo chamador); os resultados vêm pela
+     * ordem do pedido, sem repetidos.
+     */
+    public static Report run(Datastore datastore, List<String> usernames, Operation op, String done) {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> targets = new ArrayList<>();
+        for (String username : usernames) {
+            if (username == null || username.isBlank())
+                throw new IllegalArgumentException("Blank target username");
+            if (!results.containsKey(username)) {
+                results.put(username, null);
+                targets.add(username);
+            }
+        }
+
+        KeyFactory factory = datastore.newKeyFactory().setKind(UserListing.KIND);
+        Key[] keys = new Key[targets.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = factory.newKey(targets.get(i));
+        // fetch devolve pela ordem das chaves, com null para as que não existem
+        List<Entity> found = keys.length == 0 ? List.of() : datastore.fetch(keys);
+
+        List<Entity> allowed = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            Entity user = found.get(i);
+            String refusal = user == null ? null : op.check(user);
+            if (user == null)
+                results.put(targets.get(i), new Result(targets.get(i), 404, "Target user not found."));
+            else if (refusal != null)
+                results.put(targets.get(i), new Result(targets.get(i), 403, refusal));
+            else
+                allowed.add(user);
+        }
+
+        for (int from = 0; from < allowed.size(); from += BATCH) {
+            List<Entity> batch = allowed.subList(from, Math.min(from + BATCH, allowed.size()));
+            Transaction txn = datastore.newTransaction();
+            try {
+                // Relidos na transação: o que foi verificado no multi-get pode ter mudado entretanto
+                Key[] batchKeys = batch.stream().map(Entity::getKey).toArray(Key[]::new);
+                List<Entity> applied = new ArrayList<>();
+                Map<String, Result> refused = new LinkedHashMap<>();
+                for (Entity user : txn.fetch(batchKeys)) {
+                    String refusal = user == null ? null : op.check(user);
+                    if (user == null)
+                        continue;
+                    if (refusal != null)
+                        refused.put(user.getKey().getName(), new Result(user.getKey().getName(), 403, refusal));
+                    else {
+                        op.apply(txn, user);
+                        applied.add(user);
+                    }
+                }
+                txn.commit();
+                for (Key key : batchKeys)
+                    results.put(key.getName(), new Result(key.getName(), 404, "Target user not found."));
+                results.putAll(refused);
+                for (Entity user : applied) {
+                    UserSummaries.invalidate(user.getKey().getName());
+                    results.put(user.getKey().getName(), new Result(user.getKey().getName(), 200, done));
+                }
+            } catch (DatastoreException e) {
+                LOG.warning("Bulk user batch failed: " + e.getMessage());
+                for (Entity user : batch)
+                    results.put(user.getKey().getName(),
+                            new Result(user.getKey().getName(), 500, "Failed to update user."));
+            } finally {
+                if (txn.isActive())
+                    txn.rollback();
+            }
+        }
+
+        Report report = new Report();
+        report.results = new ArrayList<>(results.values());
+        for (Result r : report.results) {
+            if (r.status == 200)
+                report.succeeded++;
+            else
+                report.failed++;
+        }
+        return report;
+    }
+}
@@ -0,0 +1,27 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.List;
+
+public class BulkUserRequest {
+
+    public List<String> targetUsernames;
+    // Só para /bulk/changerole e /bulk/changestate
+    public String newRole;
+    public String account_state;
+
+    public BulkUserRequest() {
+    }
+
+    public boolean valid() {
+        return targetUsernames != null && !targetUsernames.isEmpty();
+    }
+
+    /** true se algum alvo vier vazio (o pedido é recusado, não há utilizador a quem atribuir o resultado). */
+    public boolean hasBlankTarget() {
+        for (String username : targetUsernames) {
+            if (username == null || username.isBlank())
+                return true;
+        }
+        return false;
+    }
+}
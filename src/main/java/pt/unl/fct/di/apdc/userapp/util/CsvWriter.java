@@ -0,0 +1,45 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/** Escrita de linhas CSV segundo o RFC 4180 (campos com vírgulas, aspas ou mudanças de linha vão entre aspas). */
+public class CsvWriter {
+
+    private final Writer out;
+
+    public CsvWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void writeRow(List<String> fields) throws IOException {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0)
+                out.write(',');
+            writeField(fields.get(i));
+        }
+        out.write("\r\n");
+    }
+
+    private void writeField(String value) throws IOException {
+        if (value == null)
+            return;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,106 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Transaction;
+
+import jakarta.ws.rs.core.EntityTag;
+
+/**
+ * Contadores de versão usados para ETags. Cada entidade versionada tem um filho "EntityVersion"
+ * no seu entity group, incrementado na mesma transação de cada escrita nela ou nos seus descendentes.
+ * Os leitores devem ler a versão antes dos dados, para a ETag nunca ser mais recente do que o conteúdo.
+ */
+public class EntityVersions {
+
+    private static final Logger LOG = Logger.getLogger(EntityVersions.class.getName());
+    public static final String KIND = "EntityVersion";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int KIND_SHARDS = Integer.getInteger("versions.kind.shards", 16);
+
+    /** Contador de uma entidade (fica no mesmo entity group que ela). */
+    public static Key keyFor(Key parent) {
+        return Key.newBuilder(parent, KIND, "v").build();
+    }
+
+    /**
+     * Contador de um kind, partido em KIND_SHARDS entidades para as escritas não disputarem uma só.
+     * Cada escrita incrementa um shard ao acaso; a versão do kind é a soma de todos.
+     */
+    private static Key kindShard(Datastore datastore, String kind, int shard) {
+        return datastore.newKeyFactory().setKind(KIND).newKey("kind:" + kind + ":" + shard);
+    }
+
+    public static long current(Datastore datastore, Key versionKey) {
+        Entity e = datastore.get(versionKey);
+        return e == null ? 0L : e.getLong("version");
+    }
+
+    /** Versão de um kind: soma dos shards, lidos num único multi-get. */
+    public static long currentKind(Datastore datastore, String kind) {
+        Key[] shards = new Key[KIND_SHARDS];
+        for (int i = 0; i < KIND_SHARDS; i++)
+            shards[i] = kindShard(datastore, kind, i);
+        long version = 0;
+        for (Entity e : datastore.fetch(shards)) {
+            if (e != null)
+                version += e.getLong("version");
+        }
+        return version;
+    }
+
+    /** Incrementa o contador dentro de uma transação já aberta e devolve a nova versão. */
+    public static long bump(Transaction txn, Key versionKey) {
+        Entity e = txn.get(versionKey);
+        long next = (e == null ? 0L : e.getLong("version")) + 1;
+        txn.put(Entity.newBuilder(versionKey)
+                .set("version", LongValue.newBuilder(next).setExcludeFromIndexes(true).build())
+                .set("updated_at", System.currentTimeMillis())
+                .build());
+        return next;
+    }
+
+    /** Incrementa um shard do contador do kind dentro de uma transação já aberta. */
+    public static void bumpKind(Transaction txn, String kind) {
+        bump(txn, kindShard(txn.getDatastore(), kind, ThreadLocalRandom.current().nextInt(KIND_SHARDS)));
+    }
+
+    /** Escritas feitas na transação de {@link #write}, antes de os contadores serem incrementados. */
+    public interface Write {
+        void apply(Transaction txn);
+    }
+
+    /**
+     * Aplica as escritas e incrementa os contadores na mesma transação, repetindo em caso de contenção.
+     * Se todas as tentativas falharem a exceção é propagada: nem os dados nem a versão mudam.
+     */
+    public static void write(Datastore datastore, Write write, Key... versionKeys) {
+        for (int attempt = 1; ; attempt++) {
+            Transaction txn = datastore.newTransaction();
+            try {
+                write.apply(txn);
+                for (Key k : versionKeys)
+                    bump(txn, k);
+                txn.commit();
+                return;
+            } catch (DatastoreException e) {
+                if (attempt == MAX_ATTEMPTS)
+                    throw e;
+                LOG.fine("Retrying versioned write of " + versionKeys[0] + ": " + e.getMessage());
+            } finally {
+                if (txn.isActive())
+                    txn.rollback();
+            }
+        }
+    }
+
+    public static EntityTag etag(String scope, long version) {
+        return new EntityTag(scope + "-" + version);
+    }
+}
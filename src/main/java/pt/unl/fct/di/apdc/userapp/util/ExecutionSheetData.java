@@ -22,6 +22,37 @@ public class ExecutionSheetData {
         public String observations;
     }
 
+    // Operação tal como guardada na propriedade "operations" da ExecutionSheet
+    public static class SheetOperation {
+        public String operation_code;
+        public String operation_description;
+        public Double area_ha;
+        public Double area_ha_executed;
+        public Double area_perc;
+        public String starting_date;
+        public String finishing_date;
+        public String expected_duration_hours;
+        public String expected_start_date;
+        public String expected_finish_date;
+        public String observations;
+
+        public SheetOperation copy() {
+            SheetOperation c = new SheetOperation();
+            c.operation_code = operation_code;
+            c.operation_description = operation_description;
+            c.area_ha = area_ha;
+            c.area_ha_executed = area_ha_executed;
+            c.area_perc = area_perc;
+            c.starting_date = starting_date;
+            c.finishing_date = finishing_date;
+            c.expected_duration_hours = expected_duration_hours;
+            c.expected_start_date = expected_start_date;
+            c.expected_finish_date = expected_finish_date;
+            c.observations = observations;
+            return c;
+        }
+    }
+
     public static class PolygonOperations {
         public int polygon_id;
         public List<PolygonOperation> operations;
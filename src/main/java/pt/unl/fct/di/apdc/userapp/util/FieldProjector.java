@@ -0,0 +1,106 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Campos visíveis de uma entidade por role, calculados uma vez na construção. Cada {@link View} escreve a
+ * entidade diretamente num JsonWriter, sem passar por um Map; nas listagens resolve-se a View uma vez por
+ * pedido e reutiliza-se para todas as linhas.
+ */
+public class FieldProjector {
+
+    private static final Gson GSON = new Gson();
+    private static final Gson GSON_NULLS = new GsonBuilder().serializeNulls().create();
+
+    private final Map<String, View> byRole = new HashMap<>();
+    private final View fallback;
+
+    /**
+     * @param fields campos por omissão, ou null para todos os da entidade
+     * @param hidden campos nunca escritos
+     * @param perRole restrições por role (interseção com fields)
+     * @param serializeNulls se os valores nulos são escritos (como o Gson de quem chama)
+     */
+    public FieldProjector(Collection<String> fields, Set<String> hidden, Map<String, ? extends Collection<String>> perRole,
+            boolean serializeNulls) {
+        fallback = new View(fields == null ? null : visible(fields, null, hidden), hidden, serializeNulls);
+        for (Map.Entry<String, ? extends Collection<String>> e : perRole.entrySet())
+            byRole.put(e.getKey().toUpperCase(Locale.ROOT),
+                    new View(visible(e.getValue(), fields, hidden), hidden, serializeNulls));
+    }
+
+    private static List<String> visible(Collection<String> wanted, Collection<String> allowed, Set<String> hidden) {
+        List<String> names = new ArrayList<>();
+        for (String name : wanted) {
+            if ((allowed == null || allowed.contains(name)) && !hidden.contains(name) && !names.contains(name))
+                names.add(name);
+        }
+        return names;
+    }
+
+    public View forRole(String role) {
+        View view = role == null ? null : byRole.get(role.toUpperCase(Locale.ROOT));
+        return view != null ? view : fallback;
+    }
+
+    public static class View {
+        private final List<String> fields; // null = todos os da entidade menos os escondidos
+        private final Set<String> hidden;
+        private final boolean serializeNulls;
+
+        View(List<String> fields, Set<String> hidden, boolean serializeNulls) {
+            this.fields = fields;
+            this.hidden = hidden;
+            this.serializeNulls = serializeNulls;
+        }
+
+        /** Escreve {idName: id, campos visíveis...}. */
+        public void write(JsonWriter out, String idName, String id, BaseEntity<?> entity) throws IOException {
+            out.beginObject();
+            out.name(idName).value(id);
+            if (fields != null) {
+                for (String name : fields) {
+                    if (entity.contains(name))
+                        writeValue(out, name, entity.getValue(name).get());
+                }
+            } else {
+                for (String name : entity.getNames()) {
+                    if (!hidden.contains(name))
+                        writeValue(out, name, entity.getValue(name).get());
+                }
+            }
+            out.endObject();
+        }
+
+        public String toJson(String idName, String id, BaseEntity<?> entity) throws IOException {
+            StringWriter buffer = new StringWriter();
+            JsonWriter out = new JsonWriter(buffer);
+            write(out, idName, id, entity);
+            out.flush();
+            return buffer.toString();
+        }
+
+        private void writeValue(JsonWriter out, String name, Object value) throws IOException {
+            if (value == null) {
+                if (serializeNulls)
+                    out.name(name).nullValue();
+                return;
+            }
+            out.name(name);
+            (serializeNulls ? GSON_NULLS : GSON).toJson(value, value.getClass(), out);
+        }
+    }
+}
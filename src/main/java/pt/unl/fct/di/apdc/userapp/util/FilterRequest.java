@@ -4,7 +4,8 @@ public class FilterRequest {
     public TokenAuth token;
     public String status;
     public int limit = 10;
-    public int offset = 0;
+    public int offset = 0; // deprecated: usar cursor
+    public String cursor; // header X-Next-Cursor da página anterior
 
     public FilterRequest() {}
 
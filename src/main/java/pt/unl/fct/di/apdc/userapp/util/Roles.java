@@ -1,6 +1,5 @@
 package pt.unl.fct.di.apdc.userapp.util;
 
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -38,11 +37,14 @@ public class Roles {
     }
 
     // === VERIFICA SE O ROLE É UM DOS ENUMERADOS ===
+    // Chamado em ciclos apertados: sem streams nem cópias em maiúsculas
     public static boolean is(String role, String... accepted) {
         if (role == null) return false;
-        return Arrays.stream(accepted)
-                     .map(String::toUpperCase)
-                     .anyMatch(r -> r.equals(role.toUpperCase()));
+        for (String r : accepted) {
+            if (r.equalsIgnoreCase(role))
+                return true;
+        }
+        return false;
     }
 
     // === VALIDA SE UM ROLE É UM DOS CONHECIDOS NO SISTEMA ===
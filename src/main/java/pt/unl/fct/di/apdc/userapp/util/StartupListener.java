@@ -0,0 +1,70 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import pt.unl.fct.di.apdc.userapp.util.deletion.WorkSheetDeletionJobs;
+import pt.unl.fct.di.apdc.userapp.util.geo.WorkSheetTiles;
+import pt.unl.fct.di.apdc.userapp.util.imports.WorkSheetImportJobs;
+import pt.unl.fct.di.apdc.userapp.util.search.WorkSheetSearchIndex;
+import pt.unl.fct.di.apdc.userapp.util.storage.ResumableUploads;
+
+/** Tarefas de arranque da instância (registado no web.xml). */
+public class StartupListener implements ServletContextListener {
+
+    private static final Logger LOG = Logger.getLogger(StartupListener.class.getName());
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        Datastore datastore = DatastoreOptions.getDefaultInstance().getService();
+        // Em segundo plano para não atrasar o primeiro pedido; pesquisas feitas antes esperam pelo fim
+        Thread builder = new Thread(() -> {
+            try {
+                WorkSheetSearchIndex.ensureFresh(datastore);
+            } catch (Exception e) {
+                LOG.warning("Failed to build search index at startup: " + e.getMessage());
+            }
+        }, "search-index-builder");
+        builder.setDaemon(true);
+        builder.start();
+
+        // Índice dos tiles, também fora do caminho dos pedidos
+        WorkSheetTiles.startLoad(datastore);
+
+        // Jobs de importação interrompidos por um reinício
+        Thread imports = new Thread(() -> {
+            try {
+                WorkSheetImportJobs.resumePending(datastore);
+            } catch (Exception e) {
+                LOG.warning("Failed to resume import jobs: " + e.getMessage());
+            }
+        }, "import-resume");
+        imports.setDaemon(true);
+        imports.start();
+
+        // Apagamentos em cascata por acabar
+        Thread deletions = new Thread(() -> {
+            try {
+                WorkSheetDeletionJobs.resumePending(datastore);
+            } catch (Exception e) {
+                LOG.warning("Failed to resume deletion jobs: " + e.getMessage());
+            }
+        }, "deletion-resume");
+        deletions.setDaemon(true);
+        deletions.start();
+
+        // Sessões de upload retomável abandonadas
+        ResumableUploads.startCleanup();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        WorkSheetImportJobs.shutdown();
+        WorkSheetDeletionJobs.shutdown();
+        ResumableUploads.shutdown();
+    }
+}
@@ -0,0 +1,15 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.List;
+
+public class UserBatchRequest {
+
+    public List<String> usernames;
+
+    public UserBatchRequest() {
+    }
+
+    public boolean valid() {
+        return usernames != null && !usernames.isEmpty();
+    }
+}
@@ -0,0 +1,103 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+
+/**
+ * Listagem de utilizadores, toda ou paginada. Os valores de "user_role", "user_account_state" e "user_profile"
+ * foram guardados sem normalizar (maiúsculas e minúsculas variam), por isso não servem para filtros de igualdade
+ * no índice: a consulta percorre o kind por ordem de chave e as regras do RolePermissions.canView (e, para RU/VU,
+ * ATIVADO e PUBLICO) são aplicadas na leitura, sem distinguir maiúsculas, como antes.
+ * Uma página lê no máximo SCAN_MAX utilizadores; se não chegarem para encher a página, devolve menos com cursor.
+ */
+public class UserListing {
+
+    public static final String KIND = "User";
+    // Campos que RU e VU podem ver de outros utilizadores
+    public static final List<String> PUBLIC_FIELDS = List.of("user_email", "user_name");
+    /** Campos de um utilizador por role de quem pede: nunca a password; RU/VU só nome e email. */
+    public static final FieldProjector FIELDS = new FieldProjector(null, Set.of("user_pwd"),
+            Map.of(Roles.RU, PUBLIC_FIELDS, Roles.VU, PUBLIC_FIELDS), false);
+
+    private static final int SCAN_MAX = Integer.getInteger("users.page.scan", 2000);
+    private static final int BATCH = 500;
+
+    public static class Page {
+        public final List<BaseEntity<Key>> users;
+        public final String nextCursor;
+
+        Page(List<BaseEntity<Key>> users, String nextCursor) {
+            this.users = users;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    public static class InvalidCursorException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidCursorException(String message) {
+            super(message);
+        }
+    }
+
+    /** Utilizadores visíveis a partir do cursor; com limit 0 devolve todos, sem cursor seguinte. */
+    public static Page fetch(Datastore datastore, String requesterRole, String cursor, int limit)
+            throws InvalidCursorException {
+        Cursor start = null;
+        if (cursor != null && !cursor.isBlank()) {
+            try {
+                start = Cursor.fromUrlSafe(cursor);
+            } catch (RuntimeException e) {
+                throw new InvalidCursorException("Invalid cursor.");
+            }
+        }
+
+        List<BaseEntity<Key>> users = new ArrayList<>();
+        int scanned = 0;
+        while (true) {
+            // Em modo paginado nunca se lê mais do que falta, para o cursor ficar logo a seguir ao último
+            int batch = limit > 0 ? Math.min(limit - users.size(), SCAN_MAX - scanned) : BATCH;
+            var builder = Query.newEntityQueryBuilder().setKind(KIND).setLimit(batch);
+            if (start != null)
+                builder.setStartCursor(start);
+            QueryResults<Entity> results = datastore.run(builder.build());
+            int fetched = 0;
+            while (results.hasNext()) {
+                Entity user = results.next();
+                fetched++;
+                if (visible(requesterRole, user))
+                    users.add(user);
+            }
+            if (fetched < batch)
+                return new Page(users, null);
+            start = results.getCursorAfter();
+            scanned += fetched;
+            if (limit > 0 && (users.size() >= limit || scanned >= SCAN_MAX))
+                return new Page(users, start.toUrlSafe());
+        }
+    }
+
+    /** As mesmas regras da listagem original: canView e, para RU/VU, só contas ativadas e públicas. */
+    static boolean visible(String requesterRole, Entity user) {
+        if (!RolePermissions.canView(requesterRole, string(user, "user_role")))
+            return false;
+        if (Roles.is(requesterRole, Roles.RU, Roles.VU))
+            return "ATIVADO".equalsIgnoreCase(string(user, "user_account_state"))
+                    && "PUBLICO".equalsIgnoreCase(string(user, "user_profile"));
+        return true;
+    }
+
+    private static String string(Entity user, String name) {
+        return user.contains(name) && !user.isNull(name) ? user.getString(name) : "";
+    }
+}
@@ -0,0 +1,132 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+
+/**
+ * Resumos de utilizadores (nome, foto, role) para resolver os ids que aparecem no feed, comentários e execução.
+ * Os que faltam na cache são lidos com um único multi-get e guardados durante um TTL curto; as escritas locais
+ * sobre utilizadores invalidam a entrada, as de outras instâncias ficam visíveis ao fim do TTL.
+ */
+public class UserSummaries {
+
+    private static final long TTL_MS = Long.getLong("users.summary.ttl.ms", 60_000L);
+    private static final int CACHE_SIZE = Integer.getInteger("users.summary.cache", 4096);
+
+    public static class Summary {
+        public final String username;
+        public final String name;
+        public final String photo_url;
+        public final String role;
+        // Só para decidir a visibilidade, não são devolvidos
+        final transient String state;
+        final transient String profile;
+        final transient long loadedAt;
+
+        Summary(Entity user, long loadedAt) {
+            this.username = user.getKey().getName();
+            this.name = string(user, "user_name");
+            this.photo_url = string(user, "user_photo_url");
+            this.role = string(user, "user_role");
+            this.state = string(user, "user_account_state");
+            this.profile = string(user, "user_profile");
+            this.loadedAt = loadedAt;
+        }
+
+        /** As mesmas regras do GET /utils/user/{username}. */
+        public boolean visibleTo(String requesterRole) {
+            if (!RolePermissions.canView(requesterRole, role))
+                return false;
+            if (Roles.is(requesterRole, Roles.RU, Roles.VU))
+                return "ATIVADO".equalsIgnoreCase(state) && "PUBLICO".equalsIgnoreCase(profile);
+            return true;
+        }
+    }
+
+    /** Resposta do pedido em lote: inexistentes e não visíveis não se distinguem. */
+    public static class Batch {
+        public final List<Summary> users = new ArrayList<>();
+        public final List<String> unavailable = new ArrayList<>();
+    }
+
+    private static final Map<String, Summary> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, Summary>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Summary> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+    // Evita guardar um utilizador lido antes de uma invalidação
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static String string(Entity user, String name) {
+        return user.contains(name) && !user.isNull(name) ? user.getString(name) : null;
+    }
+
+    /** Resumos dos utilizadores que existem, por username; os inexistentes ficam de fora. */
+    public static Map<String, Summary> get(Datastore datastore, Collection<String> usernames) {
+        long now = System.currentTimeMillis();
+        Map<String, Summary> found = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String username : usernames) {
+            Summary cached = CACHE.get(username);
+            if (cached != null && now - cached.loadedAt < TTL_MS)
+                found.put(username, cached);
+            else
+                missing.add(username);
+        }
+        if (missing.isEmpty())
+            return found;
+
+        long gen = generation.get();
+        KeyFactory factory = datastore.newKeyFactory().setKind(UserListing.KIND);
+        Key[] keys = new Key[missing.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = factory.newKey(missing.get(i));
+        for (Entity user : datastore.fetch(keys)) {
+            if (user == null)
+                continue;
+            Summary summary = new Summary(user, now);
+            found.put(summary.username, summary);
+            if (generation.get() == gen)
+                CACHE.put(summary.username, summary);
+        }
+        return found;
+    }
+
+    /** Resumos visíveis para quem pede, pela ordem do pedido e sem repetidos. */
+    public static Batch resolve(Datastore datastore, String requesterRole, Collection<String> usernames) {
+        Set<String> wanted = new LinkedHashSet<>();
+        for (String username : usernames) {
+            if (username != null && !username.isBlank())
+                wanted.add(username);
+        }
+        Map<String, Summary> found = get(datastore, wanted);
+        Batch batch = new Batch();
+        for (String username : wanted) {
+            Summary summary = found.get(username);
+            if (summary != null && summary.visibleTo(requesterRole))
+                batch.users.add(summary);
+            else
+                batch.unavailable.add(username);
+        }
+        return batch;
+    }
+
+    public static void invalidate(String username) {
+        generation.incrementAndGet();
+        CACHE.remove(username);
+    }
+}
@@ -0,0 +1,37 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery;
+
+/**
+ * Folhas alteradas recentemente, vistas através dos contadores EntityVersion.
+ * Usado pelas estruturas em memória (tiles, pesquisa) para apanharem escritas feitas noutras instâncias.
+ */
+public class WorkSheetChanges {
+
+    // Margem para escritas cuja transação terminou depois do timestamp gravado
+    public static final long OVERLAP_MS = 60_000;
+
+    /** Id da folha -> versão atual, para as folhas cujo contador mudou desde {@code sinceMs}. */
+    public static Map<String, Long> since(Datastore datastore, long sinceMs) {
+        QueryResults<Entity> changed = datastore.run(Query.newEntityQueryBuilder()
+                .setKind("EntityVersion")
+                .setFilter(StructuredQuery.PropertyFilter.ge("updated_at", sinceMs - OVERLAP_MS))
+                .build());
+        Map<String, Long> versions = new HashMap<>();
+        while (changed.hasNext()) {
+            Entity v = changed.next();
+            Key parent = v.getKey().getParent();
+            if (parent != null && "WorkSheet".equals(parent.getKind()))
+                versions.put(parent.getName(), v.getLong("version"));
+        }
+        return versions;
+    }
+}
@@ -49,11 +49,15 @@ public class WorkSheetData {
     public TokenAuth token;
 
     public boolean valid() {
+        return validMetadata() && features != null && !features.isEmpty();
+    }
+
+    // Campos obrigatórios exceto as features (no upload em streaming chegam à parte)
+    public boolean validMetadata() {
         return id != null && issue_date != null &&
                starting_date != null && finishing_date != null &&
                award_date != null && service_provider_id != null &&
                posa_code != null && posp_code != null &&
-               features != null && !features.isEmpty() &&
                operations != null && !operations.isEmpty();
     }
 }
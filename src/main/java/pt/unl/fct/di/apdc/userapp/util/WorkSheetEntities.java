@@ -0,0 +1,164 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import pt.unl.fct.di.apdc.userapp.util.geo.GeometryValidator;
+
+/** Construção das entidades WorkSheet no formato guardado no Datastore. */
+public class WorkSheetEntities {
+
+    private static final Gson GSON = new GsonBuilder().serializeNulls().create();
+
+    /**
+     * Metadados da folha; as features são escritas à parte, em blocos (ver {@link FeatureIngest}).
+     * Não se guarda o CRS: as features ficam sempre em WGS84.
+     */
+    public static Entity build(Key key, WorkSheetData data, String createdBy) {
+        return Entity.newBuilder(key)
+                .set("title", data.title)
+                .set("issue_date", data.issue_date)
+                .set("award_date", data.award_date)
+                .set("starting_date", data.starting_date)
+                .set("finishing_date", data.finishing_date)
+                .set("status", "nao_iniciado")
+                .set("service_provider_id", data.service_provider_id)
+                .set("issuing_user_id", data.issuing_user_id)
+                .set("posa_code", data.posa_code)
+                .set("posa_description", data.posa_description)
+                .set("posp_code", data.posp_code)
+                .set("posp_description", data.posp_description)
+                .set("aigp", GSON.toJson(data.aigp))
+                .set("operations", GSON.toJson(data.operations))
+                .set("created_by", createdBy)
+                .set("created_at", System.currentTimeMillis())
+                .build();
+    }
+
+    /**
+     * Valida e normaliza as features de um pedido e grava-as em blocos da folha key, sem as pôr na folha
+     * (ver {@link FeatureIngest#attach}). Em caso de erro os blocos já gravados são apagados.
+     */
+    public static FeatureIngest ingest(Datastore datastore, Key key, List<WorkSheetData.Feature> features, String crs)
+            throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+        FeatureIngest ingest = new FeatureIngest(datastore, key);
+        try {
+            ingest.crs(crs);
+            for (int i = 0; i < features.size(); i++)
+                ingest.accept(i, features.get(i));
+            ingest.finish();
+            return ingest;
+        } catch (WorkSheetGeoJsonParser.InvalidGeoJsonException | RuntimeException e) {
+            ingest.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Recebe as features uma a uma (do parser ou de um pedido), valida-as e normaliza-as em lotes pelo
+     * {@link GeometryValidator}, em paralelo, e passa-as a um {@link WorkSheetFeatureStore.Staging} que as grava
+     * em blocos à medida que enchem. Sem a chave da folha à partida, a chave vem dos metadados; features que
+     * cheguem antes dos metadados ficam em memória até MAX_HELD.
+     */
+    public static class FeatureIngest implements WorkSheetGeoJsonParser.FeatureSink {
+        private static final int VALIDATION_BATCH = 256;
+        private static final int MAX_HELD = 2_000;
+
+        private final Datastore datastore;
+        private Key key;
+        private WorkSheetFeatureStore.Staging staging;
+        private final List<WorkSheetData.Feature> pending = new ArrayList<>();
+        private final List<WorkSheetData.Feature> held = new ArrayList<>();
+        private int pendingFrom = 0;
+        private String crs;
+        private boolean written = false;
+
+        public FeatureIngest(Datastore datastore, Key key) {
+            this.datastore = datastore;
+            this.key = key;
+        }
+
+        @Override
+        public void crs(String name) throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+            GeometryValidator.checkCrs(name);
+            // A conversão depende do CRS: não pode mudar depois de haver features validadas
+            if (written && GeometryValidator.isPtTm06(name) != GeometryValidator.isPtTm06(crs))
+                throw new WorkSheetGeoJsonParser.InvalidGeoJsonException("crs must appear before the features");
+            crs = name;
+        }
+
+        @Override
+        public void metadata(WorkSheetData data) throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+            if (key == null) {
+                key = datastore.newKeyFactory().setKind("WorkSheet").newKey(data.id);
+                release();
+            }
+        }
+
+        @Override
+        public void accept(int index, WorkSheetData.Feature feature) throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+            if (pending.isEmpty())
+                pendingFrom = index;
+            pending.add(feature);
+            if (pending.size() >= VALIDATION_BATCH)
+                flush();
+        }
+
+        private void flush() throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+            if (pending.isEmpty())
+                return;
+            List<WorkSheetData.Feature> normalized = GeometryValidator.normalizeAll(pending, pendingFrom, crs);
+            pending.clear();
+            written = true;
+            if (staging == null) {
+                held.addAll(normalized);
+                if (held.size() > MAX_HELD)
+                    throw new WorkSheetGeoJsonParser.TooLargeException(
+                            "metadata must appear before the features in files with more than " + MAX_HELD + " features");
+                release();
+            } else {
+                for (WorkSheetData.Feature f : normalized)
+                    staging.add(f);
+            }
+        }
+
+        // Passa as features guardadas em memória para os blocos, assim que a chave da folha é conhecida
+        private void release() throws WorkSheetGeoJsonParser.TooLargeException {
+            if (key == null || !written)
+                return;
+            if (staging == null)
+                staging = new WorkSheetFeatureStore.Staging(datastore, key, null);
+            for (WorkSheetData.Feature f : held)
+                staging.add(f);
+            held.clear();
+        }
+
+        /** Valida o último lote; depois disto as features estão todas gravadas, exceto o último bloco. */
+        public void finish() throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+            flush();
+            release();
+        }
+
+        /**
+         * A folha com o manifesto dos blocos novos; key tem de ser a chave da folha. As features novas estão
+         * em WGS84, por isso o CRS de uma folha antiga deixa de valer.
+         */
+        public Entity attach(Entity ws) throws WorkSheetGeoJsonParser.TooLargeException {
+            if (staging == null)
+                staging = new WorkSheetFeatureStore.Staging(datastore, ws.getKey(), null);
+            return staging.attach(Entity.newBuilder(ws).remove("crs").build());
+        }
+
+        /** Apaga os blocos gravados, quando a folha acaba por não ser escrita. */
+        public void discard() {
+            if (staging != null)
+                staging.discard();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Value;
+
+/**
+ * Leitura paginada das folhas para exportação. Lê-se a entidade completa: uma projection query omitiria as folhas
+ * a que falte alguma das colunas (ex.: sem award_date) e as features já não estão na entidade, ficam nos chunks
+ * do WorkSheetFeatureStore.
+ */
+public class WorkSheetExport {
+
+    private static final int PAGE_SIZE = 500;
+
+    // Coluna -> cabeçalho; "id" é o nome da chave, as restantes são propriedades
+    public static final Map<String, String> COLUMNS = new LinkedHashMap<>();
+    static {
+        COLUMNS.put("id", "ID");
+        COLUMNS.put("title", "Title");
+        COLUMNS.put("status", "Status");
+        COLUMNS.put("issue_date", "Issue Date");
+        COLUMNS.put("award_date", "Award Date");
+        COLUMNS.put("starting_date", "Starting Date");
+        COLUMNS.put("finishing_date", "Finishing Date");
+        COLUMNS.put("service_provider_id", "Service Provider");
+        COLUMNS.put("issuing_user_id", "Issuing User");
+        COLUMNS.put("aigp", "AIGP");
+        COLUMNS.put("posa_code", "POSA Code");
+        COLUMNS.put("posa_description", "POSA Description");
+        COLUMNS.put("posp_code", "POSP Code");
+        COLUMNS.put("posp_description", "POSP Description");
+        COLUMNS.put("created_by", "Created By");
+        COLUMNS.put("created_at", "Created At");
+    }
+
+    public interface RowConsumer {
+        void accept(BaseEntity<Key> row) throws IOException;
+    }
+
+    public static void forEach(Datastore datastore, RowConsumer consumer) throws IOException {
+        Cursor cursor = null;
+        while (true) {
+            EntityQuery.Builder builder = Query.newEntityQueryBuilder().setKind("WorkSheet").setLimit(PAGE_SIZE);
+            if (cursor != null)
+                builder.setStartCursor(cursor);
+            QueryResults<Entity> results = datastore.run(builder.build());
+            int count = 0;
+            while (results.hasNext()) {
+                consumer.accept(results.next());
+                count++;
+            }
+            if (count < PAGE_SIZE)
+                return;
+            cursor = results.getCursorAfter();
+        }
+    }
+
+    public static String value(BaseEntity<Key> row, String column) {
+        if ("id".equals(column))
+            return row.getKey().getName();
+        if (!row.contains(column))
+            return "";
+        Value<?> v = row.getValue(column);
+        Object raw = v.get();
+        return raw == null ? "" : raw.toString();
+    }
+}
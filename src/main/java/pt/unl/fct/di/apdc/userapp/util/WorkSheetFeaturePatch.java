@@ -0,0 +1,23 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.List;
+
+public class WorkSheetFeaturePatch {
+    public String id;
+    public Long version; // features_version lido pelo cliente; se mudou entretanto o patch é recusado
+    public List<WorkSheetData.Feature> add;
+    public List<WorkSheetData.Feature> modify; // substituídas pelo polygon_id
+    public List<String> remove; // polygon_id
+
+    public WorkSheetFeaturePatch() {}
+
+    public boolean isEmpty() {
+        return (add == null || add.isEmpty()) && (modify == null || modify.isEmpty())
+                && (remove == null || remove.isEmpty());
+    }
+
+    public int size() {
+        return (add == null ? 0 : add.size()) + (modify == null ? 0 : modify.size())
+                + (remove == null ? 0 : remove.size());
+    }
+}
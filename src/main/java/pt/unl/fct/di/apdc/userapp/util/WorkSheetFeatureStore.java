@@ -0,0 +1,797 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.DatastoreReader;
+import com.google.cloud.datastore.DatastoreWriter;
+import com.google.cloud.datastore.DoubleValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.IncompleteKey;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.Transaction;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import pt.unl.fct.di.apdc.userapp.util.geo.Envelope;
+import pt.unl.fct.di.apdc.userapp.util.geo.GeometryCodec;
+import pt.unl.fct.di.apdc.userapp.util.geo.GeometryValidator;
+import pt.unl.fct.di.apdc.userapp.util.geo.Parcel;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
+import pt.unl.fct.di.apdc.userapp.util.storage.LargeProperties;
+
+/**
+ * Features das folhas de obra guardadas em blocos. Cada bloco é um filho "WorkSheetFeatures" (id numérico)
+ * com até CHUNK_FEATURES features; a folha guarda o manifesto dos blocos ("feature_chunks": id, nº de features
+ * e envelope de cada um), o total e "features_version". Um patch lê e reescreve só os blocos que contêm as
+ * parcelas alteradas, encontrados pela propriedade indexada "polygon_ids".
+ * Em cada bloco as geometrias vão em binário ("geometry", ver {@link GeometryCodec}) e as properties num array
+ * JSON à parte ("properties"); blocos escritos antes disso, com o array "features" em JSON, continuam a ser lidos.
+ * Folhas antigas com a propriedade "features" continuam a ser lidas e passam a blocos na primeira escrita.
+ *
+ * Um bloco com uma parcela enorme (o corte por CHUNK_BYTES só se faz entre features) pode não caber no limite de
+ * 1 MiB da entidade: acima de CHUNK_INLINE_MAX a geometria e as properties do bloco vão para o BlobStore
+ * através de {@link LargeProperties}, com os objetos debaixo do prefixo do bloco.
+ *
+ * Uma substituição completa não cabe numa transação quando a folha é grande: os blocos novos são gravados um a um
+ * por {@link Staging}, com ids alocados, e só passam a contar quando o manifesto é posto na folha. Os blocos que
+ * não estão no manifesto (de uma substituição em curso ou interrompida) são ignorados e apagados com a folha.
+ */
+public class WorkSheetFeatureStore {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetFeatureStore.class.getName());
+
+    public static final String KIND = "WorkSheetFeatures";
+    public static final String MANIFEST = "feature_chunks";
+    public static final String VERSION = "features_version";
+    public static final String COUNT = "feature_count";
+    public static final String AREA = "parcels_area_ha";
+    /** Propriedades da folha escritas só por esta classe; o /edit de atributos não as pode alterar. */
+    public static final Set<String> MANAGED = Set.of("features", MANIFEST, VERSION, COUNT, AREA);
+
+    private static final Gson GSON = new GsonBuilder().serializeNulls().create();
+    private static final int CHUNK_FEATURES = Integer.getInteger("worksheet.features.chunk.size", 100);
+    // Bem abaixo do limite de 1 MiB por entidade, para um bloco poder crescer com modificações
+    private static final int CHUNK_BYTES = 256_000;
+    // Geometria + properties acima disto saem da entidade (o resto do bloco e o overhead cabem no que sobra)
+    private static final int CHUNK_INLINE_MAX = 900_000;
+    private static final String[] CHUNK_PAYLOAD = { "geometry", "properties" };
+    // Estimativa por par de coordenadas em delta-varint (pontos vizinhos ficam em 2-4 bytes cada)
+    private static final int BYTES_PER_POINT = 8;
+    private static final Type PROPERTIES_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+    private static final int MAX_PATCH_OPERATIONS = 500;
+    // O manifesto tem de caber na entidade da folha (1 MiB). Com env e área arredondados uma entrada tem no máximo
+    // ~108 bytes em JSON (id de 16 dígitos, env com 6 casas decimais), por isso 7000 blocos são ~760 KB e sobram
+    // ~280 KB para o resto da folha
+    private static final int MAX_CHUNKS = Integer.getInteger("worksheet.features.max.chunks", 7000);
+    // 1e-6 graus são ~0,1 m; 1e-4 ha é 1 m²
+    private static final double ENV_SCALE = 1e6, AREA_SCALE = 1e4;
+    // Blocos antigos apagados por pedido depois de uma substituição
+    private static final int DELETE_BATCH = 400;
+
+    public static class PatchConflictException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public final long currentVersion;
+
+        public PatchConflictException(long currentVersion) {
+            super("Features were modified (current version " + currentVersion + ")");
+            this.currentVersion = currentVersion;
+        }
+    }
+
+    public static class InvalidPatchException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidPatchException(String message) {
+            super(message);
+        }
+    }
+
+    // Entrada do manifesto; env = [minLon, minLat, maxLon, maxLat] ou null, area em ha
+    private static class ChunkInfo {
+        long id;
+        int count;
+        double area;
+        double[] env;
+        // Entidade acabada de escrever (não vai para o manifesto)
+        transient Entity entity;
+    }
+
+    // Bloco carregado para alteração
+    private static class Chunk {
+        final long id;
+        final List<WorkSheetData.Feature> features;
+        // Como estava guardado, ou null se é um bloco novo
+        final Entity stored;
+
+        Chunk(long id, List<WorkSheetData.Feature> features, Entity stored) {
+            this.id = id;
+            this.features = features;
+            this.stored = stored;
+        }
+    }
+
+    public static Key chunkKey(Key worksheetKey, long chunkId) {
+        return Key.newBuilder(worksheetKey, KIND, chunkId).build();
+    }
+
+    public static long versionOf(Entity ws) {
+        return ws.contains(VERSION) ? ws.getLong(VERSION) : 0L;
+    }
+
+    /** Chaves de todos os blocos da folha, tiradas do manifesto (sem consultas). */
+    public static List<Key> chunkKeys(Entity ws) {
+        List<Key> keys = new ArrayList<>();
+        for (ChunkInfo c : manifestOf(ws))
+            keys.add(chunkKey(ws.getKey(), c.id));
+        return keys;
+    }
+
+    /** Array JSON com todas as features, pela ordem dos blocos. */
+    public static String read(DatastoreReader reader, Entity ws) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.setSerializeNulls(true);
+        write(reader, ws, writer);
+        writer.flush();
+        return out.toString();
+    }
+
+    /** Escreve o array de features diretamente a partir dos blocos, sem construir o modelo com listas. */
+    public static void write(DatastoreReader reader, Entity ws, JsonWriter out) throws IOException {
+        if (ws.contains("features")) {
+            out.jsonValue(ws.getString("features"));
+            return;
+        }
+        out.beginArray();
+        List<Key> keys = chunkKeys(ws);
+        if (!keys.isEmpty()) {
+            for (Entity chunk : reader.fetch(keys.toArray(Key[]::new))) {
+                if (chunk != null)
+                    writeFeatures(chunk, 0, Integer.MAX_VALUE, out);
+            }
+        }
+        out.endArray();
+    }
+
+    /**
+     * Escreve {"total", "offset", "features"} com as features [offset, offset + limit); só são lidos os blocos
+     * que intersetam esse intervalo.
+     */
+    public static void writePage(DatastoreReader reader, Entity ws, int offset, int limit, JsonWriter out)
+            throws IOException {
+        out.beginObject();
+        if (ws.contains("features") || !ws.contains(MANIFEST)) {
+            out.name("features").beginArray();
+            int total = ws.contains("features") ? copyRange(ws.getString("features"), offset, limit, out)[1] : 0;
+            out.endArray();
+            out.name("total").value(total).name("offset").value(offset);
+            out.endObject();
+            return;
+        }
+
+        out.name("total").value(ws.contains(COUNT) ? ws.getLong(COUNT) : 0).name("offset").value(offset);
+        out.name("features").beginArray();
+        Map<Key, Integer> needed = new LinkedHashMap<>(); // bloco -> offset dentro do bloco
+        int start = 0;
+        for (ChunkInfo c : manifestOf(ws)) {
+            int end = start + c.count;
+            if (end > offset && start < offset + limit)
+                needed.put(chunkKey(ws.getKey(), c.id), Math.max(0, offset - start));
+            start = end;
+        }
+        if (!needed.isEmpty()) {
+            List<Entity> chunks = reader.fetch(needed.keySet().toArray(Key[]::new));
+            int i = 0, written = 0;
+            for (Map.Entry<Key, Integer> e : needed.entrySet()) {
+                Entity chunk = chunks.get(i++);
+                if (chunk != null && written < limit)
+                    written += writeFeatures(chunk, e.getValue(), limit - written, out);
+            }
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    /** Só as properties de cada feature, pela ordem dos blocos; as geometrias nem são descodificadas. */
+    public static JsonArray properties(DatastoreReader reader, Entity ws) {
+        JsonArray result = new JsonArray();
+        if (ws.contains("features")) {
+            for (JsonElement f : JsonParser.parseString(ws.getString("features")).getAsJsonArray())
+                result.add(f.getAsJsonObject().get("properties"));
+            return result;
+        }
+        List<Key> keys = chunkKeys(ws);
+        if (keys.isEmpty())
+            return result;
+        for (Entity chunk : reader.fetch(keys.toArray(Key[]::new))) {
+            if (chunk == null)
+                continue;
+            if (chunk.contains("features")) {
+                for (JsonElement f : JsonParser.parseString(chunk.getString("features")).getAsJsonArray())
+                    result.add(f.getAsJsonObject().get("properties"));
+            } else {
+                try {
+                    result.addAll(propertiesOf(chunk));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to read feature chunk " + chunk.getKey() + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Parcelas da folha (para o índice espacial), construídas diretamente a partir dos arrays descodificados. */
+    public static List<Parcel> parcels(DatastoreReader reader, Entity ws, String status) throws IOException {
+        String worksheetId = ws.getKey().getName();
+        if (ws.contains("features"))
+            return Parcel.fromFeatures(worksheetId, status, parse(ws.getString("features")));
+        List<Parcel> parcels = new ArrayList<>();
+        List<Key> keys = chunkKeys(ws);
+        if (keys.isEmpty())
+            return parcels;
+        for (Entity chunk : reader.fetch(keys.toArray(Key[]::new))) {
+            if (chunk == null)
+                continue;
+            if (chunk.contains("features")) {
+                parcels.addAll(Parcel.fromFeatures(worksheetId, status, parse(chunk.getString("features"))));
+                continue;
+            }
+            GeometryCodec.Decoded g = geometryOf(chunk);
+            JsonArray props = propertiesOf(chunk);
+            for (int p = 0; p < g.polygonCount(); p++) {
+                List<double[]> rings = new ArrayList<>();
+                for (double[] ring : g.rings(p)) {
+                    if (ring.length >= 6)
+                        rings.add(ring);
+                }
+                if (!rings.isEmpty())
+                    parcels.add(new Parcel(worksheetId, polygonIdOf(props.get(p)), status, rings));
+            }
+        }
+        return parcels;
+    }
+
+    /** Envelope da folha a partir do manifesto, sem ler blocos; null se a folha não estiver em blocos. */
+    public static Envelope envelope(Entity ws) {
+        if (!ws.contains(MANIFEST))
+            return null;
+        Envelope env = null;
+        for (ChunkInfo c : manifestOf(ws)) {
+            if (c.env != null)
+                env = Envelope.union(env, new Envelope(c.env[0], c.env[1], c.env[2], c.env[3]));
+        }
+        return env;
+    }
+
+    /**
+     * Features novas de uma folha, gravadas em blocos à medida que chegam. Cada bloco é escrito fora de
+     * transação assim que enche, por isso só o bloco atual fica em memória; {@link #attach} devolve a folha com
+     * o manifesto dos blocos novos, a guardar pelo chamador numa transação que confirme que a folha não mudou.
+     * Depois do commit os blocos antigos são apagados com {@link #release}; se a escrita não chegar a ser feita,
+     * {@link #discard} apaga os blocos novos.
+     */
+    public static class Staging {
+        private final Datastore datastore;
+        private final Key worksheetKey;
+        private final int precision;
+        private final List<ChunkInfo> manifest = new ArrayList<>();
+        private final List<WorkSheetData.Feature> current = new ArrayList<>();
+        private int currentBytes = 0;
+
+        public Staging(Datastore datastore, Key worksheetKey, String crs) {
+            this.datastore = datastore;
+            this.worksheetKey = worksheetKey;
+            this.precision = GeometryCodec.precisionFor(crs);
+        }
+
+        public Key worksheetKey() {
+            return worksheetKey;
+        }
+
+        /** Acrescenta uma feature já normalizada; grava o bloco atual se já estiver cheio. */
+        public void add(WorkSheetData.Feature feature) throws WorkSheetGeoJsonParser.TooLargeException {
+            int size = sizeOf(feature);
+            if (!current.isEmpty() && (current.size() >= CHUNK_FEATURES || currentBytes + size > CHUNK_BYTES))
+                flush();
+            current.add(feature);
+            currentBytes += size;
+        }
+
+        private void flush() throws WorkSheetGeoJsonParser.TooLargeException {
+            if (current.isEmpty())
+                return;
+            if (manifest.size() >= MAX_CHUNKS)
+                throw new WorkSheetGeoJsonParser.TooLargeException(
+                        "A worksheet can have at most " + MAX_CHUNKS * CHUNK_FEATURES + " features");
+            manifest.add(writeChunk(datastore, worksheetKey, allocateChunkId(datastore, worksheetKey), current,
+                    precision));
+            current.clear();
+            currentBytes = 0;
+        }
+
+        /** Grava o último bloco e devolve a folha com o manifesto novo e a versão das features incrementada. */
+        public Entity attach(Entity ws) throws WorkSheetGeoJsonParser.TooLargeException {
+            flush();
+            return withManifest(ws, manifest, versionOf(ws) + 1);
+        }
+
+        public void discard() {
+            List<Key> keys = new ArrayList<>();
+            for (ChunkInfo c : manifest)
+                keys.add(chunkKey(worksheetKey, c.id));
+            delete(datastore, keys);
+            deleteOffloaded(worksheetKey, keys);
+        }
+    }
+
+    /** Apaga os blocos do manifesto anterior que já não estão no atual (depois do commit da substituição). */
+    public static void release(Datastore datastore, Entity before, Entity after) {
+        if (before == null)
+            return;
+        Set<Key> live = new HashSet<>(chunkKeys(after));
+        List<Key> old = new ArrayList<>();
+        for (Key k : chunkKeys(before)) {
+            if (!live.contains(k))
+                old.add(k);
+        }
+        delete(datastore, old);
+        deleteOffloaded(before.getKey(), old);
+    }
+
+    // Objetos no BlobStore dos blocos apagados; são raros, por isso basta uma listagem do prefixo dos blocos
+    private static void deleteOffloaded(Key worksheetKey, List<Key> chunkKeys) {
+        if (chunkKeys.isEmpty())
+            return;
+        Set<String> prefixes = new HashSet<>();
+        for (Key k : chunkKeys)
+            prefixes.add(LargeProperties.prefix(k));
+        String base = LargeProperties.prefix(worksheetKey) + KIND + "/";
+        try {
+            List<String> stale = new ArrayList<>();
+            for (String object : BlobStores.get().list(base)) {
+                int end = object.indexOf('/', base.length());
+                if (end > 0 && prefixes.contains(object.substring(0, end + 1)))
+                    stale.add(object);
+            }
+            LargeProperties.delete(stale);
+        } catch (Exception e) {
+            // Ficam debaixo do prefixo da folha e são apagados com ela
+            LOG.warning("Failed to delete offloaded feature chunks of " + worksheetKey + ": " + e.getMessage());
+        }
+    }
+
+    private static void delete(Datastore datastore, List<Key> keys) {
+        for (int from = 0; from < keys.size(); from += DELETE_BATCH) {
+            try {
+                datastore.delete(keys.subList(from, Math.min(from + DELETE_BATCH, keys.size())).toArray(Key[]::new));
+            } catch (DatastoreException e) {
+                // Ficam fora do manifesto: ninguém os lê e são apagados com a folha
+                LOG.warning("Failed to delete feature chunks: " + e.getMessage());
+            }
+        }
+    }
+
+    private static long allocateChunkId(Datastore datastore, Key worksheetKey) {
+        return datastore.allocateId(IncompleteKey.newBuilder(worksheetKey, KIND).build()).getId();
+    }
+
+    /**
+     * Aplica um patch dentro da transação e devolve a folha atualizada (a guardar pelo chamador).
+     * Em staleObjects ficam os objetos do BlobStore dos blocos reescritos ou apagados, a apagar depois do commit
+     * com {@link LargeProperties#delete}.
+     */
+    public static Entity patch(Transaction txn, Entity ws, WorkSheetFeaturePatch patch, List<String> staleObjects)
+            throws PatchConflictException, InvalidPatchException {
+        long version = versionOf(ws);
+        if (patch.version == null || patch.version != version)
+            throw new PatchConflictException(version);
+        if (patch.size() > MAX_PATCH_OPERATIONS)
+            throw new InvalidPatchException("A patch can have at most " + MAX_PATCH_OPERATIONS + " operations");
+
+        String crs = crsOf(ws);
+        // Folhas antigas guardadas noutro CRS só se convertem substituindo as features todas
+        if (!GeometryValidator.isWgs84(crs))
+            throw new InvalidPatchException("Worksheet coordinates are in " + crs
+                    + "; replace all its features (featuresEdited) to convert them to WGS84");
+        Map<String, WorkSheetData.Feature> added = byPolygonId(patch.add, "add", crs);
+        Map<String, WorkSheetData.Feature> modified = byPolygonId(patch.modify, "modify", crs);
+        Set<String> removed = new HashSet<>();
+        if (patch.remove != null) {
+            for (String id : patch.remove) {
+                if (id == null || !removed.add(id))
+                    throw new InvalidPatchException("Invalid or repeated polygon_id in remove: " + id);
+            }
+        }
+        Set<String> all = new HashSet<>(added.keySet());
+        for (String id : modified.keySet()) {
+            if (!all.add(id))
+                throw new InvalidPatchException("polygon_id " + id + " appears in more than one operation");
+        }
+        for (String id : removed) {
+            if (!all.add(id))
+                throw new InvalidPatchException("polygon_id " + id + " appears in more than one operation");
+        }
+
+        // Folha antiga com as features inline: aplica-se em memória e passa a blocos
+        if (ws.contains("features")) {
+            List<WorkSheetData.Feature> features = parse(ws.getString("features"));
+            Set<String> seen = apply(features, modified, removed);
+            for (String id : all) {
+                if (!added.containsKey(id) && !seen.contains(id))
+                    throw new InvalidPatchException("Unknown polygon_id " + id);
+            }
+            checkExisting(features, added.keySet());
+            features.addAll(added.values());
+            // Cabiam numa entidade, por isso os blocos cabem nesta transação
+            List<ChunkInfo> converted = new ArrayList<>();
+            int precision = GeometryCodec.precisionFor(crs);
+            for (List<WorkSheetData.Feature> part : split(features))
+                converted.add(writeChunk(txn, ws.getKey(), allocateChunkId(txn.getDatastore(), ws.getKey()), part,
+                        precision));
+            return withManifest(ws, converted, version + 1);
+        }
+
+        List<ChunkInfo> manifest = manifestOf(ws);
+        Set<Long> live = new HashSet<>();
+        for (ChunkInfo c : manifest)
+            live.add(c.id);
+        // Só chaves por polygon_id; os blocos distintos (e o último, se recebe as novas) vêm num único multi-get
+        Set<Key> keys = new LinkedHashSet<>();
+        for (String id : all) {
+            Key chunk = findChunk(txn, ws.getKey(), id, live);
+            boolean exists = chunk != null;
+            if (added.containsKey(id) && exists)
+                throw new InvalidPatchException("polygon_id " + id + " already exists");
+            if (!added.containsKey(id) && !exists)
+                throw new InvalidPatchException("Unknown polygon_id " + id);
+            if (exists)
+                keys.add(chunk);
+        }
+        // As novas vão para o último bloco, se ainda tiver espaço
+        ChunkInfo last = manifest.isEmpty() ? null : manifest.get(manifest.size() - 1);
+        boolean appendToLast = !added.isEmpty() && last != null && last.count < CHUNK_FEATURES;
+        if (appendToLast)
+            keys.add(chunkKey(ws.getKey(), last.id));
+        Map<Long, Chunk> touched = new LinkedHashMap<>();
+        if (!keys.isEmpty()) {
+            for (Entity e : txn.fetch(keys.toArray(Key[]::new))) {
+                if (e != null)
+                    touched.put(e.getKey().getId(), load(e));
+            }
+        }
+        for (Chunk chunk : touched.values())
+            apply(chunk.features, modified, removed);
+
+        if (!added.isEmpty()) {
+            Chunk target;
+            if (appendToLast) {
+                target = touched.get(last.id);
+                if (target == null) {
+                    target = new Chunk(last.id, new ArrayList<>(), null);
+                    touched.put(last.id, target);
+                }
+            } else {
+                target = new Chunk(allocateChunkId(txn.getDatastore(), ws.getKey()), new ArrayList<>(), null);
+                touched.put(target.id, target);
+            }
+            target.features.addAll(added.values());
+        }
+
+        Map<Long, ChunkInfo> byId = new LinkedHashMap<>();
+        for (ChunkInfo c : manifest)
+            byId.put(c.id, c);
+        int precision = GeometryCodec.precisionFor(crs);
+        for (Chunk chunk : touched.values()) {
+            Key key = chunkKey(ws.getKey(), chunk.id);
+            if (chunk.features.isEmpty()) {
+                txn.delete(key);
+                byId.remove(chunk.id);
+                staleObjects.addAll(LargeProperties.unreferenced(chunk.stored, null, CHUNK_PAYLOAD));
+                continue;
+            }
+            // Se o bloco cresceu demais, o excesso vai para blocos novos no fim
+            List<List<WorkSheetData.Feature>> parts = split(chunk.features);
+            ChunkInfo first = writeChunk(txn, ws.getKey(), chunk.id, parts.get(0), precision);
+            staleObjects.addAll(LargeProperties.unreferenced(chunk.stored, first.entity, CHUNK_PAYLOAD));
+            byId.put(chunk.id, first);
+            for (int i = 1; i < parts.size(); i++) {
+                long id = allocateChunkId(txn.getDatastore(), ws.getKey());
+                byId.put(id, writeChunk(txn, ws.getKey(), id, parts.get(i), precision));
+            }
+        }
+        if (byId.size() > MAX_CHUNKS)
+            throw new InvalidPatchException(
+                    "A worksheet can have at most " + MAX_CHUNKS * CHUNK_FEATURES + " features");
+        return withManifest(ws, new ArrayList<>(byId.values()), version + 1);
+    }
+
+    // Valida e normaliza as features do patch (com área, bbox e centróide) e indexa-as por polygon_id
+    private static Map<String, WorkSheetData.Feature> byPolygonId(List<WorkSheetData.Feature> features, String op,
+            String crs) throws InvalidPatchException {
+        Map<String, WorkSheetData.Feature> map = new LinkedHashMap<>();
+        if (features == null)
+            return map;
+        try {
+            features = GeometryValidator.normalizeAll(features, 0, crs);
+        } catch (GeometryValidator.InvalidGeometryException e) {
+            throw new InvalidPatchException(op + ": " + e.getMessage());
+        }
+        for (int i = 0; i < features.size(); i++) {
+            WorkSheetData.Feature f = features.get(i);
+            String id = Parcel.polygonIdOf(f);
+            if (id == null)
+                throw new InvalidPatchException(op + ": feature " + i + " has no polygon_id");
+            if (map.put(id, f) != null)
+                throw new InvalidPatchException(op + ": repeated polygon_id " + id);
+        }
+        return map;
+    }
+
+    // Devolve os polygon_id encontrados (modificados ou removidos)
+    private static Set<String> apply(List<WorkSheetData.Feature> features, Map<String, WorkSheetData.Feature> modified,
+            Set<String> removed) {
+        Set<String> seen = new HashSet<>();
+        for (int i = features.size() - 1; i >= 0; i--) {
+            String id = Parcel.polygonIdOf(features.get(i));
+            if (id == null)
+                continue;
+            if (removed.contains(id)) {
+                features.remove(i);
+                seen.add(id);
+            } else if (modified.containsKey(id)) {
+                features.set(i, modified.get(id));
+                seen.add(id);
+            }
+        }
+        return seen;
+    }
+
+    private static void checkExisting(List<WorkSheetData.Feature> features, Set<String> added)
+            throws InvalidPatchException {
+        for (WorkSheetData.Feature f : features) {
+            String id = Parcel.polygonIdOf(f);
+            if (id != null && added.contains(id))
+                throw new InvalidPatchException("polygon_id " + id + " already exists");
+        }
+    }
+
+    // Consulta de antepassado só de chaves: fortemente consistente e permitida dentro da transação.
+    // Só contam os blocos do manifesto; os de uma substituição em curso ou interrompida são ignorados
+    private static Key findChunk(Transaction txn, Key worksheetKey, String polygonId, Set<Long> live) {
+        Query<Key> query = Query.newKeyQueryBuilder()
+                .setKind(KIND)
+                .setFilter(StructuredQuery.CompositeFilter.and(
+                        StructuredQuery.PropertyFilter.hasAncestor(worksheetKey),
+                        StructuredQuery.PropertyFilter.eq("polygon_ids", polygonId)))
+                .build();
+        QueryResults<Key> results = txn.run(query);
+        while (results.hasNext()) {
+            Key chunk = results.next();
+            if (live.contains(chunk.getId()))
+                return chunk;
+        }
+        return null;
+    }
+
+    // Só os blocos alterados por um patch voltam ao modelo com listas
+    private static Chunk load(Entity chunk) {
+        if (chunk.contains("features"))
+            return new Chunk(chunk.getKey().getId(), parse(chunk.getString("features")), chunk);
+        GeometryCodec.Decoded g;
+        JsonArray props;
+        try {
+            g = geometryOf(chunk);
+            props = propertiesOf(chunk);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt feature chunk " + chunk.getKey() + ": " + e.getMessage(), e);
+        }
+        List<WorkSheetData.Feature> features = new ArrayList<>();
+        for (int p = 0; p < g.polygonCount(); p++) {
+            WorkSheetData.Feature f = new WorkSheetData.Feature();
+            f.type = "Feature";
+            f.properties = GSON.fromJson(props.get(p), PROPERTIES_TYPE);
+            f.geometry = GeometryCodec.toGeometry(g, p);
+            features.add(f);
+        }
+        return new Chunk(chunk.getKey().getId(), features, chunk);
+    }
+
+    private static GeometryCodec.Decoded geometryOf(Entity chunk) throws IOException {
+        return GeometryCodec.decode(LargeProperties.getBytes(chunk, "geometry"));
+    }
+
+    private static JsonArray propertiesOf(Entity chunk) throws IOException {
+        return JsonParser.parseString(LargeProperties.get(chunk, "properties")).getAsJsonArray();
+    }
+
+    private static List<WorkSheetData.Feature> parse(String featuresJson) {
+        WorkSheetData.Feature[] parsed = GSON.fromJson(featuresJson, WorkSheetData.Feature[].class);
+        return new ArrayList<>(parsed == null ? List.of() : Arrays.asList(parsed));
+    }
+
+    // Escreve as features [from, from + max) do bloco e devolve quantas escreveu
+    private static int writeFeatures(Entity chunk, int from, int max, JsonWriter out) throws IOException {
+        if (chunk.contains("features"))
+            return copyRange(chunk.getString("features"), from, max, out)[0];
+        GeometryCodec.Decoded g = geometryOf(chunk);
+        JsonArray props = propertiesOf(chunk);
+        int to = (int) Math.min(g.polygonCount(), (long) from + max);
+        for (int p = from; p < to; p++) {
+            out.beginObject();
+            out.name("type").value("Feature");
+            out.name("properties");
+            GSON.toJson(props.get(p), out);
+            out.name("geometry");
+            GeometryCodec.writeGeometry(out, g, p);
+            out.endObject();
+        }
+        return Math.max(0, to - from);
+    }
+
+    // Copia os elementos [from, from + max) de um array JSON; devolve {escritos, total}
+    private static int[] copyRange(String json, int from, int max, JsonWriter out) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.beginArray();
+        int index = 0, written = 0;
+        while (reader.hasNext()) {
+            if (index >= from && written < max) {
+                GSON.toJson(JsonParser.parseReader(reader), out);
+                written++;
+            } else {
+                reader.skipValue();
+            }
+            index++;
+        }
+        reader.endArray();
+        return new int[] { written, index };
+    }
+
+    private static String polygonIdOf(JsonElement properties) {
+        if (properties == null || !properties.isJsonObject())
+            return null;
+        JsonElement id = properties.getAsJsonObject().get("polygon_id");
+        if (id == null || id.isJsonNull())
+            return null;
+        if (id.isJsonPrimitive() && id.getAsJsonPrimitive().isNumber()) {
+            double d = id.getAsDouble();
+            if (d == Math.rint(d))
+                return Long.toString((long) d);
+        }
+        return id.getAsString();
+    }
+
+    // Divide por número de features e pelo tamanho estimado (properties em JSON + geometria em binário)
+    private static List<List<WorkSheetData.Feature>> split(List<WorkSheetData.Feature> features) {
+        List<List<WorkSheetData.Feature>> parts = new ArrayList<>();
+        List<WorkSheetData.Feature> current = new ArrayList<>();
+        int bytes = 0;
+        for (WorkSheetData.Feature f : features) {
+            int size = sizeOf(f);
+            if (!current.isEmpty() && (current.size() >= CHUNK_FEATURES || bytes + size > CHUNK_BYTES)) {
+                parts.add(current);
+                current = new ArrayList<>();
+                bytes = 0;
+            }
+            current.add(f);
+            bytes += size;
+        }
+        if (!current.isEmpty())
+            parts.add(current);
+        return parts;
+    }
+
+    private static int sizeOf(WorkSheetData.Feature f) {
+        return GSON.toJson(f.properties).length() + 1 + BYTES_PER_POINT * pointCount(f);
+    }
+
+    private static int pointCount(WorkSheetData.Feature f) {
+        int n = 0;
+        if (f.geometry != null && f.geometry.coordinates != null) {
+            for (List<List<Double>> ring : f.geometry.coordinates)
+                n += ring.size();
+        }
+        return n;
+    }
+
+    private static ChunkInfo writeChunk(DatastoreWriter writer, Key worksheetKey, long id,
+            List<WorkSheetData.Feature> features, int precision) {
+        ListValue.Builder polygonIds = ListValue.newBuilder();
+        Set<String> ids = new HashSet<>();
+        for (WorkSheetData.Feature f : features) {
+            String pid = Parcel.polygonIdOf(f);
+            if (pid != null && ids.add(pid))
+                polygonIds.addValue(pid);
+        }
+        List<Map<String, Object>> properties = new ArrayList<>();
+        for (WorkSheetData.Feature f : features)
+            properties.add(f.properties);
+        Key key = chunkKey(worksheetKey, id);
+        byte[] geometry = GeometryCodec.encode(features, precision);
+        String propertiesJson = GSON.toJson(properties);
+        boolean offload = geometry.length + propertiesJson.getBytes(StandardCharsets.UTF_8).length > CHUNK_INLINE_MAX;
+        Entity.Builder chunk = Entity.newBuilder(key)
+                .set("count", LongValue.newBuilder(features.size()).setExcludeFromIndexes(true).build());
+        try {
+            LargeProperties.setBytes(chunk, key, "geometry", geometry, offload ? 0 : Integer.MAX_VALUE);
+            LargeProperties.set(chunk, key, "properties", propertiesJson, offload ? 0 : Integer.MAX_VALUE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to store feature chunk " + key + ": " + e.getMessage(), e);
+        }
+        if (!ids.isEmpty())
+            chunk.set("polygon_ids", polygonIds.build());
+        Entity written = chunk.build();
+        writer.put(written);
+
+        ChunkInfo info = new ChunkInfo();
+        info.entity = written;
+        info.id = id;
+        info.count = features.size();
+        double area = 0;
+        for (WorkSheetData.Feature f : features)
+            area += GeometryValidator.areaHa(f);
+        info.area = Math.round(area * AREA_SCALE) / AREA_SCALE;
+        Envelope env = null;
+        for (Parcel p : Parcel.fromFeatures(worksheetKey.getName(), null, features))
+            env = Envelope.union(env, p.envelope);
+        // Arredondado para fora, para o envelope continuar a conter o bloco
+        if (env != null)
+            info.env = new double[] { Math.floor(env.minLon() * ENV_SCALE) / ENV_SCALE,
+                    Math.floor(env.minLat() * ENV_SCALE) / ENV_SCALE, Math.ceil(env.maxLon() * ENV_SCALE) / ENV_SCALE,
+                    Math.ceil(env.maxLat() * ENV_SCALE) / ENV_SCALE };
+        return info;
+    }
+
+    private static String crsOf(Entity ws) {
+        return ws.contains("crs") ? ws.getString("crs") : null;
+    }
+
+    private static Entity withManifest(Entity ws, List<ChunkInfo> manifest, long version) {
+        int count = 0;
+        double area = 0;
+        for (ChunkInfo c : manifest) {
+            count += c.count;
+            area += c.area;
+        }
+        return Entity.newBuilder(ws)
+                .remove("features")
+                .set(MANIFEST, StringValue.newBuilder(GSON.toJson(manifest)).setExcludeFromIndexes(true).build())
+                .set(COUNT, count)
+                .set(AREA, DoubleValue.newBuilder(Math.round(area * 1e6) / 1e6).setExcludeFromIndexes(true).build())
+                .set(VERSION, LongValue.newBuilder(version).setExcludeFromIndexes(true).build())
+                .build();
+    }
+
+    private static List<ChunkInfo> manifestOf(Entity ws) {
+        if (!ws.contains(MANIFEST))
+            return new ArrayList<>();
+        ChunkInfo[] chunks = GSON.fromJson(ws.getString(MANIFEST), ChunkInfo[].class);
+        return chunks == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(chunks));
+    }
+}
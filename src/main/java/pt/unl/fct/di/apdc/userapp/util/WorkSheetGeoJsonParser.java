@@ -0,0 +1,152 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import pt.unl.fct.di.apdc.userapp.util.geo.GeometryValidator;
+
+/**
+ * Parser em streaming dos ficheiros GeoJSON de folhas de obra.
+ * As features são lidas, validadas e entregues uma a uma, sem construir a árvore do ficheiro inteiro.
+ */
+public class WorkSheetGeoJsonParser {
+
+    private static final Gson GSON = new Gson();
+
+    public interface FeatureSink {
+        void accept(int index, WorkSheetData.Feature feature) throws IOException, InvalidGeoJsonException;
+
+        // Chamado quando o membro "crs" é lido (normalmente antes das features)
+        default void crs(String name) throws InvalidGeoJsonException {
+        }
+
+        // Chamado com os metadados validados, antes ou depois das features conforme a ordem no ficheiro
+        default void metadata(WorkSheetData data) throws InvalidGeoJsonException {
+        }
+    }
+
+    public static class InvalidGeoJsonException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidGeoJsonException(String message) {
+            super(message);
+        }
+    }
+
+    // Lançada quando o conteúdo é válido mas excede o tamanho que se consegue guardar
+    public static class TooLargeException extends InvalidGeoJsonException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    public static class Result {
+        public WorkSheetData data;
+        public WorkSheetData.CRS crs;
+        public int featureCount;
+    }
+
+    /**
+     * Lê o FeatureCollection. Os metadados (pequenos) são lidos em árvore; as features vão para o sink.
+     * Se os metadados aparecerem antes das features são validados antes de ler qualquer feature.
+     */
+    public static Result parse(InputStream in, FeatureSink sink) throws IOException, InvalidGeoJsonException {
+        Result result = new Result();
+        String name = null;
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "type" -> {
+                        String type = nextStringOrNull(reader);
+                        if (type != null && !"FeatureCollection".equals(type))
+                            throw new InvalidGeoJsonException("Expected a FeatureCollection but got " + type);
+                    }
+                    case "name" -> name = nextStringOrNull(reader);
+                    case "crs" -> {
+                        JsonElement crs = JsonParser.parseReader(reader);
+                        if (crs.isJsonObject()) {
+                            result.crs = GSON.fromJson(crs, WorkSheetData.CRS.class);
+                            sink.crs(GeometryValidator.crsName(result.crs));
+                        }
+                    }
+                    case "metadata" -> {
+                        JsonElement metadata = JsonParser.parseReader(reader);
+                        if (!metadata.isJsonObject())
+                            throw new InvalidGeoJsonException("metadata must be an object");
+                        result.data = GSON.fromJson(metadata, WorkSheetData.class);
+                        if (!result.data.validMetadata())
+                            throw new InvalidGeoJsonException("Missing required metadata fields");
+                        if (result.data.crs != null)
+                            sink.crs(GeometryValidator.crsName(result.data.crs));
+                        sink.metadata(result.data);
+                    }
+                    case "features" -> {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            WorkSheetData.Feature feature = GSON.fromJson(reader, WorkSheetData.Feature.class);
+                            checkStructure(result.featureCount, feature);
+                            sink.accept(result.featureCount, feature);
+                            result.featureCount++;
+                        }
+                        reader.endArray();
+                    }
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new InvalidGeoJsonException("Malformed GeoJSON: " + e.getMessage());
+        }
+
+        if (result.data == null)
+            throw new InvalidGeoJsonException("Missing metadata");
+        if (result.featureCount == 0)
+            throw new InvalidGeoJsonException("No features found");
+        if (name != null)
+            result.data.title = name;
+        if (result.data.crs == null)
+            result.data.crs = result.crs;
+        return result;
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /** Verificação estrutural; a geometria é validada e normalizada depois pelo {@link GeometryValidator}. */
+    public static void checkStructure(int index, WorkSheetData.Feature feature) throws InvalidGeoJsonException {
+        if (feature == null || !"Feature".equals(feature.type))
+            throw new InvalidGeoJsonException("Feature " + index + ": type must be Feature");
+        if (feature.geometry == null || !"Polygon".equals(feature.geometry.type))
+            throw new InvalidGeoJsonException("Feature " + index + ": geometry must be a Polygon");
+        List<List<List<Double>>> rings = feature.geometry.coordinates;
+        if (rings == null || rings.isEmpty())
+            throw new InvalidGeoJsonException("Feature " + index + ": polygon has no rings");
+        for (List<List<Double>> ring : rings) {
+            if (ring == null || ring.size() < 3)
+                throw new InvalidGeoJsonException("Feature " + index + ": ring needs at least 3 positions");
+            for (List<Double> position : ring) {
+                if (position == null || position.size() < 2 || position.get(0) == null || position.get(1) == null)
+                    throw new InvalidGeoJsonException("Feature " + index + ": invalid position");
+            }
+        }
+    }
+}
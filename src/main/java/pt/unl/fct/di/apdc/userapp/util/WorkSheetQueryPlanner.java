@@ -0,0 +1,186 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.gson.Gson;
+
+/**
+ * Planeamento das pesquisas de folhas. Só um filtro (o mais seletivo) vai para o Datastore, servido pelos
+ * índices de uma propriedade que já existem; os restantes são aplicados em memória sobre o cursor.
+ * Assim qualquer combinação de filtros funciona sem índices compostos. Um id dá uma leitura direta pela chave.
+ */
+public class WorkSheetQueryPlanner {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetQueryPlanner.class.getName());
+    private static final Gson GSON = new Gson();
+    private static final int BATCH_SIZE = 100;
+    // Máximo de entidades examinadas por pedido; se esgotar devolve-se o que houver e um cursor para continuar
+    private static final int MAX_SCAN = Integer.getInteger("worksheet.search.max.scan", 2000);
+    /** Maior offset (obsoleto) aceite: as linhas saltadas não cabem num cursor, por isso têm de ser lidas já. */
+    public static final int MAX_OFFSET = MAX_SCAN;
+
+    public static class Result {
+        public final List<Entity> entities;
+        public final String nextCursor;
+
+        Result(List<Entity> entities, String nextCursor) {
+            this.entities = entities;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    // rank: menor = mais seletivo (estimativa fixa por propriedade)
+    private record Predicate(String property, String eq, String from, String to, int rank) {
+
+        boolean range() {
+            return eq == null;
+        }
+
+        StructuredQuery.Filter filter() {
+            if (!range())
+                return StructuredQuery.PropertyFilter.eq(property, eq);
+            if (from != null && to != null)
+                return StructuredQuery.CompositeFilter.and(StructuredQuery.PropertyFilter.ge(property, from),
+                        StructuredQuery.PropertyFilter.le(property, to));
+            return from != null ? StructuredQuery.PropertyFilter.ge(property, from)
+                    : StructuredQuery.PropertyFilter.le(property, to);
+        }
+
+        boolean test(Entity e) {
+            if (!e.contains(property))
+                return false;
+            Object raw = e.getValue(property).get();
+            if (!(raw instanceof String value))
+                return false;
+            if (!range())
+                return value.equals(eq);
+            return (from == null || value.compareTo(from) >= 0) && (to == null || value.compareTo(to) <= 0);
+        }
+    }
+
+    public static Result run(Datastore datastore, WorkSheetSearchRequest request, int limit) {
+        List<Predicate> predicates = predicates(request);
+        int skip = request.cursor == null && request.offset != null ? Math.max(request.offset, 0) : 0;
+
+        if (notEmpty(request.id)) {
+            if (request.cursor != null)
+                return new Result(new ArrayList<>(), null);
+            Entity e = datastore.get(datastore.newKeyFactory().setKind("WorkSheet").newKey(request.id));
+            List<Entity> single = new ArrayList<>();
+            if (e != null && skip == 0 && matches(e, predicates, request.aigp))
+                single.add(e);
+            return new Result(single, null);
+        }
+
+        Predicate pushed = predicates.stream().min(Comparator.comparingInt(Predicate::rank)).orElse(null);
+        List<Predicate> residual = new ArrayList<>(predicates);
+        if (pushed != null)
+            residual.remove(pushed);
+        LOG.fine("Worksheet search plan: push " + (pushed == null ? "none" : pushed.property())
+                + ", in memory " + residual.stream().map(Predicate::property).toList()
+                + (request.aigp != null && !request.aigp.isEmpty() ? " + aigp" : ""));
+
+        List<Entity> matches = new ArrayList<>();
+        Cursor cursor = notEmpty(request.cursor) ? Cursor.fromUrlSafe(request.cursor) : null;
+        Cursor resume = null;
+        boolean exhausted = false;
+        int scanned = 0;
+        scan:
+        // Com linhas por saltar continua-se para lá do limite: um cursor a meio perderia o resto do offset
+        while (scanned < MAX_SCAN || skip > 0) {
+            EntityQuery.Builder query = Query.newEntityQueryBuilder().setKind("WorkSheet").setLimit(BATCH_SIZE);
+            if (pushed != null) {
+                query.setFilter(pushed.filter());
+                // Um filtro de intervalo obriga a ordenar primeiro pela mesma propriedade
+                if (pushed.range())
+                    query.addOrderBy(StructuredQuery.OrderBy.asc(pushed.property()));
+            }
+            query.addOrderBy(StructuredQuery.OrderBy.asc("__key__"));
+            if (cursor != null)
+                query.setStartCursor(cursor);
+
+            QueryResults<Entity> results = datastore.run(query.build());
+            int batch = 0;
+            while (results.hasNext()) {
+                Entity e = results.next();
+                batch++;
+                scanned++;
+                if (matches(e, residual, request.aigp)) {
+                    if (skip > 0)
+                        skip--;
+                    else
+                        matches.add(e);
+                }
+                if (matches.size() == limit) {
+                    resume = results.getCursorAfter();
+                    break scan;
+                }
+            }
+            cursor = results.getCursorAfter();
+            if (batch < BATCH_SIZE) {
+                exhausted = true;
+                break;
+            }
+        }
+        if (resume == null && !exhausted)
+            resume = cursor;
+        return new Result(matches, resume == null ? null : resume.toUrlSafe());
+    }
+
+    private static List<Predicate> predicates(WorkSheetSearchRequest r) {
+        List<Predicate> list = new ArrayList<>();
+        addEq(list, "title", r.title, 0);
+        addEq(list, "issuing_user_id", r.issuing_user_id, 1);
+        addEq(list, "service_provider_id", r.serviceProviderId, 2);
+        addEq(list, "starting_date", r.starting_date, 3);
+        addEq(list, "finishing_date", r.finishing_date, 3);
+        addEq(list, "issue_date", r.issueDate, 3);
+        addEq(list, "award_date", r.awardDate, 3);
+        addEq(list, "status", r.status, 6);
+        addRange(list, "starting_date", r.starting_date_from, r.starting_date_to, 8);
+        addRange(list, "finishing_date", r.finishing_date_from, r.finishing_date_to, 8);
+        return list;
+    }
+
+    private static void addEq(List<Predicate> list, String property, String value, int rank) {
+        if (notEmpty(value))
+            list.add(new Predicate(property, value, null, null, rank));
+    }
+
+    private static void addRange(List<Predicate> list, String property, String from, String to, int rank) {
+        from = notEmpty(from) ? from : null;
+        to = notEmpty(to) ? to : null;
+        if (from != null || to != null)
+            list.add(new Predicate(property, null, from, to, rank));
+    }
+
+    private static boolean matches(Entity e, List<Predicate> predicates, List<String> aigp) {
+        for (Predicate p : predicates)
+            if (!p.test(e))
+                return false;
+        if (aigp == null || aigp.isEmpty())
+            return true;
+        if (!e.contains("aigp"))
+            return false;
+        try {
+            String[] places = GSON.fromJson(e.getString("aigp"), String[].class);
+            return places != null && List.of(places).containsAll(aigp);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private static boolean notEmpty(String s) {
+        return s != null && !s.isEmpty();
+    }
+}
@@ -10,10 +10,16 @@ public class WorkSheetSearchRequest {
     public String issuing_user_id;
     public String starting_date;
     public String finishing_date;
+    // intervalos (inclusivos) de datas ISO
+    public String starting_date_from;
+    public String starting_date_to;
+    public String finishing_date_from;
+    public String finishing_date_to;
     public String awardDate;
     public String issueDate;
     public Integer limit;
-    public Integer offset;
+    public Integer offset; // deprecated: usar cursor
+    public String cursor; // header X-Next-Cursor da página anterior
 
     public WorkSheetSearchRequest() {
     	
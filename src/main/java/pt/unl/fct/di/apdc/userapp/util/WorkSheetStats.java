@@ -0,0 +1,74 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.datastore.AggregationQuery;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.ProjectionEntity;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StructuredQuery.PropertyFilter;
+import com.google.cloud.datastore.aggregation.Aggregation;
+
+/**
+ * Contagem de folhas por estado com agregações COUNT, feitas no servidor: os estados existentes vêm de uma
+ * projeção distinct sobre "status" (uma entrada de índice por valor) e cada um é contado com o seu COUNT.
+ * O resultado fica guardado durante um TTL curto; as escritas locais invalidam-no explicitamente.
+ */
+public class WorkSheetStats {
+
+    private static final long TTL_MS = Long.getLong("worksheet.stats.ttl.ms", 30_000L);
+    private static final String KIND = "WorkSheet";
+
+    private static volatile Map<String, Integer> cached;
+    private static volatile long cachedAt;
+    // Evita guardar uma contagem iniciada antes de uma invalidação
+    private static final AtomicLong generation = new AtomicLong();
+
+    public static Map<String, Integer> get(Datastore datastore) {
+        Map<String, Integer> stats = cached;
+        if (stats != null && System.currentTimeMillis() - cachedAt < TTL_MS)
+            return stats;
+
+        long startedAt = System.currentTimeMillis();
+        long gen = generation.get();
+        Query<ProjectionEntity> statuses = Query.newProjectionEntityQueryBuilder()
+                .setKind(KIND)
+                .setProjection("status")
+                .setDistinctOn("status")
+                .build();
+        QueryResults<ProjectionEntity> results = datastore.run(statuses);
+        Map<String, Integer> counts = new HashMap<>();
+        while (results.hasNext()) {
+            String status = results.next().getString("status");
+            counts.put(status, count(datastore, Query.newEntityQueryBuilder().setKind(KIND)
+                    .setFilter(PropertyFilter.eq("status", status)).build()));
+        }
+        // Total à parte: também conta folhas sem "status"
+        counts.put("total", count(datastore, Query.newEntityQueryBuilder().setKind(KIND).build()));
+
+        stats = Collections.unmodifiableMap(counts);
+        if (generation.get() == gen) {
+            cached = stats;
+            cachedAt = startedAt;
+        }
+        return stats;
+    }
+
+    private static int count(Datastore datastore, EntityQuery over) {
+        AggregationQuery query = Query.newAggregationQueryBuilder()
+                .over(over)
+                .addAggregation(Aggregation.count().as("count"))
+                .build();
+        return Math.toIntExact(datastore.runAggregation(query).get(0).get("count"));
+    }
+
+    public static void invalidate() {
+        generation.incrementAndGet();
+        cached = null;
+    }
+}
@@ -0,0 +1,84 @@
+package pt.unl.fct.di.apdc.userapp.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.cloud.datastore.Entity;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Vistas parciais de uma folha de obra. As operations já estão guardadas em JSON e são copiadas tal como estão;
+ * as features são escritas diretamente pelo {@link WorkSheetFeatureStore} no mesmo writer.
+ */
+public class WorkSheetViews {
+
+    private static final Gson GSON = new GsonBuilder().serializeNulls().create();
+    private static final Set<String> RAW_JSON = Set.of("operations");
+    // Internas ou escritas à parte
+    private static final Set<String> HIDDEN = Set.of("features", WorkSheetFeatureStore.MANIFEST);
+    private static final List<String> GENERAL_FIELDS = List.of("title", "aigp", "status", "issue_date",
+            "award_date", "starting_date", "finishing_date", "service_provider_id");
+
+    /** Vista geral (view): a SGVBO só vê título, estado e datas. */
+    public static final FieldProjector GENERAL = new FieldProjector(GENERAL_FIELDS, Set.of(),
+            Map.of(Roles.SGVBO, List.of("title", "status", "issue_date", "created_at", "starting_date", "finishing_date")),
+            true);
+    /** Resultados da pesquisa simples: os campos gerais para todos os roles. */
+    public static final FieldProjector SEARCH = new FieldProjector(GENERAL_FIELDS, Set.of(), Map.of(), true);
+    /** Resultados da pesquisa detalhada: tudo menos o manifesto dos blocos de features. */
+    public static final FieldProjector SEARCH_DETAILED = new FieldProjector(null,
+            Set.of(WorkSheetFeatureStore.MANIFEST), Map.of(), true);
+
+    /** Escreve o array de features no writer da resposta. */
+    public interface FeatureWriter {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    /** Lê o parâmetro fields ("a,b,c"); null quando não é dado, o que significa todos os campos. */
+    public static Set<String> parseFields(String fields) {
+        if (fields == null || fields.isBlank())
+            return null;
+        Set<String> names = new LinkedHashSet<>();
+        Arrays.stream(fields.split(",")).map(String::trim).filter(s -> !s.isEmpty()).forEach(names::add);
+        return names;
+    }
+
+    /**
+     * Serializa o id e as propriedades pedidas (todas se fields for null). As features vêm à parte
+     * (ver {@link WorkSheetFeatureStore#write}) e só são escritas se features não for null.
+     */
+    public static String detailed(String id, Entity entity, Set<String> fields, FeatureWriter features)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.setSerializeNulls(true);
+        writer.beginObject();
+        writer.name("id").value(id);
+        for (String name : entity.getNames()) {
+            if (fields != null && !fields.contains(name) || HIDDEN.contains(name))
+                continue;
+            Object value = entity.getValue(name).get();
+            writer.name(name);
+            if (value == null)
+                writer.nullValue();
+            else if (RAW_JSON.contains(name) && value instanceof String json)
+                writer.jsonValue(json);
+            else
+                GSON.toJson(value, value.getClass(), writer);
+        }
+        if (features != null) {
+            writer.name("features");
+            features.write(writer);
+        }
+        writer.endObject();
+        writer.flush();
+        return out.toString();
+    }
+}
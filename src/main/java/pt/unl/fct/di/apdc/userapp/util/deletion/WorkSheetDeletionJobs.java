@@ -0,0 +1,326 @@
+package pt.unl.fct.di.apdc.userapp.util.deletion;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.Transaction;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+import pt.unl.fct.di.apdc.userapp.util.EntityVersions;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
+import pt.unl.fct.di.apdc.userapp.util.storage.LargeProperties;
+
+/**
+ * Apagamento em cascata de uma folha de obra. O pedido apaga logo a folha (e o índice geográfico) e cria na
+ * mesma transação a entidade "WorkSheetDeletion" (chave = id da folha), que impede recriar a folha até ao fim;
+ * o resto corre em segundo plano: blocos de features, a folha de execução com os Exec_Poly-Op, atividades e
+ * eventos, as fotos das atividades e os objetos de LargeProperties.
+ *
+ * Cada passo volta a procurar o que ainda existe (consultas de antepassado só de chaves, em lotes de BATCH),
+ * por isso um job interrompido retoma simplesmente do início. As fotos de um lote de atividades são apagadas
+ * antes das atividades, para nunca se perder a referência. Os contadores de versão (EntityVersion) ficam,
+ * para uma folha recriada com o mesmo id não repetir ETags.
+ */
+public class WorkSheetDeletionJobs {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetDeletionJobs.class.getName());
+    private static final Gson GSON = new Gson();
+    private static final Type STRING_LIST = new TypeToken<List<String>>() {}.getType();
+
+    public static final String KIND = "WorkSheetDeletion";
+
+    private static final int BATCH = Integer.getInteger("deletion.batch.size", 400);
+    private static final long LEASE_MS = 5 * 60_000;
+    private static final ExecutorService JOBS = Executors.newSingleThreadExecutor(daemon("deletion-job"));
+    private static final ExecutorService OBJECTS = Executors.newFixedThreadPool(
+            Integer.getInteger("deletion.storage.threads", 8), daemon("deletion-objects"));
+    // Jobs já agendados nesta instância; um job pendente tem lease 0 até começar, e não deve ser agendado outra vez
+    private static final Set<String> QUEUED = ConcurrentHashMap.newKeySet();
+
+    public static Key jobKey(Datastore datastore, String worksheetId) {
+        return datastore.newKeyFactory().setKind(KIND).newKey(worksheetId);
+    }
+
+    /** Entidade do job a gravar na transação que apaga a folha. */
+    public static Entity newJob(Key jobKey, String requestedBy) {
+        long now = System.currentTimeMillis();
+        return Entity.newBuilder(jobKey)
+                .set("status", "pending")
+                .set("requested_by", requestedBy)
+                .set("created_at", now)
+                .set("updated_at", now)
+                .set("phase", StringValue.newBuilder("features").setExcludeFromIndexes(true).build())
+                .set("deleted_entities", LongValue.newBuilder(0).setExcludeFromIndexes(true).build())
+                .set("deleted_objects", LongValue.newBuilder(0).setExcludeFromIndexes(true).build())
+                .set("lease_until", LongValue.newBuilder(0).setExcludeFromIndexes(true).build())
+                .build();
+    }
+
+    /**
+     * Verdadeiro enquanto houver um apagamento por acabar para este id (a folha não pode ser recriada).
+     * Lido na transação que cria a folha, para não se cruzar com um apagamento a começar.
+     */
+    public static boolean inProgress(Transaction txn, String worksheetId) {
+        Entity job = txn.get(jobKey(txn.getDatastore(), worksheetId));
+        return job != null && !finished(job);
+    }
+
+    public static void submit(Datastore datastore, String worksheetId) {
+        if (!QUEUED.add(worksheetId))
+            return;
+        JOBS.submit(() -> {
+            try {
+                run(datastore, worksheetId);
+            } catch (Exception e) {
+                LOG.severe("Deletion of worksheet " + worksheetId + " stopped: " + e.getMessage());
+            } finally {
+                QUEUED.remove(worksheetId);
+            }
+        });
+    }
+
+    /** Estado do job; retoma-o se estiver parado (lease expirado). */
+    public static JsonObject status(Datastore datastore, String worksheetId) {
+        Entity job = datastore.get(jobKey(datastore, worksheetId));
+        if (job == null)
+            return null;
+        if (!finished(job) && job.getLong("lease_until") < System.currentTimeMillis())
+            submit(datastore, worksheetId);
+        JsonObject out = new JsonObject();
+        out.addProperty("worksheet_id", worksheetId);
+        out.addProperty("status", job.getString("status"));
+        out.addProperty("phase", job.getString("phase"));
+        for (String field : List.of("deleted_entities", "deleted_objects", "created_at", "updated_at"))
+            out.addProperty(field, job.getLong(field));
+        out.addProperty("requested_by", job.getString("requested_by"));
+        return out;
+    }
+
+    /** Retoma os apagamentos por acabar (chamado no arranque da instância). */
+    public static void resumePending(Datastore datastore) {
+        for (String status : List.of("pending", "running")) {
+            QueryResults<Key> keys = datastore.run(Query.newKeyQueryBuilder().setKind(KIND)
+                    .setFilter(StructuredQuery.PropertyFilter.eq("status", status)).build());
+            while (keys.hasNext())
+                submit(datastore, keys.next().getName());
+        }
+    }
+
+    public static void shutdown() {
+        JOBS.shutdownNow();
+        OBJECTS.shutdownNow();
+    }
+
+    private static void run(Datastore datastore, String worksheetId) throws Exception {
+        Key jobKey = jobKey(datastore, worksheetId);
+        if (!claim(datastore, jobKey))
+            return;
+        Key wsKey = datastore.newKeyFactory().setKind("WorkSheet").newKey(worksheetId);
+        Key execKey = datastore.newKeyFactory().setKind("ExecutionSheet").newKey(worksheetId);
+
+        // Blocos de features e outros filhos da folha (a folha já foi apagada pelo pedido)
+        deleteDescendants(datastore, jobKey, wsKey, "features");
+
+        // Atividades: primeiro as fotos e objetos de cada lote, depois as entidades
+        progress(datastore, jobKey, "activities", 0, 0, false);
+        Query<Entity> activities = Query.newEntityQueryBuilder()
+                .setKind("ExecutionActivity")
+                .setFilter(StructuredQuery.PropertyFilter.hasAncestor(execKey))
+                .setLimit(BATCH)
+                .build();
+        while (true) {
+            List<Entity> batch = new ArrayList<>();
+            datastore.run(activities).forEachRemaining(batch::add);
+            if (batch.isEmpty())
+                break;
+            int objects = deleteObjects(objectsOf(batch));
+            Key[] deleted = batch.stream().map(Entity::getKey).toArray(Key[]::new);
+            EntityVersions.write(datastore, txn -> txn.delete(deleted), EntityVersions.keyFor(execKey));
+            progress(datastore, jobKey, "activities", batch.size(), objects, false);
+        }
+
+        // Exec_Poly-Op, SyncEvent e a própria folha de execução
+        deleteDescendants(datastore, jobKey, execKey, "execution");
+
+        // Objetos que ficaram órfãos (escritas que falharam depois do upload)
+        progress(datastore, jobKey, "objects", 0, 0, false);
+        List<String> leftovers = new ArrayList<>(BlobStores.get().list(LargeProperties.prefix(execKey)));
+        leftovers.addAll(BlobStores.get().list(LargeProperties.prefix(wsKey)));
+        int objects = deleteObjects(leftovers);
+
+        progress(datastore, jobKey, "done", 0, objects, true);
+        LOG.info("Deletion of worksheet " + worksheetId + " finished");
+    }
+
+    /*
+     * Consulta de antepassado sem kind, só chaves, em lotes de BATCH até não sobrar nada. Atividades criadas
+     * depois da fase "activities" (ex.: uma sincronização a meio do apagamento) aparecem aqui: as suas fotos e
+     * objetos são apagados no mesmo lote, antes das entidades.
+     */
+    private static void deleteDescendants(Datastore datastore, Key jobKey, Key ancestor, String phase)
+            throws InterruptedException {
+        progress(datastore, jobKey, phase, 0, 0, false);
+        Query<Key> query = Query.newKeyQueryBuilder()
+                .setFilter(StructuredQuery.PropertyFilter.hasAncestor(ancestor))
+                .setLimit(BATCH)
+                .build();
+        while (true) {
+            List<Key> keys = new ArrayList<>();
+            datastore.run(query).forEachRemaining(k -> {
+                if (!EntityVersions.KIND.equals(k.getKind()))
+                    keys.add(k);
+            });
+            if (keys.isEmpty())
+                break;
+            List<Key> activityKeys = new ArrayList<>();
+            for (Key k : keys) {
+                if ("ExecutionActivity".equals(k.getKind()))
+                    activityKeys.add(k);
+            }
+            int objects = 0;
+            if (!activityKeys.isEmpty()) {
+                List<Entity> found = new ArrayList<>();
+                for (Entity a : datastore.fetch(activityKeys)) {
+                    if (a != null)
+                        found.add(a);
+                }
+                objects = deleteObjects(objectsOf(found));
+            }
+            // A versão muda com cada lote, para os leitores não guardarem uma folha meio apagada
+            Key[] deleted = keys.toArray(Key[]::new);
+            EntityVersions.write(datastore, txn -> txn.delete(deleted), EntityVersions.keyFor(ancestor));
+            progress(datastore, jobKey, phase, keys.size(), objects, false);
+        }
+    }
+
+    // Fotos carregadas para o nosso bucket e objetos de LargeProperties das atividades
+    private static List<String> objectsOf(List<Entity> activities) {
+        Set<String> objects = new LinkedHashSet<>();
+        for (Entity a : activities) {
+            for (String name : List.of("gpx_track_ref", "photo_urls_ref")) {
+                if (a.contains(name))
+                    objects.add(a.getString(name));
+            }
+            if (!LargeProperties.has(a, "photo_urls"))
+                continue;
+            try {
+                List<String> urls = GSON.fromJson(LargeProperties.get(a, "photo_urls"), STRING_LIST);
+                if (urls == null)
+                    continue;
+                for (String url : urls) {
+                    String name = BlobStores.get().nameOf(url);
+                    if (name != null)
+                        objects.add(name);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Sem a lista não há fotos a apagar; os objetos de LargeProperties saem pelo prefixo no fim
+                LOG.warning("Cannot read photo_urls of " + a.getKey() + ": " + e.getMessage());
+            }
+        }
+        return new ArrayList<>(objects);
+    }
+
+    // Apaga em paralelo; devolve quantos objetos existiam
+    private static int deleteObjects(List<String> names) throws InterruptedException {
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (String name : names)
+            results.add(OBJECTS.submit(() -> BlobStores.get().delete(name)));
+        int deleted = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                if (results.get(i).get())
+                    deleted++;
+            } catch (ExecutionException e) {
+                LOG.warning("Failed to delete object " + names.get(i) + ": " + e.getCause().getMessage());
+            }
+        }
+        return deleted;
+    }
+
+    // Atualiza contadores, fase e lease
+    private static void progress(Datastore datastore, Key jobKey, String phase, int entities, int objects,
+            boolean last) {
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            Transaction txn = datastore.newTransaction();
+            try {
+                Entity job = txn.get(jobKey);
+                long now = System.currentTimeMillis();
+                txn.put(Entity.newBuilder(job)
+                        .set("status", last ? "done" : "running")
+                        .set("phase", StringValue.newBuilder(phase).setExcludeFromIndexes(true).build())
+                        .set("deleted_entities", LongValue.newBuilder(job.getLong("deleted_entities") + entities)
+                                .setExcludeFromIndexes(true).build())
+                        .set("deleted_objects", LongValue.newBuilder(job.getLong("deleted_objects") + objects)
+                                .setExcludeFromIndexes(true).build())
+                        .set("updated_at", now)
+                        .set("lease_until", LongValue.newBuilder(last ? 0 : now + LEASE_MS).setExcludeFromIndexes(true).build())
+                        .build());
+                txn.commit();
+                return;
+            } catch (DatastoreException e) {
+                if (attempt == 3)
+                    LOG.warning("Failed to update deletion job " + jobKey.getName() + ": " + e.getMessage());
+            } finally {
+                if (txn.isActive())
+                    txn.rollback();
+            }
+        }
+    }
+
+    // Fica com o job se não estiver acabado nem com lease de outra instância
+    private static boolean claim(Datastore datastore, Key jobKey) {
+        Transaction txn = datastore.newTransaction();
+        try {
+            Entity job = txn.get(jobKey);
+            long now = System.currentTimeMillis();
+            if (job == null || finished(job) || job.getLong("lease_until") > now)
+                return false;
+            txn.put(Entity.newBuilder(job)
+                    .set("status", "running")
+                    .set("updated_at", now)
+                    .set("lease_until", LongValue.newBuilder(now + LEASE_MS).setExcludeFromIndexes(true).build())
+                    .build());
+            txn.commit();
+            return true;
+        } catch (DatastoreException e) {
+            return false;
+        } finally {
+            if (txn.isActive())
+                txn.rollback();
+        }
+    }
+
+    private static boolean finished(Entity job) {
+        return "done".equals(job.getString("status"));
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
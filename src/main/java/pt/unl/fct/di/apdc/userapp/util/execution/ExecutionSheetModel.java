@@ -0,0 +1,139 @@
+package pt.unl.fct.di.apdc.userapp.util.execution;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Entity;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import pt.unl.fct.di.apdc.userapp.util.ExecutionSheetData;
+
+/**
+ * Vista descodificada de uma ExecutionSheet, com as operações indexadas por código.
+ * As instâncias são imutáveis e ficam em cache por folha, validadas pelo texto guardado das operações: a única
+ * versão da folha é o contador do {@link pt.unl.fct.di.apdc.userapp.util.EntityVersions}, que também muda com as
+ * escritas nas atividades, e compará-lo custaria uma leitura a mais por pedido. Comparar o texto é muito mais barato
+ * do que descodificá-lo.
+ */
+public class ExecutionSheetModel {
+
+    private static final Logger LOG = Logger.getLogger(ExecutionSheetModel.class.getName());
+    private static final Gson GSON = new Gson();
+    private static final int CACHE_SIZE = 256;
+
+    private static final Map<String, ExecutionSheetModel> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, ExecutionSheetModel>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ExecutionSheetModel> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    public final String executionId;
+    private final String rawOperations;
+    private final String rawPolygonOperations;
+    private final Map<String, ExecutionSheetData.SheetOperation> operations;
+    private final Map<String, ExecutionSheetData.PolygonOperation> polygonOperations;
+
+    private ExecutionSheetModel(String executionId, String rawOperations, String rawPolygonOperations) {
+        this.executionId = executionId;
+        this.rawOperations = rawOperations;
+        this.rawPolygonOperations = rawPolygonOperations;
+        this.operations = Collections.unmodifiableMap(decodeOperations(rawOperations));
+        this.polygonOperations = Collections.unmodifiableMap(decodePolygonOperations(rawPolygonOperations));
+    }
+
+    /** Devolve o modelo da folha, reutilizando a cópia em cache se ainda corresponder à entidade. */
+    public static ExecutionSheetModel of(Entity execSheet) {
+        String id = execSheet.getKey().getName();
+        String rawOps = execSheet.contains("operations") ? execSheet.getString("operations") : "[]";
+        String rawPolyOps = execSheet.contains("polygons_operations") ? execSheet.getString("polygons_operations")
+                : null;
+
+        ExecutionSheetModel cached = CACHE.get(id);
+        if (cached != null && !cached.isStale(rawOps, rawPolyOps))
+            return cached;
+
+        ExecutionSheetModel model = new ExecutionSheetModel(id, rawOps, rawPolyOps);
+        CACHE.put(id, model);
+        return model;
+    }
+
+    public static void invalidate(String executionId) {
+        CACHE.remove(executionId);
+    }
+
+    private boolean isStale(String otherOps, String otherPolyOps) {
+        return !rawOperations.equals(otherOps) || !Objects.equals(rawPolygonOperations, otherPolyOps);
+    }
+
+    public boolean hasOperation(String operationCode) {
+        return operations.containsKey(operationCode);
+    }
+
+    public ExecutionSheetData.SheetOperation operation(String operationCode) {
+        return operations.get(operationCode);
+    }
+
+    public Collection<ExecutionSheetData.SheetOperation> operations() {
+        return operations.values();
+    }
+
+    /** Operação de um polígono vinda da propriedade legada "polygons_operations", se existir. */
+    public ExecutionSheetData.PolygonOperation polygonOperation(String polygonId, String operationCode) {
+        return polygonOperations.get(polygonId + ":" + operationCode.toUpperCase());
+    }
+
+    /** Serializa uma lista de operações no formato guardado na entidade (sem campos nulos). */
+    public static String encodeOperations(Collection<ExecutionSheetData.SheetOperation> ops) {
+        return GSON.toJson(ops);
+    }
+
+    private static Map<String, ExecutionSheetData.SheetOperation> decodeOperations(String raw) {
+        Map<String, ExecutionSheetData.SheetOperation> byCode = new LinkedHashMap<>();
+        try {
+            List<ExecutionSheetData.SheetOperation> list = GSON.fromJson(raw,
+                    new TypeToken<List<ExecutionSheetData.SheetOperation>>() {
+                    }.getType());
+            if (list != null) {
+                for (ExecutionSheetData.SheetOperation op : list) {
+                    if (op != null && op.operation_code != null)
+                        byCode.putIfAbsent(op.operation_code, op);
+                }
+            }
+        } catch (Exception e) {
+            LOG.warning("Failed to decode execution sheet operations: " + e.getMessage());
+        }
+        return byCode;
+    }
+
+    private static Map<String, ExecutionSheetData.PolygonOperation> decodePolygonOperations(String raw) {
+        Map<String, ExecutionSheetData.PolygonOperation> byPolygonAndCode = new LinkedHashMap<>();
+        if (raw == null)
+            return byPolygonAndCode;
+        try {
+            List<ExecutionSheetData.PolygonOperations> list = GSON.fromJson(raw,
+                    new TypeToken<List<ExecutionSheetData.PolygonOperations>>() {
+                    }.getType());
+            if (list != null) {
+                for (ExecutionSheetData.PolygonOperations poly : list) {
+                    if (poly == null || poly.operations == null)
+                        continue;
+                    for (ExecutionSheetData.PolygonOperation op : poly.operations) {
+                        if (op != null && op.operation_code != null)
+                            byPolygonAndCode.putIfAbsent(poly.polygon_id + ":" + op.operation_code.toUpperCase(), op);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOG.warning("Failed to decode execution sheet polygon operations: " + e.getMessage());
+        }
+        return byPolygonAndCode;
+    }
+}
@@ -0,0 +1,26 @@
+package pt.unl.fct.di.apdc.userapp.util.execution;
+
+import java.util.List;
+
+public class SyncEventsRequest {
+    public static final String START_ACTIVITY = "START_ACTIVITY";
+    public static final String STOP_ACTIVITY = "STOP_ACTIVITY";
+    public static final String ADD_INFO = "ADD_INFO";
+
+    public List<FieldEvent> events;
+
+    public static class FieldEvent {
+        public String event_id; // idempotency id gerado no dispositivo
+        public String type; // START_ACTIVITY | STOP_ACTIVITY | ADD_INFO
+        public String execution_id;
+        public String polygon_id;
+        public String operation_code;
+        public String activity_id; // opcional no START_ACTIVITY (permite referenciar a atividade offline)
+        public String recorded_at; // hora local do evento no dispositivo
+        public String observations;
+        public List<String> photo_urls;
+        public List<Object> tracks;
+    }
+
+    public SyncEventsRequest() {}
+}
@@ -0,0 +1,39 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.List;
+
+/** Retângulo envolvente em WGS84 (graus). */
+public record Envelope(double minLon, double minLat, double maxLon, double maxLat) {
+
+    public static final Envelope WORLD = new Envelope(-180, -90, 180, 90);
+
+    public boolean intersects(Envelope o) {
+        return o != null && minLon <= o.maxLon && maxLon >= o.minLon && minLat <= o.maxLat && maxLat >= o.minLat;
+    }
+
+    public Envelope union(Envelope o) {
+        if (o == null)
+            return this;
+        return new Envelope(Math.min(minLon, o.minLon), Math.min(minLat, o.minLat),
+                Math.max(maxLon, o.maxLon), Math.max(maxLat, o.maxLat));
+    }
+
+    public static Envelope union(Envelope a, Envelope b) {
+        return a == null ? b : a.union(b);
+    }
+
+    /** Envolvente de anéis com coordenadas lon,lat intercaladas. */
+    public static Envelope ofRings(List<double[]> rings) {
+        double minLon = Double.POSITIVE_INFINITY, minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (double[] ring : rings) {
+            for (int i = 0; i + 1 < ring.length; i += 2) {
+                minLon = Math.min(minLon, ring[i]);
+                maxLon = Math.max(maxLon, ring[i]);
+                minLat = Math.min(minLat, ring[i + 1]);
+                maxLat = Math.max(maxLat, ring[i + 1]);
+            }
+        }
+        return minLon > maxLon ? null : new Envelope(minLon, minLat, maxLon, maxLat);
+    }
+}
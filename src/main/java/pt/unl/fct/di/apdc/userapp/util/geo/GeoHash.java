@@ -0,0 +1,98 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Geohash base32: codificação de pontos e cobertura de envelopes por células. */
+public final class GeoHash {
+
+    public static final int MAX_PRECISION = 9;
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private GeoHash() {
+    }
+
+    public static String encode(double lat, double lon, int precision) {
+        double minLat = -90, maxLat = 90, minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(precision);
+        boolean even = true;
+        int bit = 0, ch = 0;
+        while (hash.length() < precision) {
+            if (even) {
+                double mid = (minLon + maxLon) / 2;
+                if (lon >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch <<= 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (lat >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            even = !even;
+            if (++bit == 5) {
+                hash.append(BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    public static double cellWidth(int precision) {
+        return 360.0 / (1L << ((5 * precision + 1) / 2));
+    }
+
+    public static double cellHeight(int precision) {
+        return 180.0 / (1L << (5 * precision / 2));
+    }
+
+    /** Células que cobrem o envelope, na precisão mais fina que não exceda maxCells. */
+    public static List<String> cover(Envelope env, int maxCells) {
+        for (int p = MAX_PRECISION; p > 1; p--) {
+            if (cellCount(env, p) <= maxCells)
+                return cells(env, p);
+        }
+        return cells(env, 1);
+    }
+
+    /** Prefixos próprios (ancestrais) de um conjunto de células. */
+    public static Set<String> ancestors(List<String> cells) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (String c : cells)
+            for (int len = 1; len < c.length(); len++)
+                prefixes.add(c.substring(0, len));
+        return prefixes;
+    }
+
+    private static long cellCount(Envelope env, int p) {
+        double w = cellWidth(p), h = cellHeight(p);
+        long nx = index(env.maxLon() + 180, w, 360) - index(env.minLon() + 180, w, 360) + 1;
+        long ny = index(env.maxLat() + 90, h, 180) - index(env.minLat() + 90, h, 180) + 1;
+        return nx * ny;
+    }
+
+    private static List<String> cells(Envelope env, int p) {
+        double w = cellWidth(p), h = cellHeight(p);
+        List<String> cells = new ArrayList<>();
+        for (long ix = index(env.minLon() + 180, w, 360); ix <= index(env.maxLon() + 180, w, 360); ix++)
+            for (long iy = index(env.minLat() + 90, h, 180); iy <= index(env.maxLat() + 90, h, 180); iy++)
+                cells.add(encode(-90 + (iy + 0.5) * h, -180 + (ix + 0.5) * w, p));
+        return cells;
+    }
+
+    private static long index(double offset, double size, double span) {
+        long max = Math.round(span / size) - 1;
+        return Math.max(0, Math.min(max, (long) Math.floor(offset / size)));
+    }
+}
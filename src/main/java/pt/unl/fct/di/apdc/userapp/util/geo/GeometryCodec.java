@@ -0,0 +1,196 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.gson.stream.JsonWriter;
+
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetData;
+
+/**
+ * Formato binário compacto para as geometrias (polígonos) de um bloco de features.
+ * Coordenadas quantizadas (10^-precision), codificadas como diferenças em relação ao ponto anterior,
+ * em zigzag varint; antes de cada polígono vai o nº de anéis e antes de cada anel o nº de pontos.
+ *
+ * <pre>
+ * varint versão | varint precision | varint nº polígonos
+ * por polígono: varint nº anéis; por anel: varint nº pontos, depois (dx, dy) zigzag varint
+ * </pre>
+ *
+ * A descodificação produz só arrays primitivos ({@link Decoded}); o {@link #writeGeometry} escreve GeoJSON
+ * diretamente a partir deles.
+ */
+public class GeometryCodec {
+
+    private static final int VERSION = 1;
+    // ~1 cm em graus, 1 mm em metros
+    public static final int GEOGRAPHIC_PRECISION = 7;
+    public static final int PROJECTED_PRECISION = 3;
+
+    /**
+     * Geometrias descodificadas: o polígono p tem os anéis [polygonRings[p], polygonRings[p + 1]) e o anel r
+     * tem os pontos [ringPoints[r], ringPoints[r + 1]), com x, y intercalados em xy (índice do ponto * 2).
+     */
+    public static class Decoded {
+        public final int[] polygonRings;
+        public final int[] ringPoints;
+        public final double[] xy;
+
+        Decoded(int[] polygonRings, int[] ringPoints, double[] xy) {
+            this.polygonRings = polygonRings;
+            this.ringPoints = ringPoints;
+            this.xy = xy;
+        }
+
+        public int polygonCount() {
+            return polygonRings.length - 1;
+        }
+
+        /** Anéis do polígono p como arrays lon,lat intercalados (cópias). */
+        public double[][] rings(int p) {
+            int first = polygonRings[p], last = polygonRings[p + 1];
+            double[][] rings = new double[last - first][];
+            for (int r = first; r < last; r++) {
+                int from = ringPoints[r] * 2, to = ringPoints[r + 1] * 2;
+                rings[r - first] = java.util.Arrays.copyOfRange(xy, from, to);
+            }
+            return rings;
+        }
+    }
+
+    public static int precisionFor(String crs) {
+        return GeometryValidator.isWgs84(crs) ? GEOGRAPHIC_PRECISION : PROJECTED_PRECISION;
+    }
+
+    public static byte[] encode(List<WorkSheetData.Feature> features, int precision) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        double scale = Math.pow(10, precision);
+        writeVarint(out, VERSION);
+        writeVarint(out, precision);
+        writeVarint(out, features.size());
+        long px = 0, py = 0;
+        for (WorkSheetData.Feature f : features) {
+            List<List<List<Double>>> rings = f.geometry != null && f.geometry.coordinates != null
+                    ? f.geometry.coordinates : List.of();
+            writeVarint(out, rings.size());
+            for (List<List<Double>> ring : rings) {
+                writeVarint(out, ring.size());
+                for (List<Double> p : ring) {
+                    long x = Math.round(p.get(0) * scale), y = Math.round(p.get(1) * scale);
+                    writeVarint(out, zigzag(x - px));
+                    writeVarint(out, zigzag(y - py));
+                    px = x;
+                    py = y;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static Decoded decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+        int version = (int) in.varint();
+        if (version != VERSION)
+            throw new IOException("Unsupported geometry format version " + version);
+        double scale = Math.pow(10, (int) in.varint());
+        int polygons = (int) in.varint();
+
+        // Os tamanhos só se conhecem a ler; os arrays crescem por duplicação
+        int[] polygonRings = new int[polygons + 1];
+        int[] ringPoints = new int[Math.max(polygons, 1) + 1];
+        double[] xy = new double[Math.max(data.length, 16)];
+        int rings = 0, points = 0;
+        long x = 0, y = 0;
+        for (int p = 0; p < polygons; p++) {
+            polygonRings[p] = rings;
+            int ringCount = (int) in.varint();
+            for (int r = 0; r < ringCount; r++) {
+                if (rings + 2 > ringPoints.length)
+                    ringPoints = java.util.Arrays.copyOf(ringPoints, ringPoints.length * 2);
+                ringPoints[rings++] = points;
+                int n = (int) in.varint();
+                if ((points + n) * 2 > xy.length)
+                    xy = java.util.Arrays.copyOf(xy, Math.max(xy.length * 2, (points + n) * 2));
+                for (int i = 0; i < n; i++) {
+                    x += unzigzag(in.varint());
+                    y += unzigzag(in.varint());
+                    xy[points * 2] = x / scale;
+                    xy[points * 2 + 1] = y / scale;
+                    points++;
+                }
+            }
+        }
+        polygonRings[polygons] = rings;
+        ringPoints[rings] = points;
+        return new Decoded(polygonRings, java.util.Arrays.copyOf(ringPoints, rings + 1),
+                java.util.Arrays.copyOf(xy, points * 2));
+    }
+
+    /** Escreve o objeto GeoJSON "geometry" do polígono p. */
+    public static void writeGeometry(JsonWriter out, Decoded g, int p) throws IOException {
+        out.beginObject();
+        out.name("type").value("Polygon");
+        out.name("coordinates").beginArray();
+        for (int r = g.polygonRings[p]; r < g.polygonRings[p + 1]; r++) {
+            out.beginArray();
+            for (int i = g.ringPoints[r]; i < g.ringPoints[r + 1]; i++)
+                out.beginArray().value(g.xy[i * 2]).value(g.xy[i * 2 + 1]).endArray();
+            out.endArray();
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    /** Converte o polígono p para o modelo com listas (só para alterações). */
+    public static WorkSheetData.Geometry toGeometry(Decoded g, int p) {
+        WorkSheetData.Geometry geometry = new WorkSheetData.Geometry();
+        geometry.type = "Polygon";
+        geometry.coordinates = new java.util.ArrayList<>();
+        for (int r = g.polygonRings[p]; r < g.polygonRings[p + 1]; r++) {
+            List<List<Double>> ring = new java.util.ArrayList<>();
+            for (int i = g.ringPoints[r]; i < g.ringPoints[r + 1]; i++)
+                ring.add(List.of(g.xy[i * 2], g.xy[i * 2 + 1]));
+            geometry.coordinates.add(ring);
+        }
+        return geometry;
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private int pos = 0;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        long varint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= data.length)
+                    throw new IOException("Truncated geometry data");
+                byte b = data[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return result;
+            }
+            throw new IOException("Malformed varint in geometry data");
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetData;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetGeoJsonParser;
+
+/**
+ * Validação e normalização das geometrias à entrada. Cada polígono fica com anéis fechados, sem pontos
+ * repetidos seguidos, com a orientação do RFC 7946 (exterior anti-horário, buracos horário), sem
+ * auto-interseções e com os buracos dentro do exterior, sem tocarem nele nem uns nos outros. A área (ha), o bbox
+ * e o centróide são calculados e guardados nas properties da feature ("area_ha", "bbox", "centroid").
+ * Tudo o que é guardado fica em WGS84 (lon/lat), que é o que o índice geográfico, os tiles e o mapa esperam:
+ * coordenadas em PT-TM06 (EPSG:3763) são convertidas na entrada e qualquer outro CRS é recusado. A área de uma
+ * geometria em PT-TM06 é a planar, em metros, calculada antes da conversão (a que consta do cadastro); em WGS84
+ * é a área na esfera.
+ * As features são processadas em paralelo num ForkJoinPool próprio.
+ */
+public class GeometryValidator {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+            Integer.getInteger("worksheet.geometry.parallelism", Runtime.getRuntime().availableProcessors()));
+    // Abaixo disto não compensa dividir a tarefa
+    private static final int SEQUENTIAL_THRESHOLD = 16;
+    private static final double EARTH_RADIUS_M = 6_378_137.0;
+    // Tolerância entre a soma das áreas das operações e a área das parcelas
+    private static final double OPERATION_AREA_TOLERANCE = 1.05;
+    private static final Pattern EPSG = Pattern.compile("EPSG:{1,2}(\\d+)$");
+
+    public static class InvalidGeometryException extends WorkSheetGeoJsonParser.InvalidGeoJsonException {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidGeometryException(String message) {
+            super(message);
+        }
+    }
+
+    /** true se o CRS for WGS84 (lon/lat em graus); sem CRS assume-se WGS84, como no GeoJSON. */
+    public static boolean isWgs84(String crs) {
+        if (crs == null || crs.isBlank() || crs.toUpperCase(Locale.ROOT).endsWith("CRS84"))
+            return true;
+        return "4326".equals(epsgCode(crs));
+    }
+
+    /** true se as coordenadas vêm em PT-TM06 (EPSG:3763) e são convertidas para WGS84 na entrada. */
+    public static boolean isPtTm06(String crs) {
+        return crs != null && "3763".equals(epsgCode(crs));
+    }
+
+    /** Recusa os CRS que não são WGS84 nem PT-TM06. */
+    public static void checkCrs(String crs) throws InvalidGeometryException {
+        if (!isWgs84(crs) && !isPtTm06(crs))
+            throw new InvalidGeometryException("Unsupported CRS " + crs
+                    + ": coordinates must be WGS84 (EPSG:4326) or PT-TM06 (EPSG:3763)");
+    }
+
+    private static String epsgCode(String crs) {
+        Matcher m = EPSG.matcher(crs.toUpperCase(Locale.ROOT));
+        return m.find() ? m.group(1) : null;
+    }
+
+    public static String crsName(WorkSheetData.CRS crs) {
+        return crs == null || crs.properties == null ? null : crs.properties.get("name");
+    }
+
+    /**
+     * Valida e normaliza as features (índices a partir de firstIndex, para as mensagens de erro), dadas no CRS crs.
+     * Devolve novas features, sempre em WGS84; em caso de erro lança o do menor índice.
+     */
+    public static List<WorkSheetData.Feature> normalizeAll(List<WorkSheetData.Feature> features, int firstIndex,
+            String crs) throws InvalidGeometryException {
+        checkCrs(crs);
+        boolean reproject = isPtTm06(crs);
+        WorkSheetData.Feature[] out = new WorkSheetData.Feature[features.size()];
+        String[] errors = new String[features.size()];
+        POOL.invoke(new NormalizeTask(features, out, errors, firstIndex, reproject, 0, features.size()));
+        for (String error : errors)
+            if (error != null)
+                throw new InvalidGeometryException(error);
+        return Arrays.asList(out);
+    }
+
+    /** Área guardada de uma feature normalizada (0 se não tiver). */
+    public static double areaHa(WorkSheetData.Feature f) {
+        Object area = f.properties != null ? f.properties.get("area_ha") : null;
+        return area instanceof Number n ? n.doubleValue() : 0;
+    }
+
+    /** Rejeita operações que declarem mais área do que a das parcelas da folha. */
+    public static void checkOperationAreas(List<WorkSheetData.Operation> operations, double parcelsAreaHa)
+            throws InvalidGeometryException {
+        if (operations == null || parcelsAreaHa <= 0)
+            return;
+        for (WorkSheetData.Operation op : operations) {
+            if (op.area_ha < 0 || op.area_ha > parcelsAreaHa * OPERATION_AREA_TOLERANCE)
+                throw new InvalidGeometryException(String.format(Locale.ROOT,
+                        "Operation %s declares %.4f ha but the parcels cover %.4f ha",
+                        op.operation_code, op.area_ha, parcelsAreaHa));
+        }
+    }
+
+    private static class NormalizeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<WorkSheetData.Feature> in;
+        private final WorkSheetData.Feature[] out;
+        private final String[] errors;
+        private final int firstIndex, from, to;
+        private final boolean reproject;
+
+        NormalizeTask(List<WorkSheetData.Feature> in, WorkSheetData.Feature[] out, String[] errors, int firstIndex,
+                boolean reproject, int from, int to) {
+            this.in = in;
+            this.out = out;
+            this.errors = errors;
+            this.firstIndex = firstIndex;
+            this.reproject = reproject;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        out[i] = normalize(firstIndex + i, in.get(i), reproject);
+                    } catch (WorkSheetGeoJsonParser.InvalidGeoJsonException e) {
+                        errors[i] = e.getMessage();
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new NormalizeTask(in, out, errors, firstIndex, reproject, from, mid),
+                    new NormalizeTask(in, out, errors, firstIndex, reproject, mid, to));
+        }
+    }
+
+    static WorkSheetData.Feature normalize(int index, WorkSheetData.Feature feature, boolean reproject)
+            throws WorkSheetGeoJsonParser.InvalidGeoJsonException {
+        WorkSheetGeoJsonParser.checkStructure(index, feature);
+        String where = "Feature " + index + ": ";
+
+        List<List<List<Double>>> rings = new ArrayList<>();
+        List<double[]> cleaned = new ArrayList<>();
+        double planarM2 = 0;
+        double signedArea = 0, cx = 0, cy = 0;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int r = 0; r < feature.geometry.coordinates.size(); r++) {
+            double[] ring = clean(feature.geometry.coordinates.get(r), reproject);
+            if (reproject) {
+                // Shoelace nas coordenadas projetadas (metros), antes da conversão
+                double projected = Math.abs(signedArea(clean(feature.geometry.coordinates.get(r), false)));
+                planarM2 += r == 0 ? projected : -projected;
+            }
+            int n = ring.length / 2;
+            if (!inWgs84Range(ring))
+                throw new InvalidGeometryException(where + "ring " + r
+                        + " has coordinates outside the WGS84 range (projected coordinates need a crs)");
+            if (n < 4)
+                throw new InvalidGeometryException(where + "ring " + r + " needs at least 3 distinct positions");
+            if (selfIntersects(ring))
+                throw new InvalidGeometryException(where + "ring " + r + " intersects itself");
+            double area = signedArea(ring);
+            if (area == 0)
+                throw new InvalidGeometryException(where + "ring " + r + " has no area");
+            // Exterior anti-horário (área positiva), buracos horário
+            boolean exterior = r == 0;
+            if (exterior != area > 0) {
+                reverse(ring);
+                area = -area;
+            }
+            double[] c = centroidTimesArea(ring);
+            signedArea += area;
+            cx += c[0];
+            cy += c[1];
+            if (exterior) {
+                for (int i = 0; i < ring.length; i += 2) {
+                    minX = Math.min(minX, ring[i]);
+                    maxX = Math.max(maxX, ring[i]);
+                    minY = Math.min(minY, ring[i + 1]);
+                    maxY = Math.max(maxY, ring[i + 1]);
+                }
+            }
+            cleaned.add(ring);
+            rings.add(toPositions(ring));
+        }
+        if (signedArea <= 0)
+            throw new InvalidGeometryException(where + "holes cover the whole polygon");
+        checkHoles(where, cleaned);
+
+        double areaM2 = 0;
+        if (reproject) {
+            areaM2 = planarM2;
+        } else {
+            for (List<List<Double>> ring : rings)
+                areaM2 += sphericalArea(ring);
+        }
+
+        WorkSheetData.Feature normalized = new WorkSheetData.Feature();
+        normalized.type = "Feature";
+        normalized.properties = new LinkedHashMap<>();
+        if (feature.properties != null)
+            normalized.properties.putAll(feature.properties);
+        normalized.properties.put("area_ha", round(Math.abs(areaM2) / 10_000, 6));
+        normalized.properties.put("bbox", List.of(minX, minY, maxX, maxY));
+        normalized.properties.put("centroid", List.of(cx / signedArea, cy / signedArea));
+        normalized.geometry = new WorkSheetData.Geometry();
+        normalized.geometry.type = "Polygon";
+        normalized.geometry.coordinates = rings;
+        return normalized;
+    }
+
+    // Converte para WGS84 se preciso, remove posições repetidas seguidas e fecha o anel; devolve x,y intercalados
+    // com o fecho no fim
+    private static double[] clean(List<List<Double>> ring, boolean reproject) {
+        double[] xy = new double[(ring.size() + 1) * 2];
+        int n = 0;
+        for (List<Double> p : ring) {
+            double x = p.get(0), y = p.get(1);
+            if (reproject) {
+                double[] lonLat = PtTm06.toWgs84(x, y);
+                x = lonLat[0];
+                y = lonLat[1];
+            }
+            if (n > 0 && xy[n - 2] == x && xy[n - 1] == y)
+                continue;
+            xy[n++] = x;
+            xy[n++] = y;
+        }
+        if (n >= 2 && (xy[0] != xy[n - 2] || xy[1] != xy[n - 1])) {
+            xy[n++] = xy[0];
+            xy[n++] = xy[1];
+        }
+        return Arrays.copyOf(xy, n);
+    }
+
+    private static boolean inWgs84Range(double[] ring) {
+        for (int i = 0; i + 1 < ring.length; i += 2) {
+            if (!(Math.abs(ring[i]) <= 180 && Math.abs(ring[i + 1]) <= 90))
+                return false;
+        }
+        return true;
+    }
+
+    // Shoelace; positiva se anti-horário
+    private static double signedArea(double[] ring) {
+        double sum = 0;
+        for (int i = 0; i + 3 < ring.length; i += 2)
+            sum += ring[i] * ring[i + 3] - ring[i + 2] * ring[i + 1];
+        return sum / 2;
+    }
+
+    private static double[] centroidTimesArea(double[] ring) {
+        double x = 0, y = 0;
+        for (int i = 0; i + 3 < ring.length; i += 2) {
+            double cross = ring[i] * ring[i + 3] - ring[i + 2] * ring[i + 1];
+            x += (ring[i] + ring[i + 2]) * cross;
+            y += (ring[i + 1] + ring[i + 3]) * cross;
+        }
+        return new double[] { x / 6, y / 6 };
+    }
+
+    // Cada buraco tem de estar dentro do exterior e fora dos outros buracos, sem tocar em nenhum deles: só assim
+    // subtrair as áreas dos buracos dá a área do polígono
+    private static void checkHoles(String where, List<double[]> rings) throws InvalidGeometryException {
+        double[] shell = rings.get(0);
+        for (int h = 1; h < rings.size(); h++) {
+            double[] hole = rings.get(h);
+            if (ringsIntersect(shell, hole))
+                throw new InvalidGeometryException(where + "ring " + h + " touches or crosses the exterior ring");
+            // Sem interseções, um vértice qualquer diz se o buraco está dentro ou fora
+            if (!contains(shell, hole[0], hole[1]))
+                throw new InvalidGeometryException(where + "ring " + h + " is outside the exterior ring");
+            for (int o = 1; o < h; o++) {
+                double[] other = rings.get(o);
+                if (ringsIntersect(hole, other) || contains(other, hole[0], hole[1])
+                        || contains(hole, other[0], other[1]))
+                    throw new InvalidGeometryException(where + "rings " + o + " and " + h + " overlap");
+            }
+        }
+    }
+
+    private static boolean ringsIntersect(double[] a, double[] b) {
+        // Corte rápido pelos bbox dos anéis
+        if (max(a, 0) < min(b, 0) || max(b, 0) < min(a, 0) || max(a, 1) < min(b, 1) || max(b, 1) < min(a, 1))
+            return false;
+        for (int i = 0; i + 3 < a.length; i += 2) {
+            double ax = a[i], ay = a[i + 1], bx = a[i + 2], by = a[i + 3];
+            for (int j = 0; j + 3 < b.length; j += 2) {
+                double cx = b[j], cy = b[j + 1], dx = b[j + 2], dy = b[j + 3];
+                if (Math.max(ax, bx) < Math.min(cx, dx) || Math.max(cx, dx) < Math.min(ax, bx)
+                        || Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by))
+                    continue;
+                if (segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Ray casting; o anel vem fechado (último ponto = primeiro)
+    private static boolean contains(double[] ring, double x, double y) {
+        boolean inside = false;
+        for (int i = 0; i + 3 < ring.length; i += 2) {
+            double x1 = ring[i], y1 = ring[i + 1], x2 = ring[i + 2], y2 = ring[i + 3];
+            if ((y1 > y) != (y2 > y) && x < (x2 - x1) * (y - y1) / (y2 - y1) + x1)
+                inside = !inside;
+        }
+        return inside;
+    }
+
+    private static double min(double[] ring, int axis) {
+        double m = Double.POSITIVE_INFINITY;
+        for (int i = axis; i < ring.length; i += 2)
+            m = Math.min(m, ring[i]);
+        return m;
+    }
+
+    private static double max(double[] ring, int axis) {
+        double m = Double.NEGATIVE_INFINITY;
+        for (int i = axis; i < ring.length; i += 2)
+            m = Math.max(m, ring[i]);
+        return m;
+    }
+
+    // Testa todos os pares de segmentos não adjacentes (com corte rápido pelos bbox)
+    private static boolean selfIntersects(double[] ring) {
+        int segments = ring.length / 2 - 1;
+        for (int i = 0; i < segments; i++) {
+            double ax = ring[2 * i], ay = ring[2 * i + 1], bx = ring[2 * i + 2], by = ring[2 * i + 3];
+            for (int j = i + 2; j < segments; j++) {
+                if (i == 0 && j == segments - 1)
+                    continue; // primeiro e último segmentos partilham o ponto de fecho
+                double cx = ring[2 * j], cy = ring[2 * j + 1], dx = ring[2 * j + 2], dy = ring[2 * j + 3];
+                if (Math.max(ax, bx) < Math.min(cx, dx) || Math.max(cx, dx) < Math.min(ax, bx)
+                        || Math.max(ay, by) < Math.min(cy, dy) || Math.max(cy, dy) < Math.min(ay, by))
+                    continue;
+                if (segmentsIntersect(ax, ay, bx, by, cx, cy, dx, dy))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean segmentsIntersect(double ax, double ay, double bx, double by,
+            double cx, double cy, double dx, double dy) {
+        double d1 = orient(cx, cy, dx, dy, ax, ay), d2 = orient(cx, cy, dx, dy, bx, by);
+        double d3 = orient(ax, ay, bx, by, cx, cy), d4 = orient(ax, ay, bx, by, dx, dy);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0)))
+            return true;
+        return (d1 == 0 && onSegment(cx, cy, dx, dy, ax, ay)) || (d2 == 0 && onSegment(cx, cy, dx, dy, bx, by))
+                || (d3 == 0 && onSegment(ax, ay, bx, by, cx, cy)) || (d4 == 0 && onSegment(ax, ay, bx, by, dx, dy));
+    }
+
+    private static double orient(double ax, double ay, double bx, double by, double px, double py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    private static boolean onSegment(double ax, double ay, double bx, double by, double px, double py) {
+        return Math.min(ax, bx) <= px && px <= Math.max(ax, bx) && Math.min(ay, by) <= py && py <= Math.max(ay, by);
+    }
+
+    private static void reverse(double[] ring) {
+        for (int i = 0, j = ring.length - 2; i < j; i += 2, j -= 2) {
+            double x = ring[i], y = ring[i + 1];
+            ring[i] = ring[j];
+            ring[i + 1] = ring[j + 1];
+            ring[j] = x;
+            ring[j + 1] = y;
+        }
+    }
+
+    private static List<List<Double>> toPositions(double[] ring) {
+        List<List<Double>> positions = new ArrayList<>(ring.length / 2);
+        for (int i = 0; i + 1 < ring.length; i += 2)
+            positions.add(List.of(ring[i], ring[i + 1]));
+        return positions;
+    }
+
+    // Área na esfera (fórmula do OpenLayers); o sinal é o oposto do do shoelace
+    private static double sphericalArea(List<List<Double>> ring) {
+        double sum = 0;
+        for (int i = 0; i + 1 < ring.size(); i++) {
+            double lon1 = Math.toRadians(ring.get(i).get(0)), lon2 = Math.toRadians(ring.get(i + 1).get(0));
+            double lat1 = Math.toRadians(ring.get(i).get(1)), lat2 = Math.toRadians(ring.get(i + 1).get(1));
+            sum += (lon2 - lon1) * (2 + Math.sin(lat1) + Math.sin(lat2));
+        }
+        return sum * EARTH_RADIUS_M * EARTH_RADIUS_M / 2;
+    }
+
+    private static double round(double v, int decimals) {
+        double f = Math.pow(10, decimals);
+        return Math.round(v * f) / f;
+    }
+}
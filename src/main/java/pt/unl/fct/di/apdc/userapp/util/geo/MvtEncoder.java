@@ -0,0 +1,298 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Codificador de uma camada Mapbox Vector Tile (spec 2.1), escrito diretamente em protobuf.
+ * As geometrias recebidas estão em coordenadas do tile (0..EXTENT) e são recortadas e simplificadas aqui.
+ */
+public class MvtEncoder {
+
+    public static final int EXTENT = 4096;
+    public static final int BUFFER = 64;
+
+    private static final int GEOM_POINT = 1;
+    private static final int GEOM_POLYGON = 3;
+    private static final int CMD_MOVE_TO = 1;
+    private static final int CMD_LINE_TO = 2;
+    private static final int CMD_CLOSE_PATH = 7;
+    // Tolerância da simplificação Douglas-Peucker, em unidades do tile
+    private static final double SIMPLIFY_TOLERANCE = 1.0;
+
+    private final String layerName;
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Integer> keyIndex = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final Map<String, Integer> valueIndex = new HashMap<>();
+    private final List<byte[]> features = new ArrayList<>();
+
+    public MvtEncoder(String layerName) {
+        this.layerName = layerName;
+    }
+
+    public int featureCount() {
+        return features.size();
+    }
+
+    /** Acrescenta um polígono; devolve false se depois do recorte não sobrar nada visível. */
+    public boolean addPolygon(Map<String, String> tags, List<double[]> rings) {
+        List<Integer> geometry = new ArrayList<>();
+        int[] cursor = new int[2];
+        boolean first = true;
+        for (double[] ring : rings) {
+            int[] pts = simplify(quantize(clip(ring)));
+            if (pts.length < 6) {
+                if (first)
+                    return false; // anel exterior degenerado
+                continue;
+            }
+            // Exterior no sentido horário (área positiva com y para baixo), buracos ao contrário
+            if ((signedArea(pts) > 0) != first)
+                pts = reverse(pts);
+            appendRing(geometry, cursor, pts);
+            first = false;
+        }
+        features.add(feature(tags, GEOM_POLYGON, geometry));
+        return true;
+    }
+
+    public void addPoint(Map<String, String> tags, int x, int y) {
+        List<Integer> geometry = new ArrayList<>();
+        geometry.add(command(CMD_MOVE_TO, 1));
+        geometry.add(zigzag(x));
+        geometry.add(zigzag(y));
+        features.add(feature(tags, GEOM_POINT, geometry));
+    }
+
+    public byte[] encode() {
+        byte[] layer = message(out -> {
+            out.writeUInt32(15, 2);
+            out.writeString(1, layerName);
+            for (byte[] f : features)
+                out.writeByteArray(2, f);
+            for (String k : keys)
+                out.writeString(3, k);
+            for (String v : values)
+                out.writeByteArray(4, message(val -> val.writeString(1, v)));
+            out.writeUInt32(5, EXTENT);
+        });
+        return message(out -> out.writeByteArray(3, layer));
+    }
+
+    private byte[] feature(Map<String, String> tags, int type, List<Integer> geometry) {
+        List<Integer> tagIds = new ArrayList<>();
+        for (Map.Entry<String, String> t : tags.entrySet()) {
+            if (t.getValue() == null)
+                continue;
+            tagIds.add(keyIndex.computeIfAbsent(t.getKey(), k -> {
+                keys.add(k);
+                return keys.size() - 1;
+            }));
+            tagIds.add(valueIndex.computeIfAbsent(t.getValue(), v -> {
+                values.add(v);
+                return values.size() - 1;
+            }));
+        }
+        long id = features.size() + 1;
+        return message(out -> {
+            out.writeUInt64(1, id);
+            writePacked(out, 2, tagIds);
+            out.writeEnum(3, type);
+            writePacked(out, 4, geometry);
+        });
+    }
+
+    private static void appendRing(List<Integer> geometry, int[] cursor, int[] pts) {
+        int n = pts.length / 2;
+        geometry.add(command(CMD_MOVE_TO, 1));
+        appendDelta(geometry, cursor, pts[0], pts[1]);
+        geometry.add(command(CMD_LINE_TO, n - 1));
+        for (int i = 1; i < n; i++)
+            appendDelta(geometry, cursor, pts[2 * i], pts[2 * i + 1]);
+        geometry.add(command(CMD_CLOSE_PATH, 1));
+    }
+
+    private static void appendDelta(List<Integer> geometry, int[] cursor, int x, int y) {
+        geometry.add(zigzag(x - cursor[0]));
+        geometry.add(zigzag(y - cursor[1]));
+        cursor[0] = x;
+        cursor[1] = y;
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    // Sutherland-Hodgman contra a caixa do tile alargada pelo buffer
+    private static double[] clip(double[] ring) {
+        double lo = -BUFFER, hi = EXTENT + BUFFER;
+        double[] pts = ring;
+        for (int edge = 0; edge < 4 && pts.length >= 6; edge++)
+            pts = clipEdge(pts, edge, edge < 2 ? lo : hi);
+        return pts;
+    }
+
+    // edge: 0 = x >= lo, 1 = y >= lo, 2 = x <= hi, 3 = y <= hi
+    private static double[] clipEdge(double[] pts, int edge, double bound) {
+        int axis = edge % 2;
+        boolean keepAbove = edge < 2;
+        int n = pts.length / 2;
+        double[] out = new double[pts.length * 2 + 4];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            double ax = pts[2 * i], ay = pts[2 * i + 1], bx = pts[2 * j], by = pts[2 * j + 1];
+            double a = axis == 0 ? ax : ay, b = axis == 0 ? bx : by;
+            boolean aIn = keepAbove ? a >= bound : a <= bound;
+            boolean bIn = keepAbove ? b >= bound : b <= bound;
+            if (aIn) {
+                out[m++] = ax;
+                out[m++] = ay;
+            }
+            if (aIn != bIn) {
+                double t = (bound - a) / (b - a);
+                out[m++] = axis == 0 ? bound : ax + t * (bx - ax);
+                out[m++] = axis == 0 ? ay + t * (by - ay) : bound;
+            }
+        }
+        double[] result = new double[m];
+        System.arraycopy(out, 0, result, 0, m);
+        return result;
+    }
+
+    // Arredonda e remove pontos repetidos (incluindo o fecho do anel, que a ClosePath já implica)
+    private static int[] quantize(double[] pts) {
+        int n = pts.length / 2;
+        int[] out = new int[pts.length];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            int x = (int) Math.round(pts[2 * i]), y = (int) Math.round(pts[2 * i + 1]);
+            if (m >= 2 && out[m - 2] == x && out[m - 1] == y)
+                continue;
+            out[m++] = x;
+            out[m++] = y;
+        }
+        while (m >= 4 && out[0] == out[m - 2] && out[1] == out[m - 1])
+            m -= 2;
+        int[] result = new int[m];
+        System.arraycopy(out, 0, result, 0, m);
+        return result;
+    }
+
+    // Douglas-Peucker iterativo sobre o anel aberto
+    private static int[] simplify(int[] pts) {
+        int n = pts.length / 2;
+        if (n <= 3)
+            return pts;
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int last = stack[--top], firstIdx = stack[--top];
+            double maxDist = 0;
+            int index = -1;
+            for (int i = firstIdx + 1; i < last; i++) {
+                double d = segmentDistance(pts, i, firstIdx, last);
+                if (d > maxDist) {
+                    maxDist = d;
+                    index = i;
+                }
+            }
+            if (index >= 0 && maxDist > SIMPLIFY_TOLERANCE) {
+                keep[index] = true;
+                stack[top++] = firstIdx;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = last;
+            }
+        }
+        int kept = 0;
+        for (boolean k : keep)
+            if (k)
+                kept++;
+        int[] out = new int[kept * 2];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                out[m++] = pts[2 * i];
+                out[m++] = pts[2 * i + 1];
+            }
+        }
+        return out;
+    }
+
+    private static double segmentDistance(int[] pts, int p, int a, int b) {
+        double px = pts[2 * p], py = pts[2 * p + 1];
+        double ax = pts[2 * a], ay = pts[2 * a + 1], bx = pts[2 * b], by = pts[2 * b + 1];
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        if (len2 == 0)
+            return Math.hypot(px - ax, py - ay);
+        double t = Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len2));
+        return Math.hypot(px - (ax + t * dx), py - (ay + t * dy));
+    }
+
+    private static long signedArea(int[] pts) {
+        int n = pts.length / 2;
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            int j = (i + 1) % n;
+            sum += (long) pts[2 * i] * pts[2 * j + 1] - (long) pts[2 * j] * pts[2 * i + 1];
+        }
+        return sum;
+    }
+
+    private static int[] reverse(int[] pts) {
+        int n = pts.length / 2;
+        int[] out = new int[pts.length];
+        for (int i = 0; i < n; i++) {
+            out[2 * i] = pts[2 * (n - 1 - i)];
+            out[2 * i + 1] = pts[2 * (n - 1 - i) + 1];
+        }
+        return out;
+    }
+
+    private static void writePacked(CodedOutputStream out, int field, List<Integer> ints) throws IOException {
+        if (ints.isEmpty())
+            return;
+        int size = 0;
+        for (int v : ints)
+            size += CodedOutputStream.computeUInt32SizeNoTag(v);
+        out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        out.writeUInt32NoTag(size);
+        for (int v : ints)
+            out.writeUInt32NoTag(v);
+    }
+
+    private interface Writer {
+        void write(CodedOutputStream out) throws IOException;
+    }
+
+    private static byte[] message(Writer body) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            body.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetData;
+
+/** Polígono (parcela) de uma folha de obra, já em coordenadas numéricas para o índice espacial. */
+public class Parcel {
+
+    public final String worksheetId;
+    public final String polygonId;
+    public final String status;
+    public final List<double[]> rings; // anel exterior primeiro; cada anel é lon,lat intercalados
+    public final Envelope envelope;
+
+    public Parcel(String worksheetId, String polygonId, String status, List<double[]> rings) {
+        this.worksheetId = worksheetId;
+        this.polygonId = polygonId;
+        this.status = status;
+        this.rings = rings;
+        this.envelope = Envelope.ofRings(rings);
+    }
+
+    public static List<Parcel> fromFeatures(String worksheetId, String status, List<WorkSheetData.Feature> features) {
+        List<Parcel> parcels = new ArrayList<>();
+        if (features == null)
+            return parcels;
+        for (WorkSheetData.Feature f : features) {
+            if (f == null || f.geometry == null || f.geometry.coordinates == null)
+                continue;
+            List<double[]> rings = new ArrayList<>();
+            for (List<List<Double>> ring : f.geometry.coordinates) {
+                if (ring == null)
+                    continue;
+                double[] coords = new double[ring.size() * 2];
+                int n = 0;
+                for (List<Double> p : ring) {
+                    if (p == null || p.size() < 2 || p.get(0) == null || p.get(1) == null)
+                        continue;
+                    coords[n++] = p.get(0);
+                    coords[n++] = p.get(1);
+                }
+                if (n >= 6)
+                    rings.add(n == coords.length ? coords : Arrays.copyOf(coords, n));
+            }
+            if (!rings.isEmpty())
+                parcels.add(new Parcel(worksheetId, polygonIdOf(f), status, rings));
+        }
+        return parcels;
+    }
+
+    // O Gson lê números como Double: 1.0 passa a "1"
+    public static String polygonIdOf(WorkSheetData.Feature f) {
+        Object id = f.properties != null ? f.properties.get("polygon_id") : null;
+        if (id instanceof Number n && n.doubleValue() == Math.rint(n.doubleValue()))
+            return Long.toString(n.longValue());
+        return id != null ? id.toString() : null;
+    }
+}
@@ -0,0 +1,59 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+/**
+ * Conversão de PT-TM06/ETRS89 (EPSG:3763, metros) para longitude/latitude WGS84. É a projeção transversa de
+ * Mercator no elipsoide GRS80 com origem em 39°40'05,73"N 8°07'59,19"W, fator de escala 1 e sem falsa origem.
+ * O ETRS89 e o WGS84 diferem menos de um metro em Portugal, por isso a latitude/longitude ETRS89 é usada tal qual.
+ * Fórmulas inversas de Snyder (Map Projections - A Working Manual, 1987, pp. 63-64).
+ */
+public final class PtTm06 {
+
+    private static final double A = 6_378_137.0;
+    private static final double F = 1 / 298.257222101;
+    private static final double E2 = F * (2 - F);
+    private static final double EP2 = E2 / (1 - E2);
+    private static final double LAT0 = Math.toRadians(39.668258333);
+    private static final double LON0 = Math.toRadians(-8.133108333);
+    private static final double K0 = 1.0;
+
+    private static final double E4 = E2 * E2, E6 = E4 * E2;
+    private static final double M_FACTOR = 1 - E2 / 4 - 3 * E4 / 64 - 5 * E6 / 256;
+    private static final double M0 = meridianArc(LAT0);
+    private static final double E1 = (1 - Math.sqrt(1 - E2)) / (1 + Math.sqrt(1 - E2));
+
+    private PtTm06() {
+    }
+
+    /** {lon, lat} em graus do ponto (x, y) em metros. */
+    public static double[] toWgs84(double x, double y) {
+        double mu = (M0 + y / K0) / (A * M_FACTOR);
+        double phi1 = mu
+                + (3 * E1 / 2 - 27 * Math.pow(E1, 3) / 32) * Math.sin(2 * mu)
+                + (21 * E1 * E1 / 16 - 55 * Math.pow(E1, 4) / 32) * Math.sin(4 * mu)
+                + (151 * Math.pow(E1, 3) / 96) * Math.sin(6 * mu)
+                + (1097 * Math.pow(E1, 4) / 512) * Math.sin(8 * mu);
+
+        double sin = Math.sin(phi1), cos = Math.cos(phi1), tan = Math.tan(phi1);
+        double c1 = EP2 * cos * cos;
+        double t1 = tan * tan;
+        double w = 1 - E2 * sin * sin;
+        double n1 = A / Math.sqrt(w);
+        double r1 = A * (1 - E2) / (w * Math.sqrt(w));
+        double d = x / (n1 * K0);
+
+        double lat = phi1 - (n1 * tan / r1) * (d * d / 2
+                - (5 + 3 * t1 + 10 * c1 - 4 * c1 * c1 - 9 * EP2) * Math.pow(d, 4) / 24
+                + (61 + 90 * t1 + 298 * c1 + 45 * t1 * t1 - 252 * EP2 - 3 * c1 * c1) * Math.pow(d, 6) / 720);
+        double lon = LON0 + (d
+                - (1 + 2 * t1 + c1) * Math.pow(d, 3) / 6
+                + (5 - 2 * c1 + 28 * t1 - 3 * c1 * c1 + 8 * EP2 + 24 * t1 * t1) * Math.pow(d, 5) / 120) / cos;
+        return new double[] { Math.toDegrees(lon), Math.toDegrees(lat) };
+    }
+
+    private static double meridianArc(double phi) {
+        return A * (M_FACTOR * phi
+                - (3 * E2 / 8 + 3 * E4 / 32 + 45 * E6 / 1024) * Math.sin(2 * phi)
+                + (15 * E4 / 256 + 45 * E6 / 1024) * Math.sin(4 * phi)
+                - (35 * E6 / 3072) * Math.sin(6 * phi));
+    }
+}
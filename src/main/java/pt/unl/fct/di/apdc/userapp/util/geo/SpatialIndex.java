@@ -0,0 +1,89 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Índice espacial em memória: grelha regular de células de 1 grau, cada uma com as parcelas que a intersetam.
+ * As parcelas são agrupadas por folha para poderem ser substituídas de uma vez quando a folha muda.
+ */
+public class SpatialIndex {
+
+    private static final double CELL_DEGREES = 1.0;
+
+    private final Map<Long, List<Parcel>> cells = new HashMap<>();
+    private final Map<String, List<Parcel>> byWorksheet = new HashMap<>();
+
+    /** Substitui as parcelas de uma folha e devolve a área afetada (antiga e nova), ou null se nada mudou. */
+    public synchronized Envelope replace(String worksheetId, List<Parcel> parcels) {
+        Envelope affected = null;
+        List<Parcel> old = byWorksheet.remove(worksheetId);
+        if (old != null) {
+            for (Parcel p : old) {
+                affected = Envelope.union(affected, p.envelope);
+                forEachCell(p.envelope, key -> {
+                    List<Parcel> list = cells.get(key);
+                    if (list != null) {
+                        list.remove(p);
+                        if (list.isEmpty())
+                            cells.remove(key);
+                    }
+                });
+            }
+        }
+        if (parcels != null && !parcels.isEmpty()) {
+            for (Parcel p : parcels) {
+                if (p.envelope == null)
+                    continue;
+                affected = Envelope.union(affected, p.envelope);
+                forEachCell(p.envelope, key -> cells.computeIfAbsent(key, k -> new ArrayList<>()).add(p));
+            }
+            byWorksheet.put(worksheetId, new ArrayList<>(parcels));
+        }
+        return affected;
+    }
+
+    public synchronized List<Parcel> query(Envelope env) {
+        if (cells.isEmpty())
+            return Collections.emptyList();
+        List<Parcel> result = new ArrayList<>();
+        // Uma parcela pode estar em várias células
+        Set<Parcel> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        forEachCell(env, key -> {
+            List<Parcel> list = cells.get(key);
+            if (list == null)
+                return;
+            for (Parcel p : list) {
+                if (p.envelope.intersects(env) && seen.add(p))
+                    result.add(p);
+            }
+        });
+        return result;
+    }
+
+    public synchronized int worksheetCount() {
+        return byWorksheet.size();
+    }
+
+    private interface CellVisitor {
+        void visit(long key);
+    }
+
+    private static void forEachCell(Envelope env, CellVisitor visitor) {
+        int minX = cell(env.minLon() + 180), maxX = cell(env.maxLon() + 180);
+        int minY = cell(env.minLat() + 90), maxY = cell(env.maxLat() + 90);
+        for (int x = minX; x <= maxX; x++)
+            for (int y = minY; y <= maxY; y++)
+                visitor.visit(((long) x << 32) | (y & 0xffffffffL));
+    }
+
+    private static int cell(double degrees) {
+        int max = (int) (360 / CELL_DEGREES) - 1;
+        return Math.max(0, Math.min(max, (int) Math.floor(degrees / CELL_DEGREES)));
+    }
+}
@@ -0,0 +1,42 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+/** Conversões entre WGS84 e a grelha de tiles Web Mercator (z/x/y). */
+public final class TileMath {
+
+    public static final int MAX_ZOOM = 22;
+    private static final double MAX_LAT = 85.0511287798;
+
+    private TileMath() {
+    }
+
+    public static boolean valid(int z, int x, int y) {
+        if (z < 0 || z > MAX_ZOOM)
+            return false;
+        int n = 1 << z;
+        return x >= 0 && x < n && y >= 0 && y < n;
+    }
+
+    public static double lonToX(double lon, int z) {
+        return (lon + 180.0) / 360.0 * (1 << z);
+    }
+
+    public static double latToY(double lat, int z) {
+        double r = Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, lat)));
+        return (1 - Math.log(Math.tan(r) + 1 / Math.cos(r)) / Math.PI) / 2 * (1 << z);
+    }
+
+    public static double xToLon(double x, int z) {
+        return x / (1 << z) * 360.0 - 180.0;
+    }
+
+    public static double yToLat(double y, int z) {
+        double n = Math.PI - 2 * Math.PI * y / (1 << z);
+        return Math.toDegrees(Math.atan(Math.sinh(n)));
+    }
+
+    /** Envolvente do tile, alargada por uma fração da sua largura (margem para o recorte). */
+    public static Envelope bounds(int z, int x, int y, double margin) {
+        return new Envelope(xToLon(x - margin, z), yToLat(y + 1 + margin, z),
+                xToLon(x + 1 + margin, z), yToLat(y - margin, z));
+    }
+}
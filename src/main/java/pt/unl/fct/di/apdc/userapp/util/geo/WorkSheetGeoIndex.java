@@ -0,0 +1,186 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.cloud.datastore.Cursor;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DoubleValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.EntityQuery;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.ListValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.Value;
+import com.google.gson.Gson;
+
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetData;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetFeatureStore;
+
+/**
+ * Índice geográfico das folhas de obra. Cada folha tem um filho "WorkSheetGeo" pequeno com as células geohash
+ * que cobrem a sua extensão ("geo_cells"), os prefixos dessas células ("geo_cell_prefixes") e o envelope exato.
+ * As consultas por bbox leem só estas entidades, nunca as features.
+ */
+public class WorkSheetGeoIndex {
+
+    public static final String KIND = "WorkSheetGeo";
+    private static final Gson GSON = new Gson();
+    private static final int WORKSHEET_MAX_CELLS = 8;
+    private static final int VIEWPORT_MAX_CELLS = 8;
+    // Consultas por página (células do viewport, seus ancestrais e prefixos)
+    private static final int MAX_LOOKUPS = 24;
+    // Entidades lidas por resultado pedido, contando as descartadas pelo envelope
+    private static final int MAX_SCANNED_PER_RESULT = 4;
+
+    public static Key keyFor(Key worksheetKey) {
+        return Key.newBuilder(worksheetKey, KIND, "geo").build();
+    }
+
+    /** Entidade de índice de uma folha, ou null se a folha não tiver geometria. */
+    public static Entity entityFor(Entity worksheet) {
+        Envelope env = envelopeOf(worksheet);
+        if (env == null)
+            return null;
+        List<String> cells = GeoHash.cover(env, WORKSHEET_MAX_CELLS);
+        return Entity.newBuilder(keyFor(worksheet.getKey()))
+                .set("worksheet_id", worksheet.getKey().getName())
+                .set("title", worksheet.contains("title") ? worksheet.getString("title") : "")
+                .set("geo_cells", stringList(cells))
+                .set("geo_cell_prefixes", stringList(new ArrayList<>(GeoHash.ancestors(cells))))
+                .set("min_lon", DoubleValue.newBuilder(env.minLon()).setExcludeFromIndexes(true).build())
+                .set("min_lat", DoubleValue.newBuilder(env.minLat()).setExcludeFromIndexes(true).build())
+                .set("max_lon", DoubleValue.newBuilder(env.maxLon()).setExcludeFromIndexes(true).build())
+                .set("max_lat", DoubleValue.newBuilder(env.maxLat()).setExcludeFromIndexes(true).build())
+                .build();
+    }
+
+    public static Envelope envelopeOf(Entity worksheet) {
+        // Folhas em blocos: o manifesto já tem o envelope de cada bloco
+        if (worksheet.contains(WorkSheetFeatureStore.MANIFEST))
+            return WorkSheetFeatureStore.envelope(worksheet);
+        if (!worksheet.contains("features"))
+            return null;
+        WorkSheetData.Feature[] features = GSON.fromJson(worksheet.getString("features"), WorkSheetData.Feature[].class);
+        if (features == null)
+            return null;
+        Envelope env = null;
+        for (Parcel p : Parcel.fromFeatures(worksheet.getKey().getName(), null, Arrays.asList(features)))
+            env = Envelope.union(env, p.envelope);
+        return env;
+    }
+
+    public static Envelope envelopeOfIndex(Entity geo) {
+        return new Envelope(geo.getDouble("min_lon"), geo.getDouble("min_lat"),
+                geo.getDouble("max_lon"), geo.getDouble("max_lat"));
+    }
+
+    /** Página de resultados; next é o cursor da página seguinte, ou null se não houver mais. */
+    public static class Page {
+        public final List<Entity> results = new ArrayList<>();
+        public String next;
+    }
+
+    // Uma consulta de igualdade sobre o índice
+    private record Lookup(String property, String cell) {
+        boolean matches(Entity geo) {
+            if (!geo.contains(property))
+                return false;
+            for (Value<?> v : geo.getList(property)) {
+                if (cell.equals(v.get()))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Folhas cujo envelope interseta o viewport. Uma célula da folha sobrepõe-se a uma célula do viewport
+     * se uma for prefixo da outra: procura-se cada célula do viewport em geo_cells e geo_cell_prefixes,
+     * e cada ancestral dela em geo_cells. Depois confirma-se com o envelope exato.
+     *
+     * As consultas são feitas por ordem e param assim que há limit resultados ou foram lidas limit *
+     * MAX_SCANNED_PER_RESULT entidades; o cursor ("i:cursor do Datastore") retoma a consulta i nesse ponto.
+     * Uma folha encontrada por várias consultas só conta na primeira que a encontra, por isso não se repete
+     * entre páginas.
+     *
+     * @throws IllegalArgumentException se o cursor não for válido para este viewport
+     */
+    public static Page query(Datastore datastore, Envelope viewport, int limit, String cursor) {
+        List<Lookup> lookups = lookups(viewport);
+        int from = 0;
+        Cursor start = null;
+        if (cursor != null && !cursor.isEmpty()) {
+            int sep = cursor.indexOf(':');
+            if (sep < 0)
+                throw new IllegalArgumentException("Invalid cursor");
+            from = Integer.parseInt(cursor.substring(0, sep));
+            if (from < 0 || from >= lookups.size())
+                throw new IllegalArgumentException("Invalid cursor");
+            if (sep + 1 < cursor.length())
+                start = Cursor.fromUrlSafe(cursor.substring(sep + 1));
+        }
+
+        Page page = new Page();
+        int budget = Math.max(limit, 1) * MAX_SCANNED_PER_RESULT;
+        for (int i = from; i < lookups.size(); i++) {
+            Lookup lookup = lookups.get(i);
+            EntityQuery.Builder query = Query.newEntityQueryBuilder()
+                    .setKind(KIND)
+                    .setFilter(StructuredQuery.PropertyFilter.eq(lookup.property(), lookup.cell()))
+                    .setLimit(budget);
+            if (i == from && start != null)
+                query.setStartCursor(start);
+            QueryResults<Entity> results = datastore.run(query.build());
+            while (results.hasNext()) {
+                Entity geo = results.next();
+                budget--;
+                if (firstMatch(lookups, geo) == i && envelopeOfIndex(geo).intersects(viewport))
+                    page.results.add(geo);
+                if (page.results.size() >= limit || budget <= 0) {
+                    page.next = i + ":" + results.getCursorAfter().toUrlSafe();
+                    return page;
+                }
+            }
+        }
+        return page;
+    }
+
+    // Células do viewport, reduzidas até o total de consultas ficar dentro de MAX_LOOKUPS
+    private static List<Lookup> lookups(Envelope viewport) {
+        for (int maxCells = VIEWPORT_MAX_CELLS; ; maxCells--) {
+            List<String> cells = GeoHash.cover(viewport, maxCells);
+            Set<String> exact = new LinkedHashSet<>(cells);
+            exact.addAll(GeoHash.ancestors(cells));
+            if (exact.size() + cells.size() > MAX_LOOKUPS && maxCells > 1)
+                continue;
+            List<Lookup> lookups = new ArrayList<>();
+            for (String cell : exact)
+                lookups.add(new Lookup("geo_cells", cell));
+            for (String cell : cells)
+                lookups.add(new Lookup("geo_cell_prefixes", cell));
+            return lookups;
+        }
+    }
+
+    private static int firstMatch(List<Lookup> lookups, Entity geo) {
+        for (int i = 0; i < lookups.size(); i++) {
+            if (lookups.get(i).matches(geo))
+                return i;
+        }
+        return -1;
+    }
+
+    private static ListValue stringList(List<String> values) {
+        ListValue.Builder list = ListValue.newBuilder();
+        for (String v : values)
+            list.addValue(StringValue.of(v));
+        return list.build();
+    }
+}
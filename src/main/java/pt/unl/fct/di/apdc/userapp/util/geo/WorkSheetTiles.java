@@ -0,0 +1,244 @@
+package pt.unl.fct.di.apdc.userapp.util.geo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetChanges;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetFeatureStore;
+
+/**
+ * Tiles vetoriais das parcelas das folhas de obra, gerados a pedido a partir do índice espacial.
+ * O índice é carregado uma vez por instância, em segundo plano, e depois mantido a par através dos contadores
+ * EntityVersion (escritas locais chamam {@link #refresh}; as de outras instâncias são apanhadas por {@link WorkSheetChanges}).
+ */
+public class WorkSheetTiles {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetTiles.class.getName());
+
+    public static final String LAYER = "parcels";
+    private static final int CACHE_SIZE = Integer.getInteger("worksheet.tiles.cache", 1024);
+    private static final long SYNC_INTERVAL_MS = 5_000;
+    // Parcelas mais pequenas do que isto (unidades do tile) são desenhadas como ponto
+    private static final int MIN_POLYGON_UNITS = 4;
+    // Um ponto por célula de 64x64 unidades: limita o tamanho dos tiles de zoom baixo
+    private static final int POINT_GRID_SHIFT = 6;
+
+    private static final SpatialIndex INDEX = new SpatialIndex();
+    private static final Map<String, byte[]> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+    private static final Map<String, Long> indexedVersions = new HashMap<>();
+
+    private static final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    // Só uma thread sincroniza de cada vez; as outras desenham com o índice que já existe
+    private static final ReentrantLock SYNC = new ReentrantLock();
+    private static final AtomicBoolean loadStarted = new AtomicBoolean();
+    private static volatile boolean loaded = false;
+    private static long lastSyncCheck = 0;
+    private static long syncedFrom = 0;
+    // Incrementado (com o lock do CACHE) a cada invalidação: um tile desenhado antes dela não é guardado
+    private static long epoch = 0;
+
+    /** Tile codificado, ou null enquanto o índice ainda está a ser carregado em segundo plano. */
+    public static byte[] tile(Datastore datastore, int z, int x, int y) {
+        if (!loaded) {
+            startLoad(datastore);
+            return null;
+        }
+        sync(datastore);
+        String key = z + "/" + x + "/" + y;
+        long snapshot;
+        synchronized (CACHE) {
+            byte[] cached = CACHE.get(key);
+            if (cached != null)
+                return cached;
+            snapshot = epoch;
+        }
+        byte[] tile = render(z, x, y);
+        synchronized (CACHE) {
+            if (epoch == snapshot)
+                CACHE.put(key, tile);
+        }
+        return tile;
+    }
+
+    /** Carrega o índice numa thread própria (no arranque da instância ou no primeiro pedido de tile). */
+    public static void startLoad(Datastore datastore) {
+        if (!loadStarted.compareAndSet(false, true))
+            return;
+        Thread loader = new Thread(() -> {
+            try {
+                load(datastore);
+            } catch (Exception e) {
+                LOG.warning("Failed to load tile index: " + e.getMessage());
+                loadStarted.set(false);
+            }
+        }, "tile-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Marca uma folha para voltar a ser indexada depois de uma escrita local. A leitura das features
+     * fica para o próximo pedido de tile, fora do caminho da escrita.
+     */
+    public static void refresh(String worksheetId) {
+        if (loaded)
+            pending.add(worksheetId);
+    }
+
+    private static void load(Datastore datastore) {
+        // As escritas feitas durante a carga são apanhadas pela primeira sincronização
+        long start = System.currentTimeMillis();
+        QueryResults<Entity> all = datastore.run(Query.newEntityQueryBuilder().setKind("WorkSheet").build());
+        while (all.hasNext()) {
+            Entity ws = all.next();
+            reindex(datastore, ws.getKey().getName(), ws);
+        }
+        SYNC.lock();
+        try {
+            syncedFrom = start;
+            lastSyncCheck = 0;
+            loaded = true;
+        } finally {
+            SYNC.unlock();
+        }
+        LOG.info("Tile index loaded with " + INDEX.worksheetCount() + " worksheets");
+    }
+
+    private static void sync(Datastore datastore) {
+        if (!SYNC.tryLock())
+            return;
+        try {
+            long now = System.currentTimeMillis();
+            Set<String> stale = new HashSet<>();
+            for (Iterator<String> it = pending.iterator(); it.hasNext();) {
+                stale.add(it.next());
+                it.remove();
+            }
+            Map<String, Long> versions = new HashMap<>();
+            if (now - lastSyncCheck >= SYNC_INTERVAL_MS) {
+                lastSyncCheck = now;
+                // Folhas alteradas desde a última verificação (inclui outras instâncias)
+                versions = WorkSheetChanges.since(datastore, syncedFrom);
+                syncedFrom = now;
+                versions.entrySet().removeIf(e -> e.getValue().equals(indexedVersions.get(e.getKey())));
+                stale.addAll(versions.keySet());
+            }
+            if (stale.isEmpty())
+                return;
+
+            List<Key> keys = new ArrayList<>();
+            for (String id : stale)
+                keys.add(datastore.newKeyFactory().setKind("WorkSheet").newKey(id));
+            Set<String> missing = new HashSet<>(stale);
+            datastore.get(keys).forEachRemaining(ws -> {
+                missing.remove(ws.getKey().getName());
+                reindex(datastore, ws.getKey().getName(), ws);
+            });
+            for (String id : missing)
+                reindex(datastore, id, null);
+            indexedVersions.putAll(versions);
+        } finally {
+            SYNC.unlock();
+        }
+    }
+
+    private static void reindex(Datastore datastore, String worksheetId, Entity ws) {
+        List<Parcel> parcels = ws == null ? null : parcelsOf(datastore, ws);
+        Envelope affected = INDEX.replace(worksheetId, parcels);
+        if (affected != null)
+            invalidate(affected);
+    }
+
+    private static List<Parcel> parcelsOf(Datastore datastore, Entity ws) {
+        try {
+            String status = ws.contains("status") ? ws.getString("status") : null;
+            return WorkSheetFeatureStore.parcels(datastore, ws, status);
+        } catch (Exception e) {
+            LOG.warning("Skipping features of worksheet " + ws.getKey().getName() + ": " + e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    // Descarta os tiles em cache que intersetam a área alterada
+    private static void invalidate(Envelope affected) {
+        synchronized (CACHE) {
+            epoch++;
+            CACHE.keySet().removeIf(key -> {
+                String[] zxy = key.split("/");
+                int z = Integer.parseInt(zxy[0]), x = Integer.parseInt(zxy[1]), y = Integer.parseInt(zxy[2]);
+                return tileEnvelope(z, x, y).intersects(affected);
+            });
+        }
+    }
+
+    private static Envelope tileEnvelope(int z, int x, int y) {
+        return TileMath.bounds(z, x, y, (double) MvtEncoder.BUFFER / MvtEncoder.EXTENT);
+    }
+
+    private static byte[] render(int z, int x, int y) {
+        MvtEncoder encoder = new MvtEncoder(LAYER);
+        Set<Long> pointCells = new HashSet<>();
+        for (Parcel parcel : INDEX.query(tileEnvelope(z, x, y))) {
+            List<double[]> projected = new ArrayList<>(parcel.rings.size());
+            for (double[] ring : parcel.rings)
+                projected.add(project(ring, z, x, y));
+
+            Map<String, String> tags = new LinkedHashMap<>();
+            tags.put("worksheet_id", parcel.worksheetId);
+            tags.put("polygon_id", parcel.polygonId);
+            tags.put("status", parcel.status);
+
+            double[] outer = projected.get(0);
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i + 1 < outer.length; i += 2) {
+                minX = Math.min(minX, outer[i]);
+                maxX = Math.max(maxX, outer[i]);
+                minY = Math.min(minY, outer[i + 1]);
+                maxY = Math.max(maxY, outer[i + 1]);
+            }
+            if (maxX - minX < MIN_POLYGON_UNITS && maxY - minY < MIN_POLYGON_UNITS) {
+                int cx = (int) Math.round((minX + maxX) / 2), cy = (int) Math.round((minY + maxY) / 2);
+                if (cx < 0 || cy < 0 || cx >= MvtEncoder.EXTENT || cy >= MvtEncoder.EXTENT)
+                    continue;
+                if (pointCells.add(((long) (cx >> POINT_GRID_SHIFT) << 32) | (cy >> POINT_GRID_SHIFT)))
+                    encoder.addPoint(tags, cx, cy);
+            } else {
+                encoder.addPolygon(tags, projected);
+            }
+        }
+        return encoder.encode();
+    }
+
+    private static double[] project(double[] ring, int z, int x, int y) {
+        double[] out = new double[ring.length];
+        for (int i = 0; i + 1 < ring.length; i += 2) {
+            out[i] = (TileMath.lonToX(ring[i], z) - x) * MvtEncoder.EXTENT;
+            out[i + 1] = (TileMath.latToY(ring[i + 1], z) - y) * MvtEncoder.EXTENT;
+        }
+        return out;
+    }
+}
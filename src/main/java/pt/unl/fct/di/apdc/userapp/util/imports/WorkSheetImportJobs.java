@@ -0,0 +1,491 @@
+package pt.unl.fct.di.apdc.userapp.util.imports;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.cloud.datastore.StructuredQuery;
+import com.google.cloud.datastore.Transaction;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import pt.unl.fct.di.apdc.userapp.util.EntityVersions;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetEntities;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetFeatureStore;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetGeoJsonParser;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetStats;
+import pt.unl.fct.di.apdc.userapp.util.deletion.WorkSheetDeletionJobs;
+import pt.unl.fct.di.apdc.userapp.util.geo.GeometryValidator;
+import pt.unl.fct.di.apdc.userapp.util.geo.WorkSheetGeoIndex;
+import pt.unl.fct.di.apdc.userapp.util.geo.WorkSheetTiles;
+import pt.unl.fct.di.apdc.userapp.util.search.WorkSheetSearchIndex;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStore;
+import pt.unl.fct.di.apdc.userapp.util.storage.BlobStores;
+
+/**
+ * Importação em massa de folhas de obra a partir de um zip de ficheiros GeoJSON.
+ * O pedido só guarda cada ficheiro no bucket de importação e cria as entidades "ImportJob" e "ImportJobFile" (filhos do job);
+ * o processamento corre em segundo plano num pool limitado. O estado fica todo no Datastore, por isso um job
+ * interrompido (reinício da instância) é retomado a partir dos ficheiros ainda pendentes.
+ * Cada job tem um lease com o token de quem o processa, renovado por um temporizador enquanto corre; quem perde
+ * o lease para de processar e não escreve progresso, e o job é retomado por quem o ficou a ter.
+ */
+public class WorkSheetImportJobs {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetImportJobs.class.getName());
+    private static final Gson GSON = new Gson();
+
+    public static final String JOB_KIND = "ImportJob";
+    public static final String FILE_KIND = "ImportJobFile";
+
+    private static final String BUCKET = System.getProperty("import.bucket", BlobStores.BUCKET);
+    private static final int WORKERS = Integer.getInteger("import.workers", 4);
+    private static final int MAX_FILES = Integer.getInteger("import.max.files", 1000);
+    private static final long MAX_FILE_BYTES = Long.getLong("import.max.file.bytes", 20L * 1024 * 1024);
+    // Resultados acumulados antes de escrever progresso, índice geográfico e estados dos ficheiros
+    private static final int BATCH_SIZE = 25;
+    private static final long BATCH_MAX_WAIT_MS = 30_000;
+    private static final long LEASE_MS = 5 * 60_000;
+    private static final int MAX_ERRORS = 100;
+
+    // Um coordenador por job de cada vez; os ficheiros são processados pelos WORKERS
+    private static final ExecutorService JOBS = Executors.newSingleThreadExecutor(daemon("import-job"));
+    private static final ThreadPoolExecutor FILES = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), daemon("import-file"));
+    private static final ScheduledExecutorService LEASES = Executors.newSingleThreadScheduledExecutor(daemon("import-lease"));
+    // Jobs já agendados nesta instância; um job pendente tem lease 0 até começar, e não deve ser agendado outra vez
+    private static final Set<String> QUEUED = ConcurrentHashMap.newKeySet();
+
+    public static class InvalidArchiveException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidArchiveException(String message) {
+            super(message);
+        }
+    }
+
+    // Resultado de um ficheiro, escrito no lote seguinte
+    private static class FileResult {
+        Entity file;
+        String worksheetId;
+        Entity geo;
+        String error;
+    }
+
+    /**
+     * Guarda os ficheiros do zip no BlobStore, cria o job e agenda-o. Devolve o id do job.
+     * Só entradas .json/.geojson são consideradas; as restantes são ignoradas.
+     */
+    public static String create(Datastore datastore, InputStream zip, String createdBy)
+            throws IOException, InvalidArchiveException {
+        String jobId = UUID.randomUUID().toString();
+        Key jobKey = jobKey(datastore, jobId);
+        List<Entity> files = new ArrayList<>();
+        try (ZipInputStream in = new ZipInputStream(zip)) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                String lower = name.toLowerCase(Locale.ROOT);
+                if (entry.isDirectory() || !(lower.endsWith(".geojson") || lower.endsWith(".json")))
+                    continue;
+                if (files.size() >= MAX_FILES)
+                    throw new InvalidArchiveException("Archive has more than " + MAX_FILES + " files");
+                long n = files.size() + 1;
+                String object = "imports/" + jobId + "/" + n + ".geojson";
+                copy(in, object, name);
+                files.add(Entity.newBuilder(Key.newBuilder(jobKey, FILE_KIND, n).build())
+                        .set("name", name)
+                        .set("object", StringValue.newBuilder(object).setExcludeFromIndexes(true).build())
+                        .set("status", "pending")
+                        .build());
+            }
+        } catch (InvalidArchiveException | IOException e) {
+            deleteBlobs(jobId);
+            throw e;
+        }
+        if (files.isEmpty())
+            throw new InvalidArchiveException("Archive has no GeoJSON files");
+
+        for (int i = 0; i < files.size(); i += 500)
+            datastore.put(files.subList(i, Math.min(i + 500, files.size())).toArray(Entity[]::new));
+        long now = System.currentTimeMillis();
+        datastore.put(Entity.newBuilder(jobKey)
+                .set("status", "pending")
+                .set("created_by", createdBy)
+                .set("created_at", now)
+                .set("updated_at", now)
+                .set("total", files.size())
+                .set("processed", 0)
+                .set("created", 0)
+                .set("failed", 0)
+                .set("errors", StringValue.newBuilder("[]").setExcludeFromIndexes(true).build())
+                .set("lease_until", LongValue.newBuilder(0).setExcludeFromIndexes(true).build())
+                .build());
+        submit(datastore, jobId);
+        return jobId;
+    }
+
+    /**
+     * Estado de um job para quem o criou, ou null se não existir ou for de outro utilizador.
+     * Retoma-o se estiver parado (lease expirado) e não estiver já agendado nesta instância.
+     */
+    public static JsonObject status(Datastore datastore, String jobId, String requester) {
+        Entity job = datastore.get(jobKey(datastore, jobId));
+        if (job == null || !job.getString("created_by").equals(requester))
+            return null;
+        if (!finished(job) && job.getLong("lease_until") < System.currentTimeMillis())
+            submit(datastore, jobId);
+        JsonObject out = new JsonObject();
+        out.addProperty("job_id", jobId);
+        out.addProperty("status", job.getString("status"));
+        for (String field : List.of("total", "processed", "created", "failed", "created_at", "updated_at"))
+            out.addProperty(field, job.getLong(field));
+        out.addProperty("created_by", job.getString("created_by"));
+        out.add("errors", JsonParser.parseString(job.getString("errors")));
+        return out;
+    }
+
+    /** Retoma os jobs por acabar (chamado no arranque da instância). */
+    public static void resumePending(Datastore datastore) {
+        for (String status : List.of("pending", "running")) {
+            QueryResults<Key> keys = datastore.run(Query.newKeyQueryBuilder().setKind(JOB_KIND)
+                    .setFilter(StructuredQuery.PropertyFilter.eq("status", status)).build());
+            while (keys.hasNext())
+                submit(datastore, keys.next().getName());
+        }
+    }
+
+    public static void shutdown() {
+        JOBS.shutdownNow();
+        FILES.shutdownNow();
+        LEASES.shutdownNow();
+    }
+
+    public static Key jobKey(Datastore datastore, String jobId) {
+        return datastore.newKeyFactory().setKind(JOB_KIND).newKey(jobId);
+    }
+
+    private static void submit(Datastore datastore, String jobId) {
+        if (!QUEUED.add(jobId))
+            return;
+        JOBS.submit(() -> {
+            try {
+                run(datastore, jobId);
+            } catch (Exception e) {
+                LOG.severe("Import job " + jobId + " stopped: " + e.getMessage());
+            } finally {
+                QUEUED.remove(jobId);
+            }
+        });
+    }
+
+    private static void run(Datastore datastore, String jobId) throws Exception {
+        Key jobKey = jobKey(datastore, jobId);
+        String lease = UUID.randomUUID().toString();
+        if (!claim(datastore, jobKey, lease))
+            return;
+        AtomicBoolean lost = new AtomicBoolean();
+        ScheduledFuture<?> renewal = LEASES.scheduleWithFixedDelay(() -> {
+            if (!renew(datastore, jobKey, lease))
+                lost.set(true);
+        }, LEASE_MS / 3, LEASE_MS / 3, TimeUnit.MILLISECONDS);
+        try {
+            processFiles(datastore, jobId, jobKey, lease, lost);
+        } finally {
+            renewal.cancel(false);
+        }
+    }
+
+    private static void processFiles(Datastore datastore, String jobId, Key jobKey, String lease, AtomicBoolean lost)
+            throws Exception {
+
+        List<Entity> pending = new ArrayList<>();
+        QueryResults<Entity> results = datastore.run(Query.newEntityQueryBuilder().setKind(FILE_KIND)
+                .setFilter(StructuredQuery.CompositeFilter.and(
+                        StructuredQuery.PropertyFilter.hasAncestor(jobKey),
+                        StructuredQuery.PropertyFilter.eq("status", "pending")))
+                .build());
+        results.forEachRemaining(pending::add);
+        String createdBy = datastore.get(jobKey).getString("created_by");
+        LOG.info("Import job " + jobId + ": " + pending.size() + " files pending");
+
+        CompletionService<FileResult> completion = new ExecutorCompletionService<>(FILES);
+        int submitted = 0, done = 0;
+        int maxInFlight = WORKERS * 2;
+        List<FileResult> batch = new ArrayList<>();
+        long lastFlush = System.currentTimeMillis();
+        while (done < pending.size()) {
+            if (lost.get()) {
+                LOG.warning("Import job " + jobId + ": lease lost, stopping");
+                return;
+            }
+            while (submitted < pending.size() && submitted - done < maxInFlight) {
+                Entity file = pending.get(submitted++);
+                completion.submit(() -> process(datastore, jobId, file, createdBy));
+            }
+            Future<FileResult> next = completion.poll(BATCH_MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (next != null) {
+                batch.add(next.get());
+                done++;
+            }
+            if (batch.size() >= BATCH_SIZE || (!batch.isEmpty() && System.currentTimeMillis() - lastFlush >= BATCH_MAX_WAIT_MS)) {
+                if (!flush(datastore, jobKey, lease, batch, false)) {
+                    LOG.warning("Import job " + jobId + ": lease lost, stopping");
+                    return;
+                }
+                batch.clear();
+                lastFlush = System.currentTimeMillis();
+            }
+        }
+        if (!flush(datastore, jobKey, lease, batch, true))
+            return;
+        deleteBlobs(jobId);
+        LOG.info("Import job " + jobId + " finished");
+    }
+
+    // Processa um ficheiro: valida, cria a folha (com as features em blocos) numa transação
+    private static FileResult process(Datastore datastore, String jobId, Entity file, String createdBy) {
+        FileResult result = new FileResult();
+        String name = file.getString("name");
+        try {
+            InputStream blob = BlobStores.get(BUCKET).open(file.getString("object"));
+            if (blob == null)
+                throw new WorkSheetGeoJsonParser.InvalidGeoJsonException("Uploaded file is missing");
+            // As features vão para blocos à medida que o ficheiro é lido; só contam quando a folha é escrita
+            WorkSheetEntities.FeatureIngest features = new WorkSheetEntities.FeatureIngest(datastore, null);
+            WorkSheetGeoJsonParser.Result parsed;
+            boolean stored = false;
+            try (InputStream in = blob) {
+                parsed = WorkSheetGeoJsonParser.parse(in, features);
+                features.finish();
+            } catch (Exception e) {
+                features.discard();
+                throw e;
+            }
+            String id = parsed.data.id;
+            Key key = datastore.newKeyFactory().setKind("WorkSheet").newKey(id);
+
+            Transaction txn = datastore.newTransaction();
+            Entity ws;
+            try {
+                Entity existing = txn.get(key);
+                if (existing == null && WorkSheetDeletionJobs.inProgress(txn, id))
+                    throw new WorkSheetGeoJsonParser.InvalidGeoJsonException("Worksheet " + id + " is still being deleted");
+                if (existing != null) {
+                    // Já criada por este job antes de uma interrupção
+                    if (!existing.contains("import_job") || !jobId.equals(existing.getString("import_job")))
+                        throw new WorkSheetGeoJsonParser.InvalidGeoJsonException("Worksheet " + id + " already exists");
+                    ws = existing;
+                } else {
+                    Entity base = Entity.newBuilder(WorkSheetEntities.build(key, parsed.data, createdBy))
+                            .set("import_job", StringValue.newBuilder(jobId).setExcludeFromIndexes(true).build())
+                            .build();
+                    ws = features.attach(base);
+                    GeometryValidator.checkOperationAreas(parsed.data.operations, ws.getDouble(WorkSheetFeatureStore.AREA));
+                    txn.put(ws);
+                    EntityVersions.bump(txn, EntityVersions.keyFor(key));
+                    EntityVersions.bumpKind(txn, "WorkSheet");
+                    txn.commit();
+                    stored = true;
+                }
+            } finally {
+                if (txn.isActive())
+                    txn.rollback();
+                if (!stored)
+                    features.discard();
+            }
+            WorkSheetSearchIndex.update(id, ws);
+            WorkSheetTiles.refresh(id);
+            result.worksheetId = id;
+            result.geo = WorkSheetGeoIndex.entityFor(ws);
+            result.file = Entity.newBuilder(file).set("status", "done").set("worksheet_id", id).build();
+        } catch (WorkSheetGeoJsonParser.InvalidGeoJsonException e) {
+            result.error = e.getMessage();
+        } catch (Exception e) {
+            LOG.warning("Import job " + jobId + ", file " + name + ": " + e.getMessage());
+            result.error = "Internal error: " + e.getMessage();
+        }
+        if (result.error != null)
+            result.file = Entity.newBuilder(file).set("status", "failed")
+                    .set("error", StringValue.newBuilder(result.error).setExcludeFromIndexes(true).build()).build();
+        return result;
+    }
+
+    /**
+     * Escreve um lote: estados dos ficheiros e índice geográfico num só put, depois o progresso do job.
+     * Devolve false se o lease já não é deste processamento (o progresso não é contado).
+     */
+    private static boolean flush(Datastore datastore, Key jobKey, String lease, List<FileResult> batch, boolean last) {
+        List<Entity> writes = new ArrayList<>();
+        int created = 0, failed = 0;
+        for (FileResult r : batch) {
+            writes.add(r.file);
+            if (r.geo != null)
+                writes.add(r.geo);
+            if (r.error == null)
+                created++;
+            else
+                failed++;
+        }
+        if (!writes.isEmpty())
+            datastore.put(writes.toArray(Entity[]::new));
+
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            Transaction txn = datastore.newTransaction();
+            try {
+                Entity job = txn.get(jobKey);
+                if (!leaseHeld(job, lease))
+                    return false;
+                JsonArray errors = JsonParser.parseString(job.getString("errors")).getAsJsonArray();
+                for (FileResult r : batch) {
+                    if (r.error != null && errors.size() < MAX_ERRORS) {
+                        JsonObject err = new JsonObject();
+                        err.addProperty("file", r.file.getString("name"));
+                        err.addProperty("error", r.error);
+                        errors.add(err);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                txn.put(Entity.newBuilder(job)
+                        .set("processed", job.getLong("processed") + batch.size())
+                        .set("created", job.getLong("created") + created)
+                        .set("failed", job.getLong("failed") + failed)
+                        .set("errors", StringValue.newBuilder(GSON.toJson(errors)).setExcludeFromIndexes(true).build())
+                        .set("status", last ? "done" : "running")
+                        .set("updated_at", now)
+                        .set("lease_until", LongValue.newBuilder(last ? 0 : now + LEASE_MS).setExcludeFromIndexes(true).build())
+                        .build());
+                txn.commit();
+                break;
+            } catch (DatastoreException e) {
+                if (attempt == 3)
+                    LOG.warning("Failed to update import job " + jobKey.getName() + ": " + e.getMessage());
+            } finally {
+                if (txn.isActive())
+                    txn.rollback();
+            }
+        }
+        if (created > 0)
+            WorkSheetStats.invalidate();
+        return true;
+    }
+
+    // Fica com o job se não estiver acabado nem com lease de outra instância
+    private static boolean claim(Datastore datastore, Key jobKey, String lease) {
+        Transaction txn = datastore.newTransaction();
+        try {
+            Entity job = txn.get(jobKey);
+            long now = System.currentTimeMillis();
+            if (job == null || finished(job) || job.getLong("lease_until") > now)
+                return false;
+            txn.put(Entity.newBuilder(job)
+                    .set("status", "running")
+                    .set("updated_at", now)
+                    .set("lease_until", LongValue.newBuilder(now + LEASE_MS).setExcludeFromIndexes(true).build())
+                    .set("lease_owner", StringValue.newBuilder(lease).setExcludeFromIndexes(true).build())
+                    .build());
+            txn.commit();
+            return true;
+        } catch (DatastoreException e) {
+            return false;
+        } finally {
+            if (txn.isActive())
+                txn.rollback();
+        }
+    }
+
+    // Prolonga o lease; false se o job acabou ou passou para outro processamento (um erro transitório não conta)
+    private static boolean renew(Datastore datastore, Key jobKey, String lease) {
+        Transaction txn = datastore.newTransaction();
+        try {
+            Entity job = txn.get(jobKey);
+            if (!leaseHeld(job, lease))
+                return false;
+            txn.put(Entity.newBuilder(job)
+                    .set("lease_until", LongValue.newBuilder(System.currentTimeMillis() + LEASE_MS)
+                            .setExcludeFromIndexes(true).build())
+                    .build());
+            txn.commit();
+            return true;
+        } catch (DatastoreException e) {
+            LOG.warning("Failed to renew lease of import job " + jobKey.getName() + ": " + e.getMessage());
+            return true;
+        } finally {
+            if (txn.isActive())
+                txn.rollback();
+        }
+    }
+
+    private static boolean leaseHeld(Entity job, String lease) {
+        return job != null && !finished(job) && job.contains("lease_owner")
+                && lease.equals(job.getString("lease_owner"));
+    }
+
+    private static boolean finished(Entity job) {
+        return "done".equals(job.getString("status"));
+    }
+
+    private static void copy(InputStream in, String object, String name)
+            throws IOException, InvalidArchiveException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (OutputStream out = BlobStores.get(BUCKET).create(object, "application/geo+json", false)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+                if (total > MAX_FILE_BYTES)
+                    throw new InvalidArchiveException(name + " exceeds " + MAX_FILE_BYTES + " bytes");
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    private static void deleteBlobs(String jobId) {
+        try {
+            BlobStore store = BlobStores.get(BUCKET);
+            for (String object : store.list("imports/" + jobId + "/"))
+                store.delete(object);
+        } catch (Exception e) {
+            LOG.warning("Failed to delete uploaded files of import job " + jobId + ": " + e.getMessage());
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,263 @@
+package pt.unl.fct.di.apdc.userapp.util.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.BaseEntity;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.gson.Gson;
+
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetChanges;
+import pt.unl.fct.di.apdc.userapp.util.WorkSheetExport;
+
+/**
+ * Índice invertido em memória sobre títulos, AIGP e descrições POSA/POSP das folhas.
+ * Os termos estão num TreeMap para a pesquisa por prefixo; todos os termos da pesquisa têm de corresponder.
+ * É construído no arranque (AppStartupListener), atualizado nas escritas locais e sincronizado com as
+ * outras instâncias através de {@link WorkSheetChanges}.
+ */
+public class WorkSheetSearchIndex {
+
+    private static final Logger LOG = Logger.getLogger(WorkSheetSearchIndex.class.getName());
+    private static final Gson GSON = new Gson();
+    private static final long SYNC_INTERVAL_MS = 5_000;
+
+    private static final int TITLE_WEIGHT = 4;
+    private static final int AIGP_WEIGHT = 3;
+    private static final int DESCRIPTION_WEIGHT = 1;
+
+    public static class Hit {
+        public final String id;
+        public final String title;
+        public final int score;
+
+        Hit(String id, String title, int score) {
+            this.id = id;
+            this.title = title;
+            this.score = score;
+        }
+    }
+
+    public static class Page {
+        public final int total;
+        public final List<Hit> hits;
+
+        Page(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+    }
+
+    // Protege os mapas (que são trocados inteiros quando o índice é construído) e o built
+    private static final ReadWriteLock LOCK = new ReentrantReadWriteLock();
+    private static NavigableMap<String, Map<String, Integer>> postings = new TreeMap<>();
+    private static Map<String, Map<String, Integer>> docTerms = new HashMap<>();
+    private static Map<String, String> titles = new HashMap<>();
+    private static volatile boolean built = false;
+
+    // Uma construção ou sincronização de cada vez; guarda syncedFrom e indexedVersions
+    private static final ReentrantLock SYNC = new ReentrantLock();
+    private static final Map<String, Long> indexedVersions = new HashMap<>();
+    private static volatile long lastSyncCheck = 0;
+    private static long syncedFrom = 0;
+
+    /**
+     * Constrói o índice a partir do Datastore (uma vez por instância) ou sincroniza-o se já existir.
+     * A leitura do Datastore é feita sem bloquear as pesquisas nem as atualizações; só a troca dos mapas
+     * é feita com o LOCK de escrita.
+     */
+    public static void ensureFresh(Datastore datastore) {
+        if (!built) {
+            SYNC.lock();
+            try {
+                if (!built)
+                    build(datastore);
+            } finally {
+                SYNC.unlock();
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // Se outro pedido já está a sincronizar, este usa o índice tal como está
+        if (now - lastSyncCheck < SYNC_INTERVAL_MS || !SYNC.tryLock())
+            return;
+        try {
+            lastSyncCheck = now;
+            Map<String, Long> versions = WorkSheetChanges.since(datastore, syncedFrom);
+            syncedFrom = now;
+            versions.entrySet().removeIf(e -> e.getValue().equals(indexedVersions.get(e.getKey())));
+            for (String id : versions.keySet())
+                put(id, datastore.get(datastore.newKeyFactory().setKind("WorkSheet").newKey(id)));
+            indexedVersions.putAll(versions);
+        } finally {
+            SYNC.unlock();
+        }
+    }
+
+    // Chamado com o SYNC; as escritas durante a leitura são apanhadas pela sincronização seguinte
+    private static void build(Datastore datastore) {
+        long start = System.currentTimeMillis();
+        NavigableMap<String, Map<String, Integer>> newPostings = new TreeMap<>();
+        Map<String, Map<String, Integer>> newDocTerms = new HashMap<>();
+        Map<String, String> newTitles = new HashMap<>();
+        try {
+            WorkSheetExport.forEach(datastore, row -> {
+                String id = row.getKey().getName();
+                Map<String, Integer> terms = terms(row);
+                for (Map.Entry<String, Integer> t : terms.entrySet())
+                    newPostings.computeIfAbsent(t.getKey(), k -> new HashMap<>()).put(id, t.getValue());
+                newDocTerms.put(id, terms);
+                newTitles.put(id, string(row, "title"));
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        LOCK.writeLock().lock();
+        try {
+            postings = newPostings;
+            docTerms = newDocTerms;
+            titles = newTitles;
+            built = true;
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+        syncedFrom = start;
+        lastSyncCheck = 0;
+        LOG.info("Search index built with " + newTitles.size() + " worksheets");
+    }
+
+    /** Atualiza uma folha depois de uma escrita local (ws null se foi apagada). */
+    public static void update(String worksheetId, Entity ws) {
+        Map<String, Integer> terms = ws == null ? null : terms(ws);
+        LOCK.writeLock().lock();
+        try {
+            // Antes de construído não há nada a atualizar; a construção já vê esta escrita
+            if (built)
+                apply(worksheetId, terms, ws == null ? null : string(ws, "title"));
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    public static Page search(Datastore datastore, String query, int offset, int limit) {
+        ensureFresh(datastore);
+        List<String> queryTerms = TextNormalizer.tokens(query);
+        if (queryTerms.isEmpty())
+            return new Page(0, Collections.emptyList());
+
+        LOCK.readLock().lock();
+        try {
+            Map<String, Integer> scores = null;
+            for (String term : queryTerms) {
+                // Melhor correspondência de cada documento para este termo (exata vale o dobro)
+                Map<String, Integer> termScores = new HashMap<>();
+                for (Map.Entry<String, Map<String, Integer>> e : postings
+                        .subMap(term, true, term + Character.MAX_VALUE, true).entrySet()) {
+                    int factor = e.getKey().equals(term) ? 2 : 1;
+                    for (Map.Entry<String, Integer> doc : e.getValue().entrySet())
+                        termScores.merge(doc.getKey(), doc.getValue() * factor, Math::max);
+                }
+                if (scores == null) {
+                    scores = termScores;
+                } else {
+                    Map<String, Integer> both = new HashMap<>();
+                    for (Map.Entry<String, Integer> e : scores.entrySet()) {
+                        Integer s = termScores.get(e.getKey());
+                        if (s != null)
+                            both.put(e.getKey(), e.getValue() + s);
+                    }
+                    scores = both;
+                }
+                if (scores.isEmpty())
+                    break;
+            }
+
+            List<Hit> ranked = new ArrayList<>(scores.size());
+            for (Map.Entry<String, Integer> e : scores.entrySet())
+                ranked.add(new Hit(e.getKey(), titles.get(e.getKey()), e.getValue()));
+            ranked.sort((a, b) -> a.score != b.score ? Integer.compare(b.score, a.score) : a.id.compareTo(b.id));
+
+            int from = Math.min(Math.max(offset, 0), ranked.size());
+            int to = Math.min(from + limit, ranked.size());
+            return new Page(ranked.size(), new ArrayList<>(ranked.subList(from, to)));
+        } finally {
+            LOCK.readLock().unlock();
+        }
+    }
+
+    private static void put(String id, BaseEntity<Key> ws) {
+        Map<String, Integer> terms = ws == null ? null : terms(ws);
+        LOCK.writeLock().lock();
+        try {
+            apply(id, terms, ws == null ? null : string(ws, "title"));
+        } finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    private static Map<String, Integer> terms(BaseEntity<Key> ws) {
+        Map<String, Integer> terms = new HashMap<>();
+        addTerms(terms, string(ws, "title"), TITLE_WEIGHT);
+        String aigp = string(ws, "aigp");
+        if (aigp != null) {
+            try {
+                String[] places = GSON.fromJson(aigp, String[].class);
+                if (places != null)
+                    for (String place : places)
+                        addTerms(terms, place, AIGP_WEIGHT);
+            } catch (Exception e) {
+                addTerms(terms, aigp, AIGP_WEIGHT);
+            }
+        }
+        addTerms(terms, string(ws, "posa_description"), DESCRIPTION_WEIGHT);
+        addTerms(terms, string(ws, "posp_description"), DESCRIPTION_WEIGHT);
+        return terms;
+    }
+
+    // Chamado com o LOCK de escrita; terms null remove a folha
+    private static void apply(String id, Map<String, Integer> terms, String title) {
+        Map<String, Integer> old = docTerms.remove(id);
+        if (old != null) {
+            for (String term : old.keySet()) {
+                Map<String, Integer> docs = postings.get(term);
+                if (docs != null) {
+                    docs.remove(id);
+                    if (docs.isEmpty())
+                        postings.remove(term);
+                }
+            }
+        }
+        titles.remove(id);
+        if (terms == null)
+            return;
+        for (Map.Entry<String, Integer> t : terms.entrySet())
+            postings.computeIfAbsent(t.getKey(), k -> new HashMap<>()).put(id, t.getValue());
+        docTerms.put(id, terms);
+        titles.put(id, title);
+    }
+
+    private static void addTerms(Map<String, Integer> terms, String text, int weight) {
+        for (String t : TextNormalizer.tokens(text))
+            terms.merge(t, weight, Math::max);
+    }
+
+    private static String string(BaseEntity<Key> e, String name) {
+        if (!e.contains(name))
+            return null;
+        Object v = e.getValue(name).get();
+        return v instanceof String s ? s : null;
+    }
+}
@@ -0,0 +1,66 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/** Armazenamento de objetos por nome (Cloud Storage em produção, diretório local nos testes). */
+public interface BlobStore {
+
+    void put(String name, byte[] data, String contentType) throws IOException;
+
+    /** Conteúdo do objeto, ou null se não existir. */
+    byte[] get(String name) throws IOException;
+
+    /** Devolve false se o objeto não existia. */
+    boolean delete(String name) throws IOException;
+
+    /** Nomes dos objetos começados por prefix. */
+    List<String> list(String prefix) throws IOException;
+
+    /** Metadados do objeto, ou null se não existir. */
+    ObjectInfo stat(String name) throws IOException;
+
+    /** Stream com o conteúdo do objeto, ou null se não existir. */
+    default InputStream open(String name) throws IOException {
+        return open(name, 0, -1);
+    }
+
+    /** Stream com length bytes do objeto a partir de offset (length &lt; 0: até ao fim), ou null se não existir. */
+    InputStream open(String name, long offset, long length) throws IOException;
+
+    /**
+     * Como {@link #open(String, long, long)}, mas da versão do objeto descrita por info (obtido com stat), para
+     * o conteúdo corresponder aos metadados já enviados; null se essa versão já não existir.
+     */
+    InputStream open(ObjectInfo info, long offset, long length) throws IOException;
+
+    /** Stream de escrita; o objeto fica com o que tiver sido escrito quando o stream for fechado. */
+    OutputStream create(String name, String contentType, boolean publicRead) throws IOException;
+
+    /** Cria (ou substitui) target com a concatenação dos objetos sources, pela ordem dada. */
+    void compose(String target, List<String> sources, String contentType) throws IOException;
+
+    /** URL pelo qual o objeto é servido aos clientes. */
+    String publicUrl(String name);
+
+    /** Nome do objeto a que um URL devolvido por {@link #publicUrl} se refere, ou null se não for deste store. */
+    default String nameOf(String url) {
+        String prefix = publicUrl("");
+        return url != null && url.startsWith(prefix) && url.length() > prefix.length()
+                ? url.substring(prefix.length()) : null;
+    }
+
+    /**
+     * Copia o stream para o objeto sem o ter todo em memória. Sem content type (ou com um genérico) usa o que
+     * for detetado pelo nome ou pelos primeiros bytes. Devolve o nº de bytes escritos.
+     */
+    default long upload(String name, InputStream in, String contentType, boolean publicRead) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, ContentTypes.BUFFER);
+        try (OutputStream out = create(name, ContentTypes.detect(contentType, name, buffered), publicRead)) {
+            return buffered.transferTo(out);
+        }
+    }
+}
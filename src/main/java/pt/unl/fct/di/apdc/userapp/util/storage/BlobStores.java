@@ -0,0 +1,88 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+/**
+ * BlobStores da aplicação, um por bucket, todos sobre o mesmo cliente do Cloud Storage (thread-safe, com o seu
+ * pool de ligações; criá-lo por pedido custava latência e ligações). Se a propriedade "blobstore.dir" estiver
+ * definida os buckets passam a ser subdiretórios locais (testes, desenvolvimento e benchmarks).
+ * Só há stores para os buckets configurados (o por omissão, o de importação e os de "blobstore.buckets", separados
+ * por vírgulas): o nome chega nos URLs do MediaResource e não pode fazer crescer a cache.
+ */
+public class BlobStores {
+
+    public static final String BUCKET = System.getProperty("blobstore.bucket", "alien-iterator-460014-a0.appspot.com");
+
+    // Regras de nomes de buckets do Cloud Storage; também impede caminhos fora do diretório local
+    private static final Pattern BUCKET_NAME = Pattern.compile("[a-z0-9][a-z0-9._-]{1,220}[a-z0-9]");
+
+    private static final Set<String> BUCKETS = configured();
+
+    private static final Map<String, BlobStore> stores = new ConcurrentHashMap<>();
+    private static volatile Storage storage;
+
+    public static BlobStore get() {
+        return get(BUCKET);
+    }
+
+    /** BlobStore de um bucket; IllegalArgumentException se o bucket não for um dos configurados. */
+    public static BlobStore get(String bucket) {
+        BlobStore store = stores.get(bucket);
+        if (store != null)
+            return store;
+        if (bucket == null || !BUCKETS.contains(bucket))
+            throw new IllegalArgumentException("Unknown bucket " + bucket);
+        return stores.computeIfAbsent(bucket, BlobStores::create);
+    }
+
+    /** Buckets configurados. */
+    public static Set<String> buckets() {
+        return BUCKETS;
+    }
+
+    private static Set<String> configured() {
+        Set<String> buckets = new LinkedHashSet<>();
+        buckets.add(BUCKET);
+        buckets.add(System.getProperty("import.bucket", BUCKET));
+        for (String bucket : System.getProperty("blobstore.buckets", "").split(","))
+            buckets.add(bucket.trim());
+        buckets.removeIf(b -> !BUCKET_NAME.matcher(b).matches() || b.contains(".."));
+        return Set.copyOf(buckets);
+    }
+
+    private static BlobStore create(String bucket) {
+        String dir = System.getProperty("blobstore.dir");
+        if (dir != null && !dir.isBlank()) {
+            Path root = Paths.get(dir).resolve(bucket);
+            return new FileBlobStore(root);
+        }
+        return new GcsBlobStore(storage(), bucket);
+    }
+
+    /** Cliente do Cloud Storage partilhado, criado no primeiro uso. */
+    public static Storage storage() {
+        Storage client = storage;
+        if (client == null) {
+            synchronized (BlobStores.class) {
+                if (storage == null)
+                    storage = StorageOptions.getDefaultInstance().getService();
+                client = storage;
+            }
+        }
+        return client;
+    }
+
+    /** Para testes: substitui o BlobStore do bucket por omissão. */
+    public static void set(BlobStore store) {
+        stores.put(BUCKET, store);
+    }
+}
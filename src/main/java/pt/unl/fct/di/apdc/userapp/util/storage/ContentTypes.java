@@ -0,0 +1,49 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.Map;
+
+/** Content type dos ficheiros enviados quando o cliente não o indica (ou indica um genérico). */
+public class ContentTypes {
+
+    public static final String DEFAULT = "application/octet-stream";
+    static final int BUFFER = 64 * 1024;
+
+    // Extensões usadas na aplicação que o URLConnection não conhece
+    private static final Map<String, String> BY_EXTENSION = Map.of(
+            "geojson", "application/geo+json",
+            "json", "application/json",
+            "gpx", "application/gpx+xml",
+            "kml", "application/vnd.google-earth.kml+xml",
+            "webp", "image/webp",
+            "heic", "image/heic",
+            "tif", "image/tiff",
+            "tiff", "image/tiff",
+            "pdf", "application/pdf",
+            "mp4", "video/mp4");
+
+    public static String detect(String declared, String name, BufferedInputStream in) throws IOException {
+        if (declared != null && !declared.isBlank() && !declared.startsWith(DEFAULT))
+            return declared;
+        String byName = byName(name);
+        if (byName != null)
+            return byName;
+        String sniffed = in != null ? URLConnection.guessContentTypeFromStream(in) : null;
+        return sniffed != null ? sniffed : DEFAULT;
+    }
+
+    public static String byName(String name) {
+        if (name == null)
+            return null;
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            String known = BY_EXTENSION.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (known != null)
+                return known;
+        }
+        return URLConnection.guessContentTypeFromName(name);
+    }
+}
@@ -0,0 +1,214 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * BlobStore num diretório local, para correr e testar sem Cloud Storage. Não guarda metadados: o content type
+ * é deduzido do nome e as ACLs são ignoradas.
+ */
+public class FileBlobStore implements BlobStore {
+
+    private final Path root;
+
+    public FileBlobStore(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public void put(String name, byte[] data, String contentType) throws IOException {
+        Path target = resolve(name);
+        Files.createDirectories(target.getParent());
+        // Escreve num temporário e move, para um leitor nunca ver o objeto a meio
+        Path tmp = Files.createTempFile(target.getParent(), ".upload", null);
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public byte[] get(String name) throws IOException {
+        try {
+            return Files.readAllBytes(resolve(name));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        return Files.deleteIfExists(resolve(name));
+    }
+
+    @Override
+    public List<String> list(String prefix) throws IOException {
+        // Percorre só o diretório onde o prefixo acaba
+        int slash = prefix.lastIndexOf('/');
+        Path dir = slash < 0 ? root : root.resolve(prefix.substring(0, slash)).normalize();
+        List<String> names = new ArrayList<>();
+        if (!dir.startsWith(root) || !Files.isDirectory(dir))
+            return names;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.filter(Files::isRegularFile)
+                    .map(p -> root.relativize(p).toString().replace('\\', '/'))
+                    .filter(n -> n.startsWith(prefix) && !n.substring(n.lastIndexOf('/') + 1).startsWith(".upload"))
+                    .forEach(names::add);
+        }
+        return names;
+    }
+
+    @Override
+    public ObjectInfo stat(String name) throws IOException {
+        Path path = resolve(name);
+        if (!Files.isRegularFile(path))
+            return null;
+        long size = Files.size(path), updated = Files.getLastModifiedTime(path).toMillis();
+        String type = ContentTypes.byName(name);
+        return new ObjectInfo(name, type != null ? type : ContentTypes.DEFAULT, size,
+                Long.toHexString(updated) + "-" + Long.toHexString(size), updated);
+    }
+
+    @Override
+    public InputStream open(String name, long offset, long length) throws IOException {
+        SeekableByteChannel channel;
+        try {
+            channel = Files.newByteChannel(resolve(name));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return slice(channel, offset, length);
+    }
+
+    @Override
+    public InputStream open(ObjectInfo info, long offset, long length) throws IOException {
+        SeekableByteChannel channel;
+        try {
+            channel = Files.newByteChannel(resolve(info.name));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        // Substituir é um move atómico: se o etag não mudou depois de abrir, o canal é dessa versão
+        ObjectInfo current = stat(info.name);
+        if (current == null || !current.etag.equals(info.etag)) {
+            channel.close();
+            return null;
+        }
+        return slice(channel, offset, length);
+    }
+
+    private static InputStream slice(SeekableByteChannel channel, long offset, long length) throws IOException {
+        channel.position(offset);
+        InputStream in = Channels.newInputStream(channel);
+        if (length < 0)
+            return in;
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int b = in.read();
+                if (b >= 0)
+                    remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0)
+                    return -1;
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0)
+                    remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public OutputStream create(String name, String contentType, boolean publicRead) throws IOException {
+        Path target = resolve(name);
+        Files.createDirectories(target.getParent());
+        // Escreve num temporário; só passa para o nome final se todas as escritas e o fecho correrem bem
+        Path tmp = Files.createTempFile(target.getParent(), ".upload", null);
+        return new FilterOutputStream(Files.newOutputStream(tmp)) {
+            private boolean failed;
+
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    out.write(b);
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                    throw e;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                    if (!failed)
+                        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void compose(String target, List<String> sources, String contentType) throws IOException {
+        Path path = resolve(target);
+        Files.createDirectories(path.getParent());
+        // Uma fonte que falte não pode deixar o destino com metade do conteúdo
+        Path tmp = Files.createTempFile(path.getParent(), ".upload", null);
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                for (String source : sources)
+                    Files.copy(resolve(source), out);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public String publicUrl(String name) {
+        return root.toUri().toString() + name;
+    }
+
+    private Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root) || path.equals(root))
+            throw new IOException("Invalid object name " + name);
+        return path;
+    }
+}
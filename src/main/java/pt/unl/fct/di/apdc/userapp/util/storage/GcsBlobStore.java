@@ -0,0 +1,176 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Acl;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+/** BlobStore sobre um bucket do Cloud Storage. */
+public class GcsBlobStore implements BlobStore {
+
+    private static final Logger LOG = Logger.getLogger(GcsBlobStore.class.getName());
+    private static final int MAX_COMPOSE = 32;
+
+    private final Storage storage;
+    private final String bucket;
+
+    public GcsBlobStore(Storage storage, String bucket) {
+        this.storage = storage;
+        this.bucket = bucket;
+    }
+
+    @Override
+    public void put(String name, byte[] data, String contentType) throws IOException {
+        try {
+            storage.create(BlobInfo.newBuilder(bucket, name).setContentType(contentType).build(), data);
+        } catch (StorageException e) {
+            throw new IOException("Failed to write gs://" + bucket + "/" + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public byte[] get(String name) throws IOException {
+        try {
+            return storage.readAllBytes(BlobId.of(bucket, name));
+        } catch (StorageException e) {
+            if (e.getCode() == 404)
+                return null;
+            throw new IOException("Failed to read gs://" + bucket + "/" + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean delete(String name) throws IOException {
+        try {
+            return storage.delete(BlobId.of(bucket, name));
+        } catch (StorageException e) {
+            throw new IOException("Failed to delete gs://" + bucket + "/" + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<String> list(String prefix) throws IOException {
+        try {
+            List<String> names = new ArrayList<>();
+            for (Blob blob : storage.list(bucket, Storage.BlobListOption.prefix(prefix)).iterateAll())
+                names.add(blob.getName());
+            return names;
+        } catch (StorageException e) {
+            throw new IOException("Failed to list gs://" + bucket + "/" + prefix + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ObjectInfo stat(String name) throws IOException {
+        try {
+            Blob blob = storage.get(BlobId.of(bucket, name));
+            if (blob == null)
+                return null;
+            return new ObjectInfo(name, blob.getContentType(), blob.getSize() != null ? blob.getSize() : 0,
+                    String.valueOf(blob.getGeneration()),
+                    blob.getUpdateTimeOffsetDateTime() != null
+                            ? blob.getUpdateTimeOffsetDateTime().toInstant().toEpochMilli() : 0);
+        } catch (StorageException e) {
+            throw new IOException("Failed to read gs://" + bucket + "/" + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public InputStream open(String name, long offset, long length) throws IOException {
+        return open(BlobId.of(bucket, name), offset, length);
+    }
+
+    @Override
+    public InputStream open(ObjectInfo info, long offset, long length) throws IOException {
+        long generation;
+        try {
+            generation = Long.parseLong(info.etag);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid generation " + info.etag + " for gs://" + bucket + "/" + info.name, e);
+        }
+        return open(BlobId.of(bucket, info.name, generation), offset, length);
+    }
+
+    private InputStream open(BlobId id, long offset, long length) throws IOException {
+        try {
+            // Com a geração no BlobId, uma versão substituída entretanto dá null em vez do conteúdo novo
+            Blob blob = storage.get(id);
+            if (blob == null)
+                return null;
+            // Só é pedido ao Cloud Storage o intervalo necessário
+            ReadChannel reader = blob.reader();
+            reader.seek(offset);
+            if (length >= 0)
+                reader.limit(offset + length);
+            return Channels.newInputStream(reader);
+        } catch (StorageException e) {
+            throw new IOException("Failed to read gs://" + bucket + "/" + id.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public OutputStream create(String name, String contentType, boolean publicRead) throws IOException {
+        BlobInfo.Builder info = BlobInfo.newBuilder(bucket, name).setContentType(contentType);
+        if (publicRead)
+            info.setAcl(List.of(Acl.of(Acl.User.ofAllUsers(), Acl.Role.READER)));
+        try {
+            return Channels.newOutputStream(storage.writer(info.build()));
+        } catch (StorageException e) {
+            throw new IOException("Failed to write gs://" + bucket + "/" + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void compose(String target, List<String> sources, String contentType) throws IOException {
+        List<String> intermediate = new ArrayList<>();
+        try {
+            // O Cloud Storage compõe no máximo 32 objetos por pedido: acima disso compõe por níveis
+            List<String> level = sources;
+            for (int depth = 0; level.size() > MAX_COMPOSE; depth++) {
+                List<String> next = new ArrayList<>();
+                for (int i = 0; i < level.size(); i += MAX_COMPOSE) {
+                    String part = target + ".compose-" + depth + "-" + (i / MAX_COMPOSE);
+                    composeOnce(part, level.subList(i, Math.min(i + MAX_COMPOSE, level.size())), contentType);
+                    next.add(part);
+                }
+                intermediate.addAll(next);
+                level = next;
+            }
+            composeOnce(target, level, contentType);
+        } catch (StorageException e) {
+            throw new IOException("Failed to compose gs://" + bucket + "/" + target + ": " + e.getMessage(), e);
+        } finally {
+            // Os níveis intermédios saem sempre, também quando a composição falha a meio
+            for (String part : intermediate) {
+                try {
+                    storage.delete(BlobId.of(bucket, part));
+                } catch (StorageException e) {
+                    LOG.warning("Failed to delete gs://" + bucket + "/" + part + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void composeOnce(String target, List<String> sources, String contentType) {
+        storage.compose(Storage.ComposeRequest.newBuilder()
+                .addSource(sources)
+                .setTarget(BlobInfo.newBuilder(bucket, target).setContentType(contentType).build())
+                .build());
+    }
+
+    @Override
+    public String publicUrl(String name) {
+        return "https://storage.googleapis.com/" + bucket + "/" + name;
+    }
+}
@@ -0,0 +1,223 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.cloud.datastore.Blob;
+import com.google.cloud.datastore.BlobValue;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.PathElement;
+import com.google.cloud.datastore.StringValue;
+
+/**
+ * Propriedades que podem crescer sem limite (ex.: gpx_track, photo_urls das atividades, a geometria de um bloco
+ * de features com uma parcela enorme). Acima de THRESHOLD bytes (ou do limite indicado) o valor vai para um
+ * objeto no {@link BlobStore} e a entidade guarda só "&lt;nome&gt;_ref", "&lt;nome&gt;_sha256" e
+ * "&lt;nome&gt;_size"; abaixo fica inline, sem índice.
+ * Os objetos só são lidos quando alguém pede o valor, e em paralelo quando são vários.
+ *
+ * Os objetos ficam em "offload/&lt;caminho da chave&gt;/", com o hash no nome: reescrever o mesmo valor não cria
+ * outro objeto e o prefixo permite apagar tudo o que pertence a uma entidade.
+ */
+public class LargeProperties {
+
+    private static final Logger LOG = Logger.getLogger(LargeProperties.class.getName());
+
+    public static final int THRESHOLD = Integer.getInteger("entity.offload.threshold", 64 * 1024);
+    private static final String PREFIX = "offload/";
+    private static final ExecutorService FETCH = Executors.newFixedThreadPool(
+            Integer.getInteger("entity.offload.fetch.threads", 8), r -> {
+                Thread t = new Thread(r, "offload-fetch");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static String ref(String name) {
+        return name + "_ref";
+    }
+
+    private static String sha(String name) {
+        return name + "_sha256";
+    }
+
+    private static String size(String name) {
+        return name + "_size";
+    }
+
+    /** Prefixo dos objetos de uma entidade (e das suas descendentes). */
+    public static String prefix(Key key) {
+        StringBuilder path = new StringBuilder(PREFIX);
+        for (PathElement p : key.getAncestors())
+            append(path, p.getKind(), p.getNameOrId());
+        append(path, key.getKind(), key.getNameOrId());
+        return path.toString();
+    }
+
+    private static void append(StringBuilder path, String kind, Object id) {
+        path.append(URLEncoder.encode(kind, StandardCharsets.UTF_8)).append('/')
+                .append(URLEncoder.encode(String.valueOf(id), StandardCharsets.UTF_8)).append('/');
+    }
+
+    /**
+     * Guarda o valor inline ou, se for grande, no BlobStore (antes de a entidade ser escrita: se a escrita falhar
+     * fica um objeto órfão debaixo do prefixo da entidade, nunca uma referência para nada).
+     */
+    public static void set(Entity.Builder builder, Key key, String name, String value) throws IOException {
+        set(builder, key, name, value, THRESHOLD);
+    }
+
+    /** Como {@link #set(Entity.Builder, Key, String, String)}, com outro limite para ficar inline. */
+    public static void set(Entity.Builder builder, Key key, String name, String value, int threshold)
+            throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= threshold) {
+            builder.set(name, StringValue.newBuilder(value).setExcludeFromIndexes(true).build())
+                    .remove(ref(name)).remove(sha(name)).remove(size(name));
+            return;
+        }
+        offload(builder, key, name, bytes, "application/json");
+    }
+
+    /** Valor binário: inline como blob até threshold bytes, acima disso no BlobStore. */
+    public static void setBytes(Entity.Builder builder, Key key, String name, byte[] value, int threshold)
+            throws IOException {
+        if (value.length <= threshold) {
+            builder.set(name, BlobValue.newBuilder(Blob.copyFrom(value)).setExcludeFromIndexes(true).build())
+                    .remove(ref(name)).remove(sha(name)).remove(size(name));
+            return;
+        }
+        offload(builder, key, name, value, "application/octet-stream");
+    }
+
+    private static void offload(Entity.Builder builder, Key key, String name, byte[] bytes, String contentType)
+            throws IOException {
+        String hash = sha256(bytes);
+        String object = prefix(key) + name + "-" + hash;
+        BlobStores.get().put(object, bytes, contentType);
+        builder.remove(name)
+                .set(ref(name), StringValue.newBuilder(object).setExcludeFromIndexes(true).build())
+                .set(sha(name), StringValue.newBuilder(hash).setExcludeFromIndexes(true).build())
+                .set(size(name), LongValue.newBuilder(bytes.length).setExcludeFromIndexes(true).build());
+    }
+
+    public static boolean has(Entity entity, String name) {
+        return entity.contains(name) || entity.contains(ref(name));
+    }
+
+    /** Valor da propriedade (lido do BlobStore se estiver fora), ou null se não existir. */
+    public static String get(Entity entity, String name) throws IOException {
+        if (entity.contains(name))
+            return entity.getString(name);
+        if (!entity.contains(ref(name)))
+            return null;
+        return new String(load(entity, name), StandardCharsets.UTF_8);
+    }
+
+    /** Valor binário da propriedade (ver {@link #setBytes}), ou null se não existir. */
+    public static byte[] getBytes(Entity entity, String name) throws IOException {
+        if (entity.contains(name))
+            return entity.getBlob(name).toByteArray();
+        if (!entity.contains(ref(name)))
+            return null;
+        return load(entity, name);
+    }
+
+    private static byte[] load(Entity entity, String name) throws IOException {
+        String object = entity.getString(ref(name));
+        byte[] bytes = BlobStores.get().get(object);
+        if (bytes == null)
+            throw new IOException("Missing offloaded object " + object);
+        if (entity.contains(sha(name)) && !sha256(bytes).equals(entity.getString(sha(name))))
+            throw new IOException("Checksum mismatch for offloaded object " + object);
+        return bytes;
+    }
+
+    /**
+     * Valores da propriedade para várias entidades; os que estão fora são lidos em paralelo.
+     * Entidades sem a propriedade ficam de fora do mapa; se algum objeto não se conseguir ler falha tudo,
+     * como no {@link #get}, em vez de devolver a entidade como se não tivesse valor.
+     */
+    public static Map<Key, String> getAll(Collection<Entity> entities, String name) throws IOException {
+        Map<Key, Future<String>> pending = new HashMap<>();
+        for (Entity e : entities) {
+            if (!e.contains(name) && e.contains(ref(name)))
+                pending.put(e.getKey(), FETCH.submit(() -> get(e, name)));
+        }
+        // Pela ordem das entidades
+        Map<Key, String> values = new LinkedHashMap<>();
+        for (Entity e : entities) {
+            if (e.contains(name)) {
+                values.put(e.getKey(), e.getString(name));
+                continue;
+            }
+            Future<String> future = pending.get(e.getKey());
+            if (future == null)
+                continue;
+            try {
+                values.put(e.getKey(), future.get());
+            } catch (ExecutionException ex) {
+                pending.values().forEach(f -> f.cancel(false));
+                Throwable cause = ex.getCause();
+                throw cause instanceof IOException io ? io
+                        : new IOException("Failed to load " + name + " of " + e.getKey() + ": " + cause.getMessage(), cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                pending.values().forEach(f -> f.cancel(false));
+                throw new IOException("Interrupted while loading " + name);
+            }
+        }
+        return values;
+    }
+
+    /** Depois de escrita a nova versão da entidade, apaga os objetos que deixaram de ser referenciados. */
+    public static void cleanup(Entity before, Entity after, String... names) {
+        delete(unreferenced(before, after, names));
+    }
+
+    /** Objetos referidos por before que after (null se a entidade foi apagada) já não refere. */
+    public static List<String> unreferenced(Entity before, Entity after, String... names) {
+        List<String> stale = new ArrayList<>();
+        for (String name : names) {
+            String old = before != null && before.contains(ref(name)) ? before.getString(ref(name)) : null;
+            String current = after != null && after.contains(ref(name)) ? after.getString(ref(name)) : null;
+            if (old != null && !old.equals(current))
+                stale.add(old);
+        }
+        return stale;
+    }
+
+    public static void delete(Collection<String> objects) {
+        for (String object : objects) {
+            try {
+                BlobStores.get().delete(object);
+            } catch (IOException e) {
+                LOG.warning("Failed to delete offloaded object " + object + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+/** Metadados de um objeto guardado num {@link BlobStore}. */
+public class ObjectInfo {
+
+    public final String name;
+    public final String contentType;
+    public final long size;
+    // Muda sempre que o conteúdo muda (geração no Cloud Storage)
+    public final String etag;
+    public final long updated;
+
+    public ObjectInfo(String name, String contentType, long size, String etag, long updated) {
+        this.name = name;
+        this.contentType = contentType;
+        this.size = size;
+        this.etag = etag;
+        this.updated = updated;
+    }
+}
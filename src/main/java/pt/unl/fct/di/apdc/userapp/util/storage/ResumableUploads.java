@@ -0,0 +1,310 @@
+package pt.unl.fct.di.apdc.userapp.util.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Uploads retomáveis para ligações fracas: o cliente cria uma sessão, envia blocos com o offset onde começam,
+ * pergunta quanto já está guardado e, no fim, pede a composição do objeto final.
+ *
+ * Todo o estado fica no próprio bucket, em "uploads/&lt;id&gt;/": a descrição da sessão e um objeto por bloco,
+ * com o offset e um sufixo aleatório no nome. Qualquer instância pode continuar uma sessão e o FileBlobStore serve
+ * de substituto local. Um bloco interrompido a meio fica guardado com os bytes que chegaram, por isso o cliente só
+ * repete o resto. Dois PUTs ao mesmo offset escrevem objetos diferentes; o que está guardado é a cadeia de blocos
+ * contíguos a partir de 0 (no mesmo offset ganha o primeiro pela ordem dos nomes), e os restantes são ignorados.
+ * Sessões com mais de TTL_MS são apagadas no acesso seguinte ou pela limpeza periódica de {@link #startCleanup}.
+ */
+public class ResumableUploads {
+
+    private static final Logger LOG = Logger.getLogger(ResumableUploads.class.getName());
+    private static final Gson GSON = new Gson();
+
+    public static final String PREFIX = "uploads/";
+    private static final long TTL_MS = Long.getLong("media.upload.ttl.ms", 24 * 60 * 60_000L);
+    public static final long MAX_CHUNK_BYTES = Long.getLong("media.upload.chunk.max", 32L * 1024 * 1024);
+    private static final long CLEANUP_MS = Long.getLong("media.upload.cleanup.ms", 60 * 60_000L);
+
+    private static ScheduledExecutorService cleanup;
+
+    public static class Session {
+        public String upload_id;
+        public String object;
+        public String content_type;
+        // Tamanho final anunciado pelo cliente, se o indicou
+        public Long total;
+        public long created_at;
+        public transient long committed;
+    }
+
+    /** O bloco não começa onde acaba o que já está guardado; o cliente deve continuar a partir de committed. */
+    public static class OffsetMismatchException extends Exception {
+        private static final long serialVersionUID = 1L;
+        public final long committed;
+
+        public OffsetMismatchException(long committed) {
+            super("Upload offset must be " + committed);
+            this.committed = committed;
+        }
+    }
+
+    /** O bloco passou de MAX_CHUNK_BYTES (contados ao copiar, o Content-Length pode faltar); não fica guardado. */
+    public static class ChunkTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ChunkTooLargeException() {
+            super("Chunks are limited to " + MAX_CHUNK_BYTES + " bytes.");
+        }
+    }
+
+    public static Session create(BlobStore store, String object, String contentType, Long total)
+            throws IOException {
+        Session session = new Session();
+        session.upload_id = UUID.randomUUID().toString();
+        session.object = object;
+        session.content_type = contentType;
+        session.total = total;
+        session.created_at = System.currentTimeMillis();
+        store.put(sessionName(session.upload_id), GSON.toJson(session).getBytes(StandardCharsets.UTF_8),
+                "application/json");
+        return session;
+    }
+
+    /** Sessão com o nº de bytes guardados, ou null se não existir, tiver expirado ou for de outro objeto. */
+    public static Session get(BlobStore store, String object, String uploadId) throws IOException {
+        if (!valid(uploadId))
+            return null;
+        Session session = read(store.get(sessionName(uploadId)));
+        if (session == null || !object.equals(session.object))
+            return null;
+        if (System.currentTimeMillis() - session.created_at > TTL_MS) {
+            abort(store, uploadId);
+            return null;
+        }
+        session.committed = committed(store, uploadId);
+        return session;
+    }
+
+    /** Guarda um bloco a começar em offset; devolve o novo nº de bytes guardados. */
+    public static long append(BlobStore store, Session session, long offset, InputStream chunk)
+            throws IOException, OffsetMismatchException {
+        if (offset != session.committed)
+            throw new OffsetMismatchException(session.committed);
+        String name = chunkName(session.upload_id, offset);
+        try {
+            store.upload(name, limited(chunk), "application/octet-stream", false);
+        } catch (ChunkTooLargeException e) {
+            // O que já tinha sido copiado ficou guardado ao fechar o stream de escrita
+            store.delete(name);
+            throw e;
+        }
+        // Outro PUT ao mesmo offset pode ter ganho: o que conta é a cadeia guardada
+        session.committed = committed(store, session.upload_id);
+        return session.committed;
+    }
+
+    /**
+     * Compõe os blocos no objeto final e apaga a sessão. Os blocos são verificados um a um: têm de ser contíguos
+     * e, se o cliente anunciou o tamanho, somar exatamente esse tamanho.
+     */
+    public static void complete(BlobStore store, Session session) throws IOException, OffsetMismatchException {
+        List<String> chunks = new ArrayList<>();
+        long expected = chain(store, session.upload_id, chunks);
+        if (session.total != null && expected != session.total)
+            throw new OffsetMismatchException(expected);
+
+        String contentType = session.content_type;
+        if (contentType == null || contentType.isBlank()) {
+            String byName = ContentTypes.byName(session.object);
+            contentType = byName != null ? byName : ContentTypes.DEFAULT;
+        }
+        if (chunks.isEmpty())
+            store.put(session.object, new byte[0], contentType);
+        else
+            store.compose(session.object, chunks, contentType);
+        abort(store, session.upload_id);
+    }
+
+    /** Apaga os blocos e a sessão. */
+    public static void abort(BlobStore store, String uploadId) {
+        try {
+            for (String name : store.list(PREFIX + uploadId + "/"))
+                store.delete(name);
+        } catch (IOException e) {
+            LOG.warning("Failed to delete upload session " + uploadId + ": " + e.getMessage());
+        }
+    }
+
+    /** Começa a limpeza periódica das sessões expiradas nos buckets configurados. */
+    public static synchronized void startCleanup() {
+        if (cleanup != null)
+            return;
+        cleanup = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-cleanup");
+            t.setDaemon(true);
+            return t;
+        });
+        cleanup.scheduleWithFixedDelay(() -> {
+            for (String bucket : BlobStores.buckets()) {
+                try {
+                    int removed = cleanup(BlobStores.get(bucket));
+                    if (removed > 0)
+                        LOG.info("Removed " + removed + " expired upload sessions from " + bucket);
+                } catch (Exception e) {
+                    LOG.warning("Failed to clean upload sessions of " + bucket + ": " + e.getMessage());
+                }
+            }
+        }, CLEANUP_MS, CLEANUP_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void shutdown() {
+        if (cleanup != null)
+            cleanup.shutdownNow();
+        cleanup = null;
+    }
+
+    /**
+     * Apaga as sessões com mais de TTL_MS e os blocos cuja sessão já não existe (abort que falhou a meio) há mais
+     * de TTL_MS. Devolve quantas sessões foram apagadas.
+     */
+    public static int cleanup(BlobStore store) throws IOException {
+        Map<String, List<String>> byUpload = new LinkedHashMap<>();
+        for (String name : store.list(PREFIX)) {
+            int slash = name.indexOf('/', PREFIX.length());
+            if (slash > 0)
+                byUpload.computeIfAbsent(name.substring(PREFIX.length(), slash), k -> new ArrayList<>()).add(name);
+        }
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Map.Entry<String, List<String>> upload : byUpload.entrySet()) {
+            String uploadId = upload.getKey();
+            long createdAt;
+            ObjectInfo sessionInfo = store.stat(sessionName(uploadId));
+            if (sessionInfo != null) {
+                Session session = read(store.get(sessionName(uploadId)));
+                createdAt = session != null ? session.created_at : sessionInfo.updated;
+            } else {
+                createdAt = 0;
+                for (String name : upload.getValue()) {
+                    ObjectInfo info = store.stat(name);
+                    if (info != null)
+                        createdAt = Math.max(createdAt, info.updated);
+                }
+            }
+            if (now - createdAt > TTL_MS) {
+                abort(store, uploadId);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static Session read(byte[] raw) {
+        if (raw == null)
+            return null;
+        try {
+            return GSON.fromJson(new String(raw, StandardCharsets.UTF_8), Session.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    private static long committed(BlobStore store, String uploadId) throws IOException {
+        return chain(store, uploadId, new ArrayList<>());
+    }
+
+    /**
+     * Blocos contíguos a partir de 0, em chain; devolve onde acabam. Um bloco num offset já coberto (PUT repetido
+     * ou concorrente) é ignorado, e um buraco acaba a cadeia.
+     */
+    private static long chain(BlobStore store, String uploadId, List<String> chain) throws IOException {
+        long expected = 0;
+        for (String chunk : chunks(store, uploadId)) {
+            long offset = offsetOf(chunk);
+            if (offset < expected)
+                continue;
+            if (offset > expected)
+                break;
+            ObjectInfo info = store.stat(chunk);
+            if (info == null)
+                continue;
+            chain.add(chunk);
+            expected += info.size;
+        }
+        return expected;
+    }
+
+    // Conta os bytes ao copiar: um pedido chunked não traz Content-Length
+    private static InputStream limited(InputStream in) {
+        return new FilterInputStream(in) {
+            private long read;
+
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0)
+                    count(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0)
+                    count(n);
+                return n;
+            }
+
+            private void count(int n) throws ChunkTooLargeException {
+                read += n;
+                if (read > MAX_CHUNK_BYTES)
+                    throw new ChunkTooLargeException();
+            }
+        };
+    }
+
+    private static List<String> chunks(BlobStore store, String uploadId) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        for (String name : store.list(PREFIX + uploadId + "/chunk-"))
+            chunks.add(name);
+        // O offset tem largura fixa no nome, por isso a ordem alfabética é a do ficheiro
+        Collections.sort(chunks);
+        return chunks;
+    }
+
+    private static String sessionName(String uploadId) {
+        return PREFIX + uploadId + "/session.json";
+    }
+
+    // Sufixo aleatório: dois PUTs ao mesmo offset nunca escrevem o mesmo objeto
+    private static String chunkName(String uploadId, long offset) {
+        return String.format("%s%s/chunk-%015d-%s", PREFIX, uploadId, offset, UUID.randomUUID());
+    }
+
+    private static long offsetOf(String chunkName) {
+        int from = chunkName.lastIndexOf("chunk-") + "chunk-".length();
+        return Long.parseLong(chunkName.substring(from, chunkName.indexOf('-', from)));
+    }
+
+    private static boolean valid(String uploadId) {
+        try {
+            return uploadId != null && UUID.fromString(uploadId).toString().equals(uploadId);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}